@@ -0,0 +1,96 @@
+package sendfile.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sendfile.client.CryptoManager;
+
+/**
+ * Throughput of every CryptoManager operation for both key sizes, for
+ * payloads from 16 bytes to 64 MB. Run through BenchmarkMain to get the
+ * GC profiler (allocation per op) by default.
+ *
+ * Message operations get a String of payloadSize ASCII characters, file
+ * operations a byte[] of payloadSize random bytes; inputs are built once
+ * per trial so only the crypto call is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@State(Scope.Thread)
+public class CryptoManagerBenchmark {
+
+    @Param({"BITS_56", "BITS_128"})
+    public CryptoManager.KeySize keySize;
+
+    @Param({"16", "256", "4096", "65536", "1048576", "16777216", "67108864"})
+    public int payloadSize;
+
+    private CryptoManager crypto;
+    private String message;
+    private String ciphertext;
+    private String mac;
+    private byte[] file;
+    private byte[] encryptedFile;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        crypto = new CryptoManager("benchmark-password", keySize);
+
+        Random random = new Random(42);
+        char[] chars = new char[payloadSize];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        message = new String(chars);
+        ciphertext = crypto.encrypt(message);
+        mac = crypto.generateMAC(message);
+
+        file = new byte[payloadSize];
+        random.nextBytes(file);
+        encryptedFile = crypto.encryptFile(file);
+    }
+
+    @Benchmark
+    public String encrypt() throws Exception {
+        return crypto.encrypt(message);
+    }
+
+    @Benchmark
+    public String decrypt() throws Exception {
+        return crypto.decrypt(ciphertext);
+    }
+
+    @Benchmark
+    public byte[] encryptFile() throws Exception {
+        return crypto.encryptFile(file);
+    }
+
+    @Benchmark
+    public byte[] decryptFile() throws Exception {
+        return crypto.decryptFile(encryptedFile);
+    }
+
+    @Benchmark
+    public String generateMAC() throws Exception {
+        return crypto.generateMAC(message);
+    }
+
+    @Benchmark
+    public boolean verifyMAC() throws Exception {
+        return crypto.verifyMAC(message, mac);
+    }
+}
@@ -0,0 +1,93 @@
+package sendfile.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+/**
+ * Encrypts or decrypts the chunks of one transfer (FileChunks) on all
+ * cores while the caller reads or writes the socket, and hands the
+ * results back in chunk order, the order they go on the wire or to disk.
+ *
+ * The work runs on one pool shared by all transfers, sized by
+ * -Dsendfile.file.workers=N (default: one thread per core). At most two
+ * chunks per worker are in flight, which keeps every core busy and bounds
+ * the memory a transfer holds no matter how large the file is.
+ */
+final class ChunkWorkers {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(parallelism(), pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("file-crypto-" + thread.getPoolIndex());
+        return thread;
+    }, null, false);
+
+    /** Submitted chunks, oldest first **/
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int window = 2 * POOL.getParallelism();
+
+    private static int parallelism() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        String value = System.getProperty("sendfile.file.workers");
+        if (value != null) {
+            try {
+                return Math.max(1, Math.min(Integer.parseInt(value.trim()), 256));
+            } catch (NumberFormatException e) {
+                // Fall back to the default
+            }
+        }
+        return cores;
+    }
+
+    /**
+     * Whether the next chunk has to wait for next() first
+     */
+    boolean isFull() {
+        return pending.size() >= window;
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Start the work for the chunk after the ones already submitted
+     */
+    void submit(Callable<byte[]> work) {
+        pending.add(POOL.submit(work));
+    }
+
+    /**
+     * The result of the oldest chunk, waiting for it if needed
+     */
+    byte[] next() throws IOException {
+        Future<byte[]> oldest = pending.remove();
+        try {
+            return oldest.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a file chunk");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Drop the chunks not taken yet, when the transfer stops early
+     */
+    void cancel() {
+        for (Future<byte[]> chunk : pending) {
+            chunk.cancel(false);
+        }
+        pending.clear();
+    }
+}
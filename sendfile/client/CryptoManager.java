@@ -2,6 +2,7 @@ package sendfile.client;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import javax.crypto.spec.IvParameterSpec;
@@ -37,6 +38,9 @@ public class CryptoManager {
     private byte[] iv;
     private static final String CHARSET = "UTF-8";
 
+    /** Shared by all IVs; file chunks are encrypted on several threads at once **/
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     /**
      * Initialize crypto manager with password and key size
      */
@@ -69,7 +73,7 @@ public class CryptoManager {
      * Generate initialization vector
      */
     private byte[] generateIV() {
-        SecureRandom random = new SecureRandom();
+        SecureRandom random = RANDOM;
         if (keySize == KeySize.BITS_56) {
             byte[] iv = new byte[8]; // DES block size
             random.nextBytes(iv);
@@ -138,6 +142,27 @@ public class CryptoManager {
         return new String(decryptedBytes, CHARSET);
     }
 
+    /**
+     * Decrypt many messages with one cipher (history replay); null where a
+     * message cannot be decrypted
+     */
+    public String[] decryptAll(String[] ciphertexts) throws Exception {
+        Cipher cipher = Cipher.getInstance(keySize == KeySize.BITS_56 ? "DES/CBC/PKCS5Padding" : "AES/CBC/PKCS5Padding");
+        int ivLength = (keySize == KeySize.BITS_56) ? 8 : 16;
+
+        String[] plaintexts = new String[ciphertexts.length];
+        for (int i = 0; i < ciphertexts.length; i++) {
+            try {
+                byte[] combined = Base64.getDecoder().decode(ciphertexts[i]);
+                cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(combined, 0, ivLength));
+                plaintexts[i] = new String(cipher.doFinal(combined, ivLength, combined.length - ivLength), CHARSET);
+            } catch (Exception e) {
+                plaintexts[i] = null;
+            }
+        }
+        return plaintexts;
+    }
+
     /**
      * Encrypt file data
      */
@@ -164,31 +189,70 @@ public class CryptoManager {
         return combined;
     }
 
+    /**
+     * A fresh IV for fileEncryptor(); it goes first, as in encryptFile()
+     */
+    public byte[] newFileIV() {
+        return generateIV();
+    }
+
+    /**
+     * Cipher that encrypts a file piece by piece with update() and doFinal(),
+     * for files too large to encrypt in memory; IV and output are those of
+     * encryptFile()
+     */
+    public Cipher fileEncryptor(byte[] iv) throws Exception {
+        Cipher cipher = Cipher.getInstance(keySize == KeySize.BITS_56 ? "DES/CBC/PKCS5Padding" : "AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
+        return cipher;
+    }
+
     /**
      * Decrypt file data
      */
     public byte[] decryptFile(byte[] encryptedFileData) throws Exception {
-        // Determine IV length based on algorithm
-        int ivLength = (keySize == KeySize.BITS_56) ? 8 : 16;
+        return decryptFile(encryptedFileData, 0, encryptedFileData.length);
+    }
 
-        // Extract IV and encrypted data
-        byte[] extractedIV = new byte[ivLength];
-        byte[] encryptedData = new byte[encryptedFileData.length - ivLength];
+    /**
+     * Decrypt file data that is part of a larger array (a file chunk)
+     */
+    public byte[] decryptFile(byte[] data, int offset, int length) throws Exception {
+        int ivLength = (keySize == KeySize.BITS_56) ? 8 : 16;
+        Cipher cipher = Cipher.getInstance(keySize == KeySize.BITS_56 ? "DES/CBC/PKCS5Padding" : "AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(data, offset, ivLength));
+        return cipher.doFinal(data, offset + ivLength, length - ivLength);
+    }
 
-        System.arraycopy(encryptedFileData, 0, extractedIV, 0, ivLength);
-        System.arraycopy(encryptedFileData, ivLength, encryptedData, 0, encryptedData.length);
+    /**
+     * Length of encryptFile() output for plainLength bytes: IV plus the
+     * PKCS5-padded ciphertext
+     */
+    public int encryptedFileLength(int plainLength) {
+        return (int) encryptedStreamLength(plainLength);
+    }
 
-        Cipher cipher;
+    /**
+     * Length of the encryptFile() output for a file of any size
+     */
+    public long encryptedStreamLength(long plainLength) {
+        int block = (keySize == KeySize.BITS_56) ? 8 : 16;
+        return block + (plainLength / block + 1) * block;
+    }
 
-        if (keySize == KeySize.BITS_56) {
-            cipher = Cipher.getInstance("DES/CBC/PKCS5Padding");
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(extractedIV));
-        } else {
-            cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(extractedIV));
+    /**
+     * HMAC-SHA256 of a numbered chunk of the given file, so chunks cannot be
+     * altered, reordered or moved to another file
+     */
+    public byte[] chunkMAC(byte[] file, long index, byte[] data, int offset, int length) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secretKey.getEncoded(), "HmacSHA256"));
+        mac.update(file);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            mac.update((byte) (index >>> shift));
         }
-
-        return cipher.doFinal(encryptedData);
+        mac.update(data, offset, length);
+        return mac.doFinal();
     }
 
     /**
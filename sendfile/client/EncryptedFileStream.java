@@ -0,0 +1,191 @@
+package sendfile.client;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import javax.crypto.Cipher;
+import sendfile.log.Log;
+import sendfile.log.Logger;
+
+/**
+ * A file encrypted in one piece, exactly as CryptoManager.encryptFile()
+ * would, but produced block by block while it is sent: a reader thread
+ * fills plain blocks from disk, an encrypter thread runs them through the
+ * cipher, and the caller takes the encrypted blocks with next() and writes
+ * them to the socket. The stages overlap, so the first bytes go out as
+ * soon as the first block is read.
+ *
+ * The stages hand blocks over in bounded queues and every block goes back
+ * to its free queue after use, so a transfer holds a few BLOCK_SIZE
+ * buffers whatever the size of the file.
+ */
+final class EncryptedFileStream implements Closeable {
+
+    private static final Logger LOG = Log.get("file");
+
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /** Blocks of each kind; one per stage plus one in each queue between them **/
+    private static final int DEPTH = 4;
+
+    /** Put in a queue instead of a block when the stage before is done **/
+    private static final Block END = new Block(0);
+
+    /**
+     * A buffer and how much of it is filled
+     */
+    static final class Block {
+        final byte[] data;
+        int length;
+
+        Block(int capacity) {
+            this.data = new byte[capacity];
+        }
+    }
+
+    private final File file;
+    private final long size;
+    private final long length;
+    private final Cipher cipher;
+    private final byte[] iv;
+
+    private final BlockingQueue<Block> freePlain = new ArrayBlockingQueue<>(DEPTH);
+    private final BlockingQueue<Block> plain = new ArrayBlockingQueue<>(DEPTH);
+    private final BlockingQueue<Block> freeSealed = new ArrayBlockingQueue<>(DEPTH);
+    private final BlockingQueue<Block> sealed = new ArrayBlockingQueue<>(DEPTH);
+
+    private final Thread reader;
+    private final Thread encrypter;
+
+    /** Why a stage stopped early; next() throws it **/
+    private volatile IOException failure;
+
+    EncryptedFileStream(File file, CryptoManager crypto) throws Exception {
+        this.file = file;
+        this.size = file.length();
+        this.length = crypto.encryptedStreamLength(size);
+        this.iv = crypto.newFileIV();
+        this.cipher = crypto.fileEncryptor(iv);
+        for (int i = 0; i < DEPTH; i++) {
+            freePlain.add(new Block(BLOCK_SIZE));
+            freeSealed.add(new Block(cipher.getOutputSize(BLOCK_SIZE)));
+        }
+        reader = new Thread(this::read, "file-reader");
+        encrypter = new Thread(this::encrypt, "file-encrypter");
+        reader.setDaemon(true);
+        encrypter.setDaemon(true);
+        reader.start();
+        encrypter.start();
+    }
+
+    /**
+     * Bytes next() hands out in all, known before the first one: the IV and
+     * the padded ciphertext
+     */
+    long length() {
+        return length;
+    }
+
+    /**
+     * The next encrypted block, or null after the last one; give it back
+     * with recycle() once it is written
+     */
+    Block next() throws IOException {
+        Block block = take(sealed);
+        if (block == END) {
+            if (failure != null) {
+                throw failure;
+            }
+            return null;
+        }
+        return block;
+    }
+
+    void recycle(Block block) {
+        freeSealed.offer(block);
+    }
+
+    /**
+     * Stop both stages, also when the transfer is cut off halfway
+     */
+    @Override
+    public void close() {
+        reader.interrupt();
+        encrypter.interrupt();
+    }
+
+    private void read() {
+        try (InputStream in = new FileInputStream(file)) {
+            long left = size;
+            while (left > 0) {
+                Block block = take(freePlain);
+                int want = (int) Math.min(block.data.length, left);
+                block.length = 0;
+                while (block.length < want) {
+                    int n = in.read(block.data, block.length, want - block.length);
+                    if (n < 0) {
+                        throw new EOFException("The file got shorter while sending it");
+                    }
+                    block.length += n;
+                }
+                left -= block.length;
+                plain.put(block);
+            }
+        } catch (InterruptedException | InterruptedIOException e) {
+            return;
+        } catch (IOException e) {
+            failure = e;
+        }
+        offerEnd(plain);
+    }
+
+    private void encrypt() {
+        try {
+            Block first = take(freeSealed);
+            System.arraycopy(iv, 0, first.data, 0, iv.length);
+            first.length = iv.length;
+            sealed.put(first);
+
+            for (Block in = take(plain); in != END; in = take(plain)) {
+                Block out = take(freeSealed);
+                out.length = cipher.update(in.data, 0, in.length, out.data, 0);
+                freePlain.put(in);
+                sealed.put(out);
+            }
+            if (failure == null) {
+                Block last = take(freeSealed);
+                last.length = cipher.doFinal(last.data, 0);
+                sealed.put(last);
+            }
+        } catch (InterruptedException | InterruptedIOException e) {
+            return;
+        } catch (Exception e) {
+            failure = new IOException("Cannot encrypt " + file.getName() + ": " + e.getMessage(), e);
+            LOG.warn(failure.getMessage());
+        }
+        offerEnd(sealed);
+    }
+
+    private static Block take(BlockingQueue<Block> queue) throws InterruptedIOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("File transfer stopped");
+        }
+    }
+
+    private static void offerEnd(BlockingQueue<Block> queue) {
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
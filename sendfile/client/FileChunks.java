@@ -0,0 +1,214 @@
+package sendfile.client;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Byte format of a resumable file transfer, the raw bytes that follow
+ * CMD_SENDFILE. The server relays them unchanged.
+ *
+ *   header: [long file size][long version][int chunk size][int first chunk][int chunk count][32 bytes MAC]
+ *   chunk:  [int index][int n][n bytes: encryptFile() of the chunk][32 bytes chunkMAC() of index and those bytes]
+ *
+ * Every chunk is encrypted with its own random IV and authenticated on its
+ * own, so chunks can be encrypted and decrypted on several cores at once
+ * (ChunkWorkers) and the receiver can keep each one as soon as it is
+ * verified (TransferCheckpoint); the next transfer of the same file starts
+ * at the first chunk it is missing (CMD_SEND_FILE_RESUME carries that
+ * offset and the version it belongs to). The version, the file's
+ * modification time, tells a changed file from the one that was cut off;
+ * a changed file is sent from the first chunk.
+ *
+ * The header is signed, and every chunk MAC covers the file's size,
+ * version and chunk size as well as the index, so chunks cannot be moved
+ * between files, reordered, or dropped from the end.
+ */
+public final class FileChunks {
+
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    public static final int MAC_LENGTH = 32;
+    public static final int HEADER_LENGTH = 8 + 8 + 4 + 4 + 4 + MAC_LENGTH;
+    private static final int CHUNK_OVERHEAD = 4 + 4 + MAC_LENGTH;
+
+    /** Index under which the header itself is signed **/
+    private static final long HEADER_INDEX = -1;
+
+    private FileChunks() {
+    }
+
+    /**
+     * What a transfer carries: the file and the chunk it starts with
+     */
+    public static final class Header {
+        public final long size;
+        public final long version;
+        public final int chunkSize;
+        public final int firstChunk;
+
+        /** size, version and chunk size, the file every MAC is bound to **/
+        private final byte[] file;
+
+        public Header(long size, long version, int chunkSize, int firstChunk) {
+            this.size = size;
+            this.version = version;
+            this.chunkSize = chunkSize;
+            this.firstChunk = firstChunk;
+            this.file = ByteBuffer.allocate(8 + 8 + 4).putLong(size).putLong(version).putInt(chunkSize).array();
+        }
+
+        public int chunkCount() {
+            return FileChunks.chunkCount(size, chunkSize);
+        }
+
+        public int chunkLength(int index) {
+            return FileChunks.chunkLength(size, chunkSize, index);
+        }
+    }
+
+    public static int chunkCount(long size, int chunkSize) {
+        return (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    public static int chunkLength(long size, int chunkSize, int index) {
+        return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+    }
+
+    /**
+     * The chunk to start with when the receiver already has offset bytes
+     */
+    public static int firstChunk(long offset, long size, int chunkSize) {
+        return (int) Math.min(Math.max(offset, 0) / chunkSize, chunkCount(size, chunkSize));
+    }
+
+    /**
+     * Bytes that follow CMD_SENDFILE, header included
+     */
+    public static long streamLength(CryptoManager crypto, Header header) {
+        long length = HEADER_LENGTH;
+        for (int i = header.firstChunk; i < header.chunkCount(); i++) {
+            length += CHUNK_OVERHEAD + crypto.encryptedFileLength(header.chunkLength(i));
+        }
+        return length;
+    }
+
+    /**
+     * The signed header, to send ahead of the chunks
+     */
+    public static byte[] header(CryptoManager crypto, Header header) throws IOException {
+        byte[] range = ByteBuffer.allocate(8).putInt(header.firstChunk).putInt(header.chunkCount()).array();
+        return ByteBuffer.allocate(HEADER_LENGTH)
+                .put(header.file).put(range).put(mac(crypto, header, HEADER_INDEX, range, 0, range.length))
+                .array();
+    }
+
+    public static Header readHeader(CryptoManager crypto, DataInputStream in) throws IOException {
+        long size = in.readLong();
+        long version = in.readLong();
+        int chunkSize = in.readInt();
+        int firstChunk = in.readInt();
+        int chunkCount = in.readInt();
+        byte[] signature = new byte[MAC_LENGTH];
+        in.readFully(signature);
+        if (size < 0 || chunkSize <= 0 || firstChunk < 0 || chunkCount != chunkCount(size, chunkSize)
+                || firstChunk > chunkCount) {
+            throw new IOException("Invalid file transfer header");
+        }
+        Header header = new Header(size, version, chunkSize, firstChunk);
+        byte[] range = ByteBuffer.allocate(8).putInt(firstChunk).putInt(chunkCount).array();
+        if (!MessageDigest.isEqual(signature, mac(crypto, header, HEADER_INDEX, range, 0, range.length))) {
+            throw new IOException("File transfer header failed authentication");
+        }
+        return header;
+    }
+
+    /**
+     * Read chunk index of the file, at its place, for encode(); any thread
+     * may do this at the same time
+     */
+    public static byte[] readPlain(FileChannel file, Header header, int index) throws IOException {
+        ByteBuffer plain = ByteBuffer.allocate(header.chunkLength(index));
+        long position = (long) index * header.chunkSize;
+        while (plain.hasRemaining()) {
+            if (file.read(plain, position + plain.position()) < 0) {
+                throw new EOFException("The file got shorter while sending it");
+            }
+        }
+        return plain.array();
+    }
+
+    /**
+     * Encrypt and authenticate the first length bytes of plain as chunk index
+     */
+    public static byte[] encode(CryptoManager crypto, Header header, int index, byte[] plain, int length) throws IOException {
+        byte[] encrypted;
+        try {
+            encrypted = crypto.encryptFile(length == plain.length ? plain : Arrays.copyOf(plain, length));
+        } catch (Exception e) {
+            throw new IOException("Cannot encrypt chunk " + index + ": " + e.getMessage(), e);
+        }
+        return ByteBuffer.allocate(CHUNK_OVERHEAD + encrypted.length)
+                .putInt(index).putInt(encrypted.length).put(encrypted)
+                .put(mac(crypto, header, index, encrypted, 0, encrypted.length))
+                .array();
+    }
+
+    /**
+     * Read the next chunk, which must be number index, as it came: the
+     * ciphertext followed by its MAC, for open()
+     */
+    public static byte[] read(CryptoManager crypto, DataInputStream in, Header header, int index) throws IOException {
+        int received = in.readInt();
+        int length = in.readInt();
+        if (received != index) {
+            throw new IOException("Expected chunk " + index + ", got " + received);
+        }
+        if (length != crypto.encryptedFileLength(header.chunkLength(index))) {
+            throw new IOException("Chunk " + index + " has an invalid length " + length);
+        }
+        byte[] sealed = new byte[length + MAC_LENGTH];
+        in.readFully(sealed);
+        return sealed;
+    }
+
+    /**
+     * Verify and decrypt a chunk from read(); any thread may do this
+     */
+    public static byte[] open(CryptoManager crypto, Header header, int index, byte[] sealed) throws IOException {
+        int length = sealed.length - MAC_LENGTH;
+        byte[] expected = mac(crypto, header, index, sealed, 0, length);
+        if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(sealed, length, sealed.length))) {
+            throw new IOException("Chunk " + index + " failed authentication");
+        }
+        byte[] plain;
+        try {
+            plain = crypto.decryptFile(sealed, 0, length);
+        } catch (Exception e) {
+            throw new IOException("Cannot decrypt chunk " + index + ": " + e.getMessage(), e);
+        }
+        if (plain.length != header.chunkLength(index)) {
+            throw new IOException("Chunk " + index + " has " + plain.length + " bytes, expected " + header.chunkLength(index));
+        }
+        return plain;
+    }
+
+    /**
+     * Read, verify and decrypt the next chunk, which must be number index
+     */
+    public static byte[] decode(CryptoManager crypto, DataInputStream in, Header header, int index) throws IOException {
+        return open(crypto, header, index, read(crypto, in, header, index));
+    }
+
+    private static byte[] mac(CryptoManager crypto, Header header, long index, byte[] data, int offset, int length)
+            throws IOException {
+        try {
+            return crypto.chunkMAC(header.file, index, data, offset, length);
+        } catch (Exception e) {
+            throw new IOException("Cannot authenticate chunk " + index + ": " + e.getMessage(), e);
+        }
+    }
+}
@@ -1,14 +1,22 @@
 package sendfile.client;
 
 import java.awt.Color;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.StringTokenizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.Vector;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
+import sendfile.log.Log;
+import sendfile.log.Logger;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.MessageStream;
+import sendfile.protocol.ProtocolException;
 
 /**
  * Enhanced client thread with integrated decryption capabilities
@@ -16,61 +24,53 @@ import javax.swing.SwingUtilities;
  */
 public class SecureClientThread implements Runnable {
 
-    private final Socket socket;
-    private DataInputStream dis;
+    private static final Logger LOG = Log.get("client");
+
+    /** Room of a CMD_HISTORY with messages to everyone **/
+    private static final String HISTORY_EVERYONE = "*";
+
+    private final MessageStream stream;
     private final SecureMainForm main;
     private final CryptoManager cryptoManager;
-    private StringTokenizer st;
 
-    public SecureClientThread(Socket socket, SecureMainForm main, CryptoManager cryptoManager) {
-        this.socket = socket;
+    /** Users currently online, updated by CMD_ONLINE and presence deltas (this thread only) **/
+    private final Set<String> onlineUsers = new LinkedHashSet<>();
+
+    /** Reply to CMD_JOIN that SecureMainForm.connect() already read, handled first **/
+    private final Message first;
+
+    public SecureClientThread(MessageStream stream, SecureMainForm main, CryptoManager cryptoManager) {
+        this(stream, main, cryptoManager, null);
+    }
+
+    public SecureClientThread(MessageStream stream, SecureMainForm main, CryptoManager cryptoManager, Message first) {
+        this.stream = stream;
         this.main = main;
         this.cryptoManager = cryptoManager;
-
-        try {
-            dis = new DataInputStream(socket.getInputStream());
-        } catch (IOException e) {
-            main.appendMessage("[IOException]: " + e.getMessage(), "Error", Color.RED, Color.RED);
-        }
+        this.first = first;
     }
 
     @Override
     public void run() {
         try {
+            if (first != null) {
+                handle(first);
+            }
             while (!Thread.currentThread().isInterrupted()) {
-                String data = dis.readUTF();
-                System.out.println("Received: " + data);
-
-                st = new StringTokenizer(data);
-                String CMD = st.nextToken();
-
-                switch (CMD) {
-                    case "CMD_MESSAGE":
-                        handleRegularMessage();
-                        break;
-
-                    case "CMD_MESSAGE_ENCRYPTED":
-                        handleEncryptedMessage();
-                        break;
-
-                    case "CMD_ONLINE":
-                        handleOnlineList();
-                        break;
-
-                    case "CMD_FILE_XD":
-                        handleFileRequest();
-                        break;
-
-                    default:
-                        System.out.println("Unknown command: " + CMD);
-                        SwingUtilities.invokeLater(() -> {
-                            main.appendMessage("[Unknown Command]: " + CMD, "System", Color.ORANGE, Color.ORANGE);
-                        });
-                        break;
+                Message message;
+                try {
+                    message = stream.read();
+                } catch (ProtocolException e) {
+                    LOG.warn("Unknown command: " + e.getMessage());
+                    SwingUtilities.invokeLater(() -> {
+                        main.appendMessage("[Unknown Command]: " + e.getMessage(), "System", Color.ORANGE, Color.ORANGE);
+                    });
+                    continue;
                 }
+                handle(message);
             }
         } catch (IOException e) {
-            System.err.println("Connection error: " + e.getMessage());
+            LOG.warn("Connection error: " + e.getMessage());
             SwingUtilities.invokeLater(() -> {
                 main.appendMessage("Connection lost to server!", "Error", Color.RED, Color.RED);
             });
@@ -78,16 +78,66 @@ public class SecureClientThread implements Runnable {
     }
 
     /**
-     * Handle regular unencrypted messages (legacy support)
+     * Dispatch one message from the server
      */
-    private void handleRegularMessage() {
-        String msg = "";
-        String from = st.nextToken();
-        while (st.hasMoreTokens()) {
-            msg = msg + " " + st.nextToken();
+    private void handle(Message message) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Received: " + message.getCommand());
         }
 
-        String finalMsg = msg;
+        switch (message.getCommand()) {
+            case MESSAGE:
+                handleRegularMessage(message);
+                break;
+
+            case MESSAGE_ENCRYPTED:
+                handleEncryptedMessage(message);
+                break;
+
+            case ROOM_MESSAGE_ENCRYPTED:
+                handleRoomMessage(message);
+                break;
+
+            case DIRECT_MESSAGE_ENCRYPTED:
+                handleDirectMessage(message);
+                break;
+
+            case HISTORY:
+                handleHistory(message);
+                break;
+
+            case ONLINE:
+                handleOnlineList(message);
+                break;
+
+            case PRESENCE_ADD:
+                handlePresence(message, true);
+                break;
+
+            case PRESENCE_REMOVE:
+                handlePresence(message, false);
+                break;
+
+            case FILE_XD:
+                handleFileRequest(message);
+                break;
+
+            default:
+                String CMD = message.getCommand().getTextName();
+                LOG.warn("Unexpected command: " + CMD);
+                SwingUtilities.invokeLater(() -> {
+                    main.appendMessage("[Unknown Command]: " + CMD, "System", Color.ORANGE, Color.ORANGE);
+                });
+                break;
+        }
+    }
+
+    /**
+     * Handle regular unencrypted messages (legacy support)
+     */
+    private void handleRegularMessage(Message message) {
+        String from = message.getString(0);
+        String finalMsg = message.getString(1);
         SwingUtilities.invokeLater(() -> {
             main.appendMessage(" " + finalMsg +" (UNENCRYPTED)", from, Color.ORANGE, Color.ORANGE);
         });
@@ -96,38 +146,95 @@ public class SecureClientThread implements Runnable {
     /**
      * Handle encrypted messages with MAC verification
      */
-    private void handleEncryptedMessage() {
+    private void handleEncryptedMessage(Message message) {
+        showEncrypted(message.getString(0), message.getString(1), message.getString(2), message.getString(0) + " ");
+    }
+
+    /**
+     * Handle CMD_ROOM_MESSAGE_ENCRYPTED [room] [from] [ciphertext] [mac]
+     */
+    private void handleRoomMessage(Message message) {
+        String room = message.getString(0);
+        String from = message.getString(1);
+        showEncrypted(from, message.getString(2), message.getString(3), from + " #" + room + " ");
+    }
+
+    /**
+     * Handle CMD_DIRECT_MESSAGE_ENCRYPTED [from] [ciphertext] [mac], sent to us only
+     */
+    private void handleDirectMessage(Message message) {
+        String from = message.getString(0);
+        SwingUtilities.invokeLater(() -> main.privateMessageFrom(from));
+        showEncrypted(from, message.getString(1), message.getString(2), from + " (private) ");
+    }
+
+    /**
+     * Handle CMD_HISTORY [room] [from ciphertext mac ...]: decrypt and verify
+     * everything here, then show it with a single GUI update
+     */
+    private void handleHistory(Message message) {
+        String room = message.getString(0);
+        String[] entries = message.getList(1);
+        int count = entries.length / 3;
+        String[] ciphertexts = new String[count];
+        for (int i = 0; i < count; i++) {
+            ciphertexts[i] = entries[i * 3 + 1];
+        }
+
+        List<String[]> lines = new ArrayList<>(count);
         try {
-            System.out.println("Processing encrypted message");
+            String[] plaintexts = cryptoManager.decryptAll(ciphertexts);
+            boolean showCiphertext = main.shouldShowCiphertext();
+            for (int i = 0; i < count; i++) {
+                String from = entries[i * 3];
+                String header = room.equals(HISTORY_EVERYONE) ? from + " " : from + " #" + room + " ";
+                if (plaintexts[i] == null) {
+                    lines.add(new String[]{header, "Decryption failed"});
+                } else if (!cryptoManager.verifyMAC(plaintexts[i], entries[i * 3 + 2])) {
+                    lines.add(new String[]{header, "Message integrity verification FAILED! Possible tampering detected."});
+                } else {
+                    lines.add(new String[]{header, showCiphertext
+                            ? plaintexts[i] + "\n " + ciphertexts[i] : " " + plaintexts[i]});
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("Cannot decrypt history", e);
+            return;
+        }
 
-            String from = st.nextToken();
-            String encryptedMsg = st.nextToken();
-            String mac = st.nextToken();
+        String title = count + " recent messages" + (room.equals(HISTORY_EVERYONE) ? "" : " in #" + room);
+        SwingUtilities.invokeLater(() -> main.appendHistory(title, lines));
+    }
 
-            System.out.println("From: " + from + ", Encrypted: " + encryptedMsg.substring(0, Math.min(20, encryptedMsg.length())) + "...");
+    /**
+     * Decrypt, verify the MAC and show a message under the given header
+     */
+    private void showEncrypted(String from, String encryptedMsg, String mac, String header) {
+        try {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Encrypted message from: " + from + ", Encrypted: "
+                        + encryptedMsg.substring(0, Math.min(20, encryptedMsg.length())) + "...");
+            }
 
             // Decrypt message
             String decryptedMsg = cryptoManager.decrypt(encryptedMsg);
-            System.out.println("Decrypted: " + decryptedMsg);
 
             // Verify MAC for message integrity
             if (cryptoManager.verifyMAC(decryptedMsg, mac)) {
                 // Use SwingUtilities.invokeLater for GUI updates
                 SwingUtilities.invokeLater(() -> {
                     try {
-                        System.out.println(" Updating GUI with message: " + decryptedMsg);
-
                         // Display the message in GUI
                         if (main.shouldShowCiphertext()) {
                             String displayMsg = "" + decryptedMsg + "\n " + encryptedMsg;
-                            main.appendMessage(displayMsg, from + " ", Color.MAGENTA, Color.BLUE);
+                            main.appendMessage(displayMsg, header, Color.MAGENTA, Color.BLUE);
                         } else {
-                            main.appendMessage(" " + decryptedMsg, from + " ", Color.MAGENTA, Color.BLUE);
+                            main.appendMessage(" " + decryptedMsg, header, Color.MAGENTA, Color.BLUE);
                         }
 
 
                     } catch (Exception e) {
-                        e.printStackTrace();
+                        LOG.error("Cannot display message from " + from, e);
                     }
                 });
 
@@ -140,7 +247,7 @@ public class SecureClientThread implements Runnable {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            LOG.warn("Decryption failed", e);
 
             // Show error in GUI
             SwingUtilities.invokeLater(() -> {
@@ -152,10 +259,28 @@ public class SecureClientThread implements Runnable {
     /**
      * Handle online user list
      */
-    private void handleOnlineList() {
+    private void handleOnlineList(Message message) {
+        onlineUsers.clear();
+        onlineUsers.addAll(Arrays.asList(message.getList(0)));
+        showOnlineList();
+    }
+
+    /**
+     * Handle users joining or leaving since the last update
+     */
+    private void handlePresence(Message message, boolean added) {
+        List<String> users = Arrays.asList(message.getList(0));
+        if (added) {
+            onlineUsers.addAll(users);
+        } else {
+            onlineUsers.removeAll(users);
+        }
+        showOnlineList();
+    }
+
+    private void showOnlineList() {
         Vector<String> online = new Vector<>();
-        while (st.hasMoreTokens()) {
-            String user = st.nextToken();
+        for (String user : onlineUsers) {
             if (!user.equalsIgnoreCase(main.getMyUsername())) {
                 online.add(user);
             }
@@ -169,10 +294,10 @@ public class SecureClientThread implements Runnable {
     /**
      * Handle encrypted file transfer request
      */
-    private void handleFileRequest() {
-        String sender = st.nextToken();
-        String receiver = st.nextToken();
-        String fname = st.nextToken();
+    private void handleFileRequest(Message message) {
+        String sender = message.getString(0);
+        String receiver = message.getString(1);
+        String fname = message.getString(2);
 
         SwingUtilities.invokeLater(() -> {
             int confirm = JOptionPane.showConfirmDialog(
@@ -192,27 +317,23 @@ public class SecureClientThread implements Runnable {
                     // Accept encrypted file transfer
                     main.openFolder();
 
-                    DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                    String format = "CMD_SEND_FILE_ACCEPT " + sender + " Secure transfer accepted";
-                    dos.writeUTF(format);
-
                     // Create secure file receiving socket
                     Socket fSoc = new Socket(main.getMyHost(), main.getMyPort());
-                    DataOutputStream fdos = new DataOutputStream(fSoc.getOutputStream());
-                    fdos.writeUTF("CMD_SHARINGSOCKET " + main.getMyUsername());
+                    MessageStream fStream = MessageStream.connect(fSoc, main.getWireFormat());
+                    fStream.write(Message.of(Command.SHARINGSOCKET, main.getMyUsername()));
 
-                    // Start secure file receiving thread
-                    new Thread(new SecureReceivingFileThread(fSoc, main, cryptoManager)).start();
+                    // Start secure file receiving thread; it accepts (CMD_SEND_FILE_RESUME) on this
+                    // socket, so the server has registered it before the sender starts
+                    new Thread(new SecureReceivingFileThread(fSoc, fStream, main, cryptoManager, sender, fname)).start();
 
                 } else {
                     // Reject file transfer
-                    DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                    String format = "CMD_SEND_FILE_ERROR " + sender + " User rejected the secure file transfer request.";
-                    dos.writeUTF(format);
+                    stream.write(Message.of(Command.SEND_FILE_ERROR, sender,
+                            "User rejected the secure file transfer request."));
                 }
             } catch (IOException e) {
                 main.appendMessage("File transfer setup error: " + e.getMessage(), "Error", Color.RED, Color.RED);
-                System.err.println("File transfer error: " + e.getMessage());
+                LOG.warn("File transfer error: " + e.getMessage());
             }
         });
     }
@@ -4,6 +4,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import sendfile.protocol.WireFormat;
 
 /**
  * Enhanced login form with password and encryption settings
@@ -18,6 +19,7 @@ public class SecureLoginForm extends javax.swing.JFrame {
     private javax.swing.JButton btnLogin;
     private javax.swing.JLabel lblStatus;
     private javax.swing.JCheckBox chkShowPassword;
+    private javax.swing.JCheckBox chkLegacyProtocol;
 
     public SecureLoginForm() {
         initComponents();
@@ -69,6 +71,9 @@ public class SecureLoginForm extends javax.swing.JFrame {
         cmbKeySize.setSelectedIndex(1); // Default to AES-128
         cmbKeySize.setFont(new Font("Tahoma", Font.PLAIN, 12));
 
+        chkLegacyProtocol = new JCheckBox("Legacy text protocol (old servers)");
+        chkLegacyProtocol.setFont(new Font("Tahoma", Font.PLAIN, 10));
+
         btnLogin = new JButton("SECURE LOGIN");
         btnLogin.setBackground(new Color(255, 153, 153));
         btnLogin.setForeground(Color.BLACK);
@@ -143,19 +148,23 @@ public class SecureLoginForm extends javax.swing.JFrame {
         gbc.gridx = 1; gbc.anchor = GridBagConstraints.WEST;
         add(cmbKeySize, gbc);
 
+        // Protocol
+        gbc.gridx = 1; gbc.gridy = 7;
+        add(chkLegacyProtocol, gbc);
+
         // Login button
-        gbc.gridx = 0; gbc.gridy = 7; gbc.gridwidth = 2;
+        gbc.gridx = 0; gbc.gridy = 8; gbc.gridwidth = 2;
         gbc.anchor = GridBagConstraints.CENTER;
         gbc.fill = GridBagConstraints.HORIZONTAL;
         add(btnLogin, gbc);
 
         // Status
-        gbc.gridx = 0; gbc.gridy = 8; gbc.gridwidth = 2;
+        gbc.gridx = 0; gbc.gridy = 9; gbc.gridwidth = 2;
         gbc.fill = GridBagConstraints.NONE;
         add(lblStatus, gbc);
 
         // Security info
-        gbc.gridx = 0; gbc.gridy = 9; gbc.gridwidth = 2;
+        gbc.gridx = 0; gbc.gridy = 10; gbc.gridwidth = 2;
         gbc.fill = GridBagConstraints.HORIZONTAL;
         add(securityInfo, gbc);
 
@@ -208,7 +217,8 @@ public class SecureLoginForm extends javax.swing.JFrame {
 
             // Create secure main form
             SecureMainForm mainForm = new SecureMainForm();
-            mainForm.initFrame(username.replace(" ", "_"), host, Integer.parseInt(port), cryptoManager);
+            WireFormat wireFormat = chkLegacyProtocol.isSelected() ? WireFormat.TEXT : WireFormat.BINARY;
+            mainForm.initFrame(username.replace(" ", "_"), host, Integer.parseInt(port), cryptoManager, wireFormat);
 
             if (mainForm.isConnected()) {
                 mainForm.setLocationRelativeTo(null);
@@ -1,22 +1,42 @@
 package sendfile.client;
 
 import java.awt.*;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Vector;
 import javax.swing.*;
+import sendfile.log.Log;
+import sendfile.log.Logger;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.MessageStream;
+import sendfile.protocol.WireFormat;
 /**
  * Secure main form with integrated encryption display
  */
 public class SecureMainForm extends javax.swing.JFrame {
 
+    private static final Logger LOG = Log.get("client");
+
+    /** A cluster node may send us on to the user's node (CMD_REDIRECT); more hops mean the nodes disagree **/
+    private static final int MAX_REDIRECTS = 3;
+
+    /** How long connect() waits for the answer to CMD_JOIN **/
+    private static final int JOIN_TIMEOUT_MILLIS = 10000;
+
+    /** Entries of the conversation selector: everyone (CMD_CHATALL_ENCRYPTED), #room, @user (private) **/
+    private static final String EVERYONE = "Everyone";
+    private static final String ROOM = "#";
+    private static final String PRIVATE = "@";
+
     private String username;
     private String host;
     private int port;
     private Socket socket;
-    private DataOutputStream dos;
+    private MessageStream stream;
+    private WireFormat wireFormat = WireFormat.BINARY;
     private CryptoManager cryptoManager;
     private boolean isConnected = false;
     private String mydownloadfolder = "C:\\";
@@ -31,17 +51,19 @@ public class SecureMainForm extends javax.swing.JFrame {
     private javax.swing.JCheckBox chkShowCiphertext;
     private javax.swing.JButton btnKeyInfo;
     private javax.swing.JProgressBar encryptionProgress;
+    private javax.swing.JComboBox<String> conversationSelector;
 
     public SecureMainForm() {
         initComponents();
         setLocationRelativeTo(null);
     }
 
-    public void initFrame(String username, String host, int port, CryptoManager cryptoManager) {
+    public void initFrame(String username, String host, int port, CryptoManager cryptoManager, WireFormat wireFormat) {
         this.username = username;
         this.host = host;
         this.port = port;
         this.cryptoManager = cryptoManager;
+        this.wireFormat = wireFormat;
         setTitle("Secure Chat - " + username + " (" + cryptoManager.getKeyInfo() + ")");
         connect();
     }
@@ -59,6 +81,7 @@ public class SecureMainForm extends javax.swing.JFrame {
         chkShowCiphertext = new JCheckBox("Show Ciphertext");
         btnKeyInfo = new JButton("Key Info");
         encryptionProgress = new JProgressBar();
+        conversationSelector = new JComboBox<>(new String[] {EVERYONE});
 
         // Configure main chat area
         jTextPane1.setEditable(false);
@@ -80,6 +103,10 @@ public class SecureMainForm extends javax.swing.JFrame {
         jButton1.setBorder(BorderFactory.createRaisedBevelBorder());
         jButton1.setCursor(new Cursor(Cursor.HAND_CURSOR));
 
+        // Configure conversation selector: where the next message goes
+        conversationSelector.setFont(new Font("Tahoma", Font.PLAIN, 12));
+        conversationSelector.setToolTipText("Send to everyone, to one of your rooms or to one user");
+
         // Configure encryption info
         lblEncryptionInfo.setFont(new Font("Arial", Font.BOLD, 11));
         lblEncryptionInfo.setForeground(new Color(0, 100, 0));
@@ -127,9 +154,22 @@ public class SecureMainForm extends javax.swing.JFrame {
         sendFileItem.addActionListener(e -> sendEncryptedFile());
         fileMenu.add(sendFileItem);
 
+        JMenu roomsMenu = new JMenu("Conversations");
+        JMenuItem joinRoomItem = new JMenuItem("Join Room...");
+        joinRoomItem.addActionListener(e -> joinRoom());
+        JMenuItem privateItem = new JMenuItem("Private Message...");
+        privateItem.addActionListener(e -> startPrivate());
+        JMenuItem leaveRoomItem = new JMenuItem("Close Current (Leave Room)");
+        leaveRoomItem.addActionListener(e -> closeConversation());
+        roomsMenu.add(joinRoomItem);
+        roomsMenu.add(privateItem);
+        roomsMenu.addSeparator();
+        roomsMenu.add(leaveRoomItem);
+
         menuBar.add(accountMenu);
         menuBar.add(securityMenu);
         menuBar.add(fileMenu);
+        menuBar.add(roomsMenu);
         setJMenuBar(menuBar);
 
         // Layout
@@ -143,6 +183,7 @@ public class SecureMainForm extends javax.swing.JFrame {
 
         // Input panel
         JPanel inputPanel = new JPanel(new BorderLayout());
+        inputPanel.add(conversationSelector, BorderLayout.WEST);
         inputPanel.add(jTextField1, BorderLayout.CENTER);
         inputPanel.add(jButton1, BorderLayout.EAST);
         inputPanel.add(encryptionProgress, BorderLayout.SOUTH);
@@ -189,11 +230,20 @@ public class SecureMainForm extends javax.swing.JFrame {
         appendMessage("Connecting with " + cryptoManager.getKeyInfo() + "...", "System", Color.BLUE, Color.BLUE);
 
         try {
-            socket = new Socket(host, port);
-            dos = new DataOutputStream(socket.getOutputStream());
-
-            // Send join command
-            dos.writeUTF("CMD_JOIN " + username);
+            Message reply = join();
+            for (int redirects = 0; reply.getCommand() == Command.REDIRECT; redirects++) {
+                // CMD_REDIRECT [node] [host] [port]: this user belongs on another node of the cluster
+                if (redirects == MAX_REDIRECTS) {
+                    throw new IOException("Redirected more than " + MAX_REDIRECTS + " times");
+                }
+                socket.close();
+                host = reply.getString(1);
+                port = (int) reply.getLong(2);
+                LOG.info("Redirected to " + reply.getString(0) + " at " + host + ":" + port);
+                appendMessage("Redirected to node " + reply.getString(0) + " (" + host + ":" + port + ")",
+                        "System", Color.BLUE, Color.BLUE);
+                reply = join();
+            }
             appendMessage("Connected securely!", "System", Color.GREEN, Color.GREEN);
             appendMessage(" All messages are now encrypted end-to-end", "System", Color.GREEN, Color.GREEN);
 
@@ -204,7 +254,7 @@ public class SecureMainForm extends javax.swing.JFrame {
             isConnected = true;
 
             // Start client thread
-            new Thread(new SecureClientThread(socket, this, cryptoManager)).start();
+            new Thread(new SecureClientThread(stream, this, cryptoManager, reply)).start();
 
         } catch (IOException e) {
             isConnected = false;
@@ -214,9 +264,26 @@ public class SecureMainForm extends javax.swing.JFrame {
         }
     }
 
+    /**
+     * Connect to host:port, send CMD_JOIN and wait for the answer: CMD_ONLINE,
+     * or CMD_REDIRECT from a cluster node that is not this user's
+     */
+    private Message join() throws IOException {
+        socket = new Socket(host, port);
+        stream = MessageStream.connect(socket, wireFormat);
+
+        // Send join command
+        stream.write(Message.of(Command.JOIN, username));
+        socket.setSoTimeout(JOIN_TIMEOUT_MILLIS);
+        Message reply = stream.read();
+        socket.setSoTimeout(0);
+        return reply;
+    }
+
     private void sendMessage(java.awt.event.ActionEvent evt) {
         String message = jTextField1.getText().trim();
         if (message.isEmpty()) return;
+        String target = selectedConversation();
 
         new Thread(() -> {
             try {
@@ -231,16 +298,23 @@ public class SecureMainForm extends javax.swing.JFrame {
                 String encryptedMessage = cryptoManager.encrypt(message);
                 String mac = cryptoManager.generateMAC(message);
 
-                // Send encrypted message with MAC
-                String content = username + " " + encryptedMessage + " " + mac;
-                dos.writeUTF("CMD_CHATALL_ENCRYPTED " + content);
+                // Send encrypted message with MAC, to the selected user, room or everyone
+                if (target == null) {
+                    stream.write(Message.of(Command.CHATALL_ENCRYPTED, username, encryptedMessage, mac));
+                } else if (target.startsWith(PRIVATE)) {
+                    stream.write(Message.of(Command.CHAT_ENCRYPTED, username, target.substring(1), encryptedMessage, mac));
+                } else {
+                    stream.write(Message.of(Command.CHATROOM_ENCRYPTED, username, target.substring(1), encryptedMessage, mac));
+                }
 
                 // Display in chat
+                String header = target == null ? username
+                        : target.startsWith(PRIVATE) ? username + " to " + target : username + " " + target;
                 SwingUtilities.invokeLater(() -> {
                     if (chkShowCiphertext.isSelected()) {
-                        appendMyMessage(" " + message + "\n " + encryptedMessage, username);
+                        appendMyMessage(" " + message + "\n " + encryptedMessage, header);
                     } else {
-                        appendMyMessage(" " + message, username);
+                        appendMyMessage(" " + message, header);
                     }
 
                     jTextField1.setText("");
@@ -258,6 +332,89 @@ public class SecureMainForm extends javax.swing.JFrame {
         }).start();
     }
 
+    /**
+     * #room or @user picked in the selector, or null for everyone
+     */
+    private String selectedConversation() {
+        Object selected = conversationSelector.getSelectedItem();
+        return selected == null || EVERYONE.equals(selected) ? null : (String) selected;
+    }
+
+    /**
+     * Add a conversation to the selector unless it is there; true if added
+     */
+    private boolean addConversation(String conversation) {
+        if (((DefaultComboBoxModel<String>) conversationSelector.getModel()).getIndexOf(conversation) >= 0) {
+            return false;
+        }
+        conversationSelector.addItem(conversation);
+        return true;
+    }
+
+    /**
+     * A private message arrived: offer the sender in the selector for replies
+     */
+    public void privateMessageFrom(String from) {
+        addConversation(PRIVATE + from);
+    }
+
+    private void startPrivate() {
+        if (!isConnected) return;
+        String user = JOptionPane.showInputDialog(this, "Send private messages to user:",
+                "Private Message", JOptionPane.QUESTION_MESSAGE);
+        if (user == null || user.trim().isEmpty()) return;
+        user = user.trim().replace(" ", "_");
+        if (user.equals(username)) return;
+        addConversation(PRIVATE + user);
+        conversationSelector.setSelectedItem(PRIVATE + user);
+    }
+
+    private void joinRoom() {
+        if (!isConnected) return;
+        String room = JOptionPane.showInputDialog(this,
+                "Room name (letters, digits, - and _, up to 32 characters):",
+                "Join Room", JOptionPane.QUESTION_MESSAGE);
+        if (room == null) return;
+        room = room.trim();
+        if (!room.matches("[A-Za-z0-9_-]{1,32}")) {
+            JOptionPane.showMessageDialog(this, "Invalid room name: " + room, "Join Room", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (!addConversation(ROOM + room)) {
+            conversationSelector.setSelectedItem(ROOM + room);
+            return;
+        }
+        try {
+            stream.write(Message.of(Command.ROOM_JOIN, room));
+            conversationSelector.setSelectedItem(ROOM + room);
+            appendMessage("Joined room #" + room, "System", Color.BLUE, Color.BLUE);
+        } catch (IOException e) {
+            appendMessage("Cannot join room: " + e.getMessage(), "Error", Color.RED, Color.RED);
+        }
+    }
+
+    /**
+     * Drop the selected conversation; for a room that means leaving it
+     */
+    private void closeConversation() {
+        String conversation = selectedConversation();
+        if (conversation == null || !isConnected) return;
+        if (conversation.startsWith(PRIVATE)) {
+            conversationSelector.removeItem(conversation);
+            conversationSelector.setSelectedItem(EVERYONE);
+            return;
+        }
+        String room = conversation.substring(1);
+        try {
+            stream.write(Message.of(Command.ROOM_LEAVE, room));
+            conversationSelector.removeItem(conversation);
+            conversationSelector.setSelectedItem(EVERYONE);
+            appendMessage("Left room #" + room, "System", Color.BLUE, Color.BLUE);
+        } catch (IOException e) {
+            appendMessage("Cannot leave room: " + e.getMessage(), "Error", Color.RED, Color.RED);
+        }
+    }
+
     private void showKeyInfo(java.awt.event.ActionEvent evt) {
         String info = String.format(
                 "Encryption Information\n\n" +
@@ -327,7 +484,7 @@ public class SecureMainForm extends javax.swing.JFrame {
                 setVisible(false);
                 new SecureLoginForm().setVisible(true);
             } catch (IOException e) {
-                System.out.println("Logout error: " + e.getMessage());
+                LOG.warn("Logout error: " + e.getMessage());
             }
         }
     }
@@ -350,7 +507,27 @@ public class SecureMainForm extends javax.swing.JFrame {
 
 
         } catch (Exception e) {
-            e.printStackTrace();
+            LOG.error("Cannot display message", e);
+        }
+    }
+
+    /**
+     * Show replayed history in one go: a title line, then [header, text]
+     * for every message, scrolling once at the end
+     */
+    public void appendHistory(String title, List<String[]> lines) {
+        try {
+            jTextPane1.setEditable(true);
+            getMsgHeader("History", Color.BLUE);
+            getMsgContent(title, Color.GRAY);
+            for (String[] line : lines) {
+                getMsgHeader(line[0], Color.MAGENTA);
+                getMsgContent(line[1], Color.BLUE);
+            }
+            jTextPane1.setEditable(false);
+            jTextPane1.setCaretPosition(jTextPane1.getDocument().getLength());
+        } catch (Exception e) {
+            LOG.error("Cannot display history", e);
         }
     }
 
@@ -474,6 +651,10 @@ public class SecureMainForm extends javax.swing.JFrame {
         return this.port;
     }
 
+    public WireFormat getWireFormat() {
+        return this.wireFormat;
+    }
+
     public CryptoManager getCryptoManager() {
         return this.cryptoManager;
     }
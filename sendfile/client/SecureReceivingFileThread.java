@@ -2,120 +2,125 @@ package sendfile.client;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketException;
 import java.text.DecimalFormat;
-import java.util.StringTokenizer;
 import javax.swing.JOptionPane;
+import sendfile.log.Log;
+import sendfile.log.Logger;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.MessageStream;
+import sendfile.protocol.ProtocolException;
 
 /**
- * Thread for receiving and decrypting files
+ * Thread for receiving and decrypting files.
+ *
+ * Asks the sender for the file with CMD_SEND_FILE_RESUME on the sharing
+ * socket, from the first byte an earlier, interrupted transfer did not
+ * deliver (TransferCheckpoint), and then takes the chunks in order while
+ * they are verified and decrypted on all cores (ChunkWorkers). Each is on
+ * disk before the checkpoint moves past it, so a broken connection loses
+ * at most the chunks in flight.
  */
 public class SecureReceivingFileThread implements Runnable {
 
+    private static final Logger LOG = Log.get("file");
+
     protected Socket socket;
-    protected DataInputStream dis;
-    protected DataOutputStream dos;
+    protected MessageStream stream;
     protected SecureMainForm main;
     protected CryptoManager cryptoManager;
-    protected StringTokenizer st;
     protected DecimalFormat df = new DecimalFormat("##,#00");
-    private final int BUFFER_SIZE = 8192;
 
-    public SecureReceivingFileThread(Socket socket, SecureMainForm main, CryptoManager cryptoManager) {
+    /** The transfer this socket was opened for (CMD_FILE_XD) **/
+    private final String sender;
+    private final String filename;
+
+    public SecureReceivingFileThread(Socket socket, MessageStream stream, SecureMainForm main, CryptoManager cryptoManager,
+                                     String sender, String filename) {
         this.socket = socket;
+        this.stream = stream;
         this.main = main;
         this.cryptoManager = cryptoManager;
-
-        try {
-            dos = new DataOutputStream(socket.getOutputStream());
-            dis = new DataInputStream(socket.getInputStream());
-        } catch (IOException e) {
-            System.err.println("[SecureReceivingFileThread]: " + e.getMessage());
-        }
+        this.sender = sender;
+        this.filename = filename;
     }
 
     @Override
     public void run() {
+        TransferCheckpoint checkpoint = TransferCheckpoint.open(new File(main.getMyDownloadFolder() + filename), sender);
         try {
+            long offset = checkpoint.getOffset();
+            stream.write(Message.of(Command.SEND_FILE_RESUME, sender, filename, offset, checkpoint.getVersion()));
+            if (offset > 0) {
+                LOG.info("Resuming " + filename + " from " + sender + " after " + offset + " bytes");
+            }
+
             while (!Thread.currentThread().isInterrupted()) {
-                String data = dis.readUTF();
-                st = new StringTokenizer(data);
-                String CMD = st.nextToken();
+                Message message;
+                try {
+                    message = stream.read();
+                } catch (ProtocolException e) {
+                    LOG.warn("Unknown command in secure file thread: " + e.getMessage());
+                    continue;
+                }
 
-                switch (CMD) {
-                    case "CMD_SENDFILE":
-                        handleEncryptedFileReceive();
-                        break;
+                switch (message.getCommand()) {
+                    case FILE_INCOMING:
+                        handleEncryptedFileReceive(message, checkpoint);
+                        return;
 
                     default:
-                        System.err.println("Unknown command in secure file thread: " + CMD);
+                        LOG.warn("Unknown command in secure file thread: " + message.getCommand().getTextName());
                         break;
                 }
             }
         } catch (IOException e) {
-            System.err.println("[SecureReceivingFileThread]: " + e.getMessage());
+            LOG.warn("[SecureReceivingFileThread]: " + e.getMessage());
+        } finally {
+            checkpoint.close();
         }
     }
 
     /**
-     * Handle receiving and decrypting file
+     * Handle receiving and decrypting file: CMD_FILE_INCOMING [filename] [size] [consignee],
+     * then the chunks (FileChunks)
      */
-    private void handleEncryptedFileReceive() {
-        String consignee = null;
-        FileOutputStream fos = null;
-        InputStream input = null;
+    private void handleEncryptedFileReceive(Message message, TransferCheckpoint checkpoint) {
+        String consignee = message.getString(2);
+        long received = checkpoint.getOffset();
+        long size = 0;
 
         try {
-            String filename = st.nextToken();
-            long encryptedFileSize = Long.parseLong(st.nextToken());
-            consignee = st.nextToken();
-
             main.setTitle("Receiving encrypted file...");
-            System.out.println("Receiving encrypted file...");
-            System.out.println("From: " + consignee);
-            System.out.println("Encrypted size: " + encryptedFileSize + " bytes");
+            LOG.info("Receiving encrypted file " + filename + " from " + consignee
+                    + ", " + message.getLong(1) + " bytes on the wire");
 
-            String downloadPath = main.getMyDownloadFolder() + filename;
-
-            // Receive encrypted file data
-            input = socket.getInputStream();
-            ByteArrayOutputStream encryptedDataStream = new ByteArrayOutputStream();
-
-            byte[] buffer = new byte[BUFFER_SIZE];
-            long totalReceived = 0;
-            int bytesRead;
+            DataInputStream input = new DataInputStream(stream.getInputStream());
+            FileChunks.Header header = FileChunks.readHeader(cryptoManager, input);
+            checkpoint.begin(header);
+            size = header.size;
+            int count = header.chunkCount();
 
             main.setTitle("Downloading encrypted file...");
-
-            while (totalReceived < encryptedFileSize && (bytesRead = input.read(buffer)) != -1) {
-                int bytesToWrite = (int) Math.min(bytesRead, encryptedFileSize - totalReceived);
-                encryptedDataStream.write(buffer, 0, bytesToWrite);
-                totalReceived += bytesToWrite;
-
-                // Update progress
-                int progress = (int) ((totalReceived * 100.0) / encryptedFileSize);
-                main.setTitle(String.format("Downloading encrypted file... %d%%", progress));
-
-                if (totalReceived >= encryptedFileSize) {
-                    break;
+            ChunkWorkers workers = new ChunkWorkers();
+            try {
+                int done = header.firstChunk;
+                for (int i = header.firstChunk; i < count; i++) {
+                    int index = i;
+                    byte[] sealed = FileChunks.read(cryptoManager, input, header, index);
+                    workers.submit(() -> FileChunks.open(cryptoManager, header, index, sealed));
+                    if (workers.isFull()) {
+                        received = keep(checkpoint, header, done++, workers.next());
+                    }
+                }
+                while (!workers.isEmpty()) {
+                    received = keep(checkpoint, header, done++, workers.next());
                 }
+            } finally {
+                workers.cancel();
             }
-
-            // Get encrypted data
-            byte[] encryptedData = encryptedDataStream.toByteArray();
-            encryptedDataStream.close();
-
-            // Decrypt the file
-            main.setTitle("Decrypting file...");
-            System.out.println("Decrypting file with " + cryptoManager.getKeyInfo());
-
-            byte[] decryptedData = cryptoManager.decryptFile(encryptedData);
-
-            // Save decrypted file
-            main.setTitle(" Saving decrypted file...");
-            fos = new FileOutputStream(downloadPath);
-            fos.write(decryptedData);
-            fos.flush();
-            fos.close();
+            File saved = checkpoint.complete();
 
             // Success
             main.setTitle("Secure file received!");
@@ -124,42 +129,50 @@ public class SecureReceivingFileThread implements Runnable {
                     "🔐 Encrypted file received and decrypted successfully!\n\n" +
                             "File: %s\n" +
                             "From: %s\n" +
-                            "Encrypted size: %s\n" +
-                            "Decrypted size: %s\n" +
+                            "Size: %s%s\n" +
                             "Saved to: %s\n" +
-                            "Decryption: %s",
+                            "Decryption: %s, %d authenticated chunks",
                     filename,
                     consignee,
-                    formatFileSize(encryptedData.length),
-                    formatFileSize(decryptedData.length),
-                    downloadPath,
-                    cryptoManager.getKeyInfo()
+                    formatFileSize(size),
+                    header.firstChunk > 0 ? " (resumed after " + formatFileSize((long) header.firstChunk * header.chunkSize) + ")" : "",
+                    saved.getPath(),
+                    cryptoManager.getKeyInfo(),
+                    count
             );
 
             JOptionPane.showMessageDialog(main, successMsg,
                     "Secure File Received", JOptionPane.INFORMATION_MESSAGE);
 
-            System.out.println("Encrypted file received and decrypted successfully: " + downloadPath);
+            LOG.info("Encrypted file received and decrypted successfully: " + saved.getPath());
 
             // Reset title
             main.setTitle(" Secure Chat - " + main.getMyUsername() + " (" + cryptoManager.getKeyInfo() + ")");
 
-        } catch (NumberFormatException e) {
-            handleFileError(consignee, "Invalid file size format");
+        } catch (EOFException | SocketException e) {
+            // Cut off: what was verified stays for the next attempt
+            handleFileError(consignee, "Transfer interrupted after " + formatFileSize(received)
+                    + (size > 0 ? " of " + formatFileSize(size) : "")
+                    + "; it resumes from there when " + consignee + " sends the file again");
+            LOG.warn("Secure file receive interrupted: " + e.getMessage());
         } catch (Exception e) {
             handleFileError(consignee, "File decryption failed: " + e.getMessage());
-            e.printStackTrace();
-        } finally {
-            // Clean up resources
-            try {
-                if (fos != null) fos.close();
-                if (input != null) input.close();
-            } catch (IOException e) {
-                System.err.println("Error closing file resources: " + e.getMessage());
-            }
+            LOG.error("Secure file receive failed", e);
         }
     }
 
+    /**
+     * Write a decrypted chunk and show how far the file got; the verified offset
+     */
+    private long keep(TransferCheckpoint checkpoint, FileChunks.Header header, int index, byte[] chunk)
+            throws IOException {
+        checkpoint.write(header, index, chunk);
+        long received = checkpoint.getOffset();
+        int progress = (int) (received * 100 / Math.max(header.size, 1));
+        main.setTitle(String.format("Downloading encrypted file... %d%%", progress));
+        return received;
+    }
+
     /**
      * Handle file transfer errors
      */
@@ -167,11 +180,10 @@ public class SecureReceivingFileThread implements Runnable {
         try {
             // Send error response to sender
             if (consignee != null) {
-                DataOutputStream errorDos = new DataOutputStream(socket.getOutputStream());
-                errorDos.writeUTF("CMD_SENDFILERESPONSE " + consignee + " " + errorMessage);
+                stream.write(Message.of(Command.SENDFILERESPONSE, consignee, errorMessage));
             }
 
-            System.err.println("Secure file receive error: " + errorMessage);
+            LOG.warn("Secure file receive error: " + errorMessage);
 
             main.setTitle("Secure file transfer failed!");
 
@@ -185,7 +197,7 @@ public class SecureReceivingFileThread implements Runnable {
             socket.close();
 
         } catch (IOException e) {
-            System.err.println("Error sending file error response: " + e.getMessage());
+            LOG.warn("Error sending file error response: " + e.getMessage());
         }
     }
 
@@ -1,24 +1,27 @@
 package sendfile.client;
 
 import java.awt.*;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
-import java.util.StringTokenizer;
 import javax.swing.*;
+import sendfile.log.Log;
+import sendfile.log.Logger;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.MessageStream;
+import sendfile.protocol.ProtocolException;
 
 /**
  * Secure file sending form with encryption
  */
 public class SecureSendFile extends javax.swing.JFrame {
 
+    private static final Logger LOG = Log.get("file");
+
     private Socket socket;
-    private DataInputStream dis;
-    private DataOutputStream dos;
+    private MessageStream stream;
     private String myusername;
-    private StringTokenizer st;
     private String sendTo;
     private String file;
     private SecureMainForm main;
@@ -49,18 +52,17 @@ public class SecureSendFile extends javax.swing.JFrame {
 
         try {
             socket = new Socket(host, port);
-            dos = new DataOutputStream(socket.getOutputStream());
-            dis = new DataInputStream(socket.getInputStream());
+            stream = MessageStream.connect(socket, main.getWireFormat());
 
             // Format: CMD_SHARINGSOCKET [sender]
-            String format = "CMD_SHARINGSOCKET " + myusername;
-            dos.writeUTF(format);
-            System.out.println("Secure file sharing initialized: " + format);
+            Message format = Message.of(Command.SHARINGSOCKET, myusername);
+            stream.write(format);
+            LOG.info("Secure file sharing initialized: " + format);
 
             new Thread(new SecureSendFileThread(this)).start();
             return true;
         } catch (IOException e) {
-            System.err.println("Secure file sharing setup error: " + e.getMessage());
+            LOG.warn("Secure file sharing setup error: " + e.getMessage());
         }
         return false;
     }
@@ -220,9 +222,9 @@ public class SecureSendFile extends javax.swing.JFrame {
         try {
             // Send file transfer request
             String fname = getCleanFilename(file);
-            String format = "CMD_SEND_FILE_XD " + myusername + " " + sendTo + " " + fname;
-            dos.writeUTF(format);
-            System.out.println("Secure file transfer request: " + format);
+            Message format = Message.of(Command.SEND_FILE_XD, myusername, sendTo, fname);
+            stream.write(format);
+            LOG.info("Secure file transfer request: " + format);
 
             updateBtn("Requesting secure transfer...");
             btnSendFile.setEnabled(false);
@@ -230,7 +232,7 @@ public class SecureSendFile extends javax.swing.JFrame {
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Failed to initiate secure file transfer: " + e.getMessage(),
                     "Transfer Error", JOptionPane.ERROR_MESSAGE);
-            System.err.println("File transfer request error: " + e.getMessage());
+            LOG.warn("File transfer request error: " + e.getMessage());
         }
     }
 
@@ -314,7 +316,7 @@ public class SecureSendFile extends javax.swing.JFrame {
                     socket.close();
                 }
             } catch (IOException e) {
-                System.err.println("Error closing connection: " + e.getMessage());
+                LOG.warn("Error closing connection: " + e.getMessage());
             }
             dispose();
         }
@@ -323,16 +325,17 @@ public class SecureSendFile extends javax.swing.JFrame {
         public void run() {
             try {
                 while (!Thread.currentThread().isInterrupted()) {
-                    String data = dis.readUTF();
-                    st = new StringTokenizer(data);
-                    String cmd = st.nextToken();
-
-                    switch (cmd) {
-                        case "CMD_RECEIVE_FILE_ERROR":
-                            String errorMsg = "";
-                            while (st.hasMoreTokens()) {
-                                errorMsg = errorMsg + " " + st.nextToken();
-                            }
+                    Message message;
+                    try {
+                        message = stream.read();
+                    } catch (ProtocolException e) {
+                        LOG.warn("Unknown secure file transfer command: " + e.getMessage());
+                        continue;
+                    }
+
+                    switch (message.getCommand()) {
+                        case RECEIVE_FILE_ERROR:
+                            String errorMsg = " " + message.getString(0);
                             form.updateAttachment(false);
                             JOptionPane.showMessageDialog(SecureSendFile.this,
                                     "Secure transfer failed: " + errorMsg,
@@ -340,22 +343,22 @@ public class SecureSendFile extends javax.swing.JFrame {
                             closeConnection();
                             break;
 
-                        case "CMD_RECEIVE_FILE_ACCEPT":
-                            String acceptMsg = "";
-                            while (st.hasMoreTokens()) {
-                                acceptMsg = acceptMsg + " " + st.nextToken();
-                            }
-                            // Start encrypted file sending
-                            new Thread(new SecureSendingFileThread(socket, file, sendTo, myusername,
+                        case RECEIVE_FILE_ACCEPT:
+                            // Start encrypted file sending (receiver without resume support)
+                            new Thread(new SecureSendingFileThread(socket, stream, file, sendTo, myusername,
                                     SecureSendFile.this, cryptoManager)).start();
                             break;
 
-                        case "CMD_SENDFILEERROR":
-                            String sendErrorMsg = "";
-                            while (st.hasMoreTokens()) {
-                                sendErrorMsg = sendErrorMsg + " " + st.nextToken();
-                            }
-                            System.err.println("Send file error: " + sendErrorMsg);
+                        case RECEIVE_FILE_RESUME:
+                            // CMD_RECEIVE_FILE_RESUME [filename] [offset] [version]: chunks from what the
+                            // receiver is missing, or all of them if it kept another version of the file
+                            new Thread(new SecureSendingFileThread(socket, stream, file, sendTo, myusername,
+                                    SecureSendFile.this, cryptoManager, message.getLong(1), message.getLong(2))).start();
+                            break;
+
+                        case SENDFILEERROR:
+                            String sendErrorMsg = " " + message.getString(0);
+                            LOG.warn("Send file error: " + sendErrorMsg);
                             JOptionPane.showMessageDialog(SecureSendFile.this,
                                     sendErrorMsg, "Error", JOptionPane.ERROR_MESSAGE);
                             form.updateAttachment(false);
@@ -363,12 +366,8 @@ public class SecureSendFile extends javax.swing.JFrame {
                             form.updateBtn("Send Encrypted File");
                             break;
 
-                        case "CMD_SENDFILERESPONSE":
-                            String responseUser = st.nextToken();
-                            String responseMsg = "";
-                            while (st.hasMoreTokens()) {
-                                responseMsg = responseMsg + " " + st.nextToken();
-                            }
+                        case SENDFILERESPONSE:
+                            String responseMsg = " " + message.getString(1);
                             form.updateAttachment(false);
                             JOptionPane.showMessageDialog(SecureSendFile.this,
                                     responseMsg, "Transfer Response", JOptionPane.INFORMATION_MESSAGE);
@@ -376,12 +375,12 @@ public class SecureSendFile extends javax.swing.JFrame {
                             break;
 
                         default:
-                            System.err.println("Unknown secure file transfer command: " + cmd);
+                            LOG.warn("Unknown secure file transfer command: " + message.getCommand().getTextName());
                             break;
                     }
                 }
             } catch (IOException e) {
-                System.err.println("Secure file transfer thread error: " + e.getMessage());
+                LOG.warn("Secure file transfer thread error: " + e.getMessage());
             }
         }
     }
@@ -2,25 +2,58 @@ package sendfile.client;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import javax.swing.JOptionPane;
-
-
+import sendfile.log.Log;
+import sendfile.log.Logger;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.MessageStream;
+
+
+/**
+ * Sends a file on the sharing socket once the receiver accepted. A receiver
+ * that answers CMD_SEND_FILE_RESUME gets numbered, authenticated chunks
+ * starting where it left off (FileChunks), encrypted on all cores;
+ * one that answers CMD_SEND_FILE_ACCEPT gets the whole file encrypted in
+ * one piece, as before, streamed from disk (EncryptedFileStream).
+ */
 public class SecureSendingFileThread implements Runnable {
 
+    private static final Logger LOG = Log.get("file");
+
     protected Socket socket;
-    private DataOutputStream dos;
+    private MessageStream stream;
     protected SecureSendFile form;
     protected String file;
     protected String receiver;
     protected String sender;
     protected CryptoManager cryptoManager;
     protected DecimalFormat df = new DecimalFormat("##,#00");
-    private final int BUFFER_SIZE = 8192; // Larger buffer for better performance
 
-    public SecureSendingFileThread(Socket socket, String file, String receiver, String sender,
+    /** resumeOffset of a receiver that only takes the whole file in one piece **/
+    public static final long WHOLE_FILE = -1;
+
+    /** Bytes the receiver already has, or WHOLE_FILE **/
+    private final long resumeOffset;
+
+    /** Version of the file those bytes are from (FileChunks.Header), 0 if none **/
+    private final long resumeVersion;
+
+    public SecureSendingFileThread(Socket socket, MessageStream stream, String file, String receiver, String sender,
                                    SecureSendFile form, CryptoManager cryptoManager) {
+        this(socket, stream, file, receiver, sender, form, cryptoManager, WHOLE_FILE, 0);
+    }
+
+    public SecureSendingFileThread(Socket socket, MessageStream stream, String file, String receiver, String sender,
+                                   SecureSendFile form, CryptoManager cryptoManager, long resumeOffset,
+                                   long resumeVersion) {
+        this.resumeOffset = resumeOffset;
+        this.resumeVersion = resumeVersion;
         this.socket = socket;
+        this.stream = stream;
         this.file = file;
         this.receiver = receiver;
         this.sender = sender;
@@ -30,68 +63,63 @@ public class SecureSendingFileThread implements Runnable {
 
     @Override
     public void run() {
-        FileInputStream fis = null;
-        BufferedInputStream bis = null;
         OutputStream output = null;
 
         try {
             form.disableGUI(true);
             form.setMyTitle(" Encrypting and sending file...");
-            System.out.println("Starting secure file transfer...");
-
-            dos = new DataOutputStream(socket.getOutputStream());
+            LOG.info("Starting secure file transfer...");
 
             // Get file information
             File fileObj = new File(file);
             if (!fileObj.exists()) {
                 throw new IOException("File does not exist: " + file);
             }
+            if (resumeOffset != WHOLE_FILE) {
+                // Closed below like the whole-file path's, which closes the socket
+                output = stream.getOutputStream();
+                sendChunks(fileObj);
+                return;
+            }
 
-            // Read entire file into memory for encryption
-            form.updateProgress(10);
-            byte[] fileData = readFileToBytes(fileObj);
-            form.updateProgress(25);
-
-            // Encrypt the file data
-            form.setMyTitle(" Encrypting file content...");
-            byte[] encryptedData = cryptoManager.encryptFile(fileData);
-            form.updateProgress(50);
-
-            // Calculate encrypted file size
-            long encryptedSize = encryptedData.length;
+            // Read, encrypt and send at the same time, a few blocks in memory
+            long size = fileObj.length();
             String cleanFilename = fileObj.getName().replace(" ", "_");
-
-            // Send file header with encrypted size
-            String fileHeader = String.format("CMD_SENDFILE %s %d %s %s",
-                    cleanFilename, encryptedSize, receiver, sender);
-            dos.writeUTF(fileHeader);
-
-            System.out.println("Sending encrypted file:");
-            System.out.println("From: " + sender);
-            System.out.println("To: " + receiver);
-            System.out.println("Original size: " + fileData.length + " bytes");
-            System.out.println("Encrypted size: " + encryptedSize + " bytes");
-
-            // Send encrypted file data
-            form.setMyTitle(" Sending encrypted file...");
-            output = socket.getOutputStream();
-
-            int totalSent = 0;
-            int bufferSize = Math.min(BUFFER_SIZE, encryptedData.length);
-
-            for (int i = 0; i < encryptedData.length; i += bufferSize) {
-                int chunkSize = Math.min(bufferSize, encryptedData.length - i);
-                output.write(encryptedData, i, chunkSize);
-
-                totalSent += chunkSize;
-                int progress = (int) ((totalSent * 100.0) / encryptedData.length);
-                form.updateProgress(Math.min(50 + (progress / 2), 100));
-
-                // Update title with progress
-                form.setMyTitle(String.format("Sending encrypted file... %d%%", progress));
-
-                // Small delay to prevent overwhelming the network
-                Thread.sleep(10);
+            long encryptedSize;
+            try (EncryptedFileStream blocks = new EncryptedFileStream(fileObj, cryptoManager)) {
+                encryptedSize = blocks.length();
+
+                // Send file header with encrypted size
+                Message fileHeader = Message.of(Command.SENDFILE, cleanFilename, encryptedSize, receiver, sender);
+                stream.write(fileHeader);
+
+                LOG.info("Sending encrypted file:");
+                LOG.info("From: " + sender);
+                LOG.info("To: " + receiver);
+                LOG.info("Original size: " + size + " bytes");
+                LOG.info("Encrypted size: " + encryptedSize + " bytes");
+
+                // Send encrypted file data
+                form.setMyTitle(" Sending encrypted file...");
+                output = stream.getOutputStream();
+
+                long totalSent = 0;
+                int shown = -1;
+                for (EncryptedFileStream.Block block = blocks.next(); block != null; block = blocks.next()) {
+                    output.write(block.data, 0, block.length);
+                    totalSent += block.length;
+                    blocks.recycle(block);
+
+                    int progress = (int) (totalSent * 100 / encryptedSize);
+                    if (progress != shown) {
+                        shown = progress;
+                        form.updateProgress(progress);
+                        form.setMyTitle(String.format("Sending encrypted file... %d%%", progress));
+                    }
+                }
+                if (totalSent != encryptedSize) {
+                    throw new IOException("Sent " + totalSent + " of " + encryptedSize + " encrypted bytes");
+                }
             }
 
             output.flush();
@@ -104,15 +132,15 @@ public class SecureSendingFileThread implements Runnable {
             JOptionPane.showMessageDialog(form,
                     "File encrypted and sent successfully!\n\n" +
                             "Original file: " + fileObj.getName() + "\n" +
-                            "Original size: " + formatFileSize(fileData.length) + "\n" +
-                            "Encrypted size: " + formatFileSize(encryptedData.length) + "\n" +
+                            "Original size: " + formatFileSize(size) + "\n" +
+                            "Encrypted size: " + formatFileSize(encryptedSize) + "\n" +
                             "Encryption: " + cryptoManager.getKeyInfo(),
                     "Secure Transfer Complete",
                     JOptionPane.INFORMATION_MESSAGE);
 
             form.closeThis();
 
-            System.out.println("Encrypted file transfer completed successfully!");
+            LOG.info("Encrypted file transfer completed successfully!");
 
         } catch (Exception e) {
             form.updateAttachment(false);
@@ -122,37 +150,78 @@ public class SecureSendingFileThread implements Runnable {
             String errorMsg = "Secure file transfer failed: " + e.getMessage();
             JOptionPane.showMessageDialog(form, errorMsg, "Transfer Error", JOptionPane.ERROR_MESSAGE);
 
-            e.printStackTrace();
+            LOG.error("Secure file send failed", e);
 
         } finally {
             // Clean up resources
             try {
                 if (output != null) output.close();
             } catch (IOException e) {
-                System.err.println("Error closing resources: " + e.getMessage());
+                LOG.warn("Error closing resources: " + e.getMessage());
             }
         }
     }
 
     /**
-     * Read entire file into byte array
+     * Send the chunks from the first one the receiver is missing, or from
+     * the start if the file changed since the receiver got its part; they
+     * are read and encrypted on all cores (ChunkWorkers) and sent in order
      */
-    private byte[] readFileToBytes(File file) throws IOException {
-        FileInputStream fis = new FileInputStream(file);
-        BufferedInputStream bis = new BufferedInputStream(fis);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int bytesRead;
-
-        while ((bytesRead = bis.read(buffer)) != -1) {
-            baos.write(buffer, 0, bytesRead);
+    private void sendChunks(File fileObj) throws Exception {
+        long size = fileObj.length();
+        long version = fileObj.lastModified();
+        int chunkSize = FileChunks.CHUNK_SIZE;
+        int first = resumeVersion == version ? FileChunks.firstChunk(resumeOffset, size, chunkSize) : 0;
+        if (resumeOffset > 0 && first == 0) {
+            LOG.info(fileObj.getName() + " changed since " + receiver + " got part of it, sending it from the start");
         }
-
-        bis.close();
-        fis.close();
-
-        return baos.toByteArray();
+        FileChunks.Header header = new FileChunks.Header(size, version, chunkSize, first);
+        int count = header.chunkCount();
+        String cleanFilename = fileObj.getName().replace(" ", "_");
+
+        stream.write(Message.of(Command.SENDFILE, cleanFilename,
+                FileChunks.streamLength(cryptoManager, header), receiver, sender));
+        byte[] signed = FileChunks.header(cryptoManager, header);
+        stream.writeRaw(signed, 0, signed.length);
+
+        LOG.info("Sending encrypted file " + cleanFilename + " to " + receiver + ": " + size + " bytes in "
+                + count + " chunks" + (first > 0 ? ", resuming at chunk " + first : ""));
+        form.setMyTitle(first > 0 ? " Resuming encrypted file..." : " Sending encrypted file...");
+
+        ChunkWorkers workers = new ChunkWorkers();
+        try (FileChannel in = FileChannel.open(fileObj.toPath(), StandardOpenOption.READ)) {
+            int next = first;
+            for (int i = first; i < count; i++) {
+                while (next < count && !workers.isFull()) {
+                    int index = next++;
+                    workers.submit(() -> FileChunks.encode(cryptoManager, header, index,
+                            FileChunks.readPlain(in, header, index), header.chunkLength(index)));
+                }
+                byte[] chunk = workers.next();
+                stream.writeRaw(chunk, 0, chunk.length);
+
+                int progress = (int) ((i + 1) * 100L / count);
+                form.updateProgress(progress);
+                form.setMyTitle(String.format("Sending encrypted file... %d%%", progress));
+            }
+        } finally {
+            workers.cancel();
+        }
+        stream.getOutputStream().flush();
+        form.updateProgress(100);
+
+        form.setMyTitle("Encrypted file sent successfully!");
+        form.updateAttachment(false);
+        JOptionPane.showMessageDialog(form,
+                "File encrypted and sent successfully!\n\n" +
+                        "File: " + fileObj.getName() + "\n" +
+                        "Size: " + formatFileSize(size) + "\n" +
+                        (first > 0 ? "Resumed after: " + formatFileSize((long) first * chunkSize) + "\n" : "") +
+                        "Encryption: " + cryptoManager.getKeyInfo() + ", " + count + " authenticated chunks",
+                "Secure Transfer Complete",
+                JOptionPane.INFORMATION_MESSAGE);
+        form.closeThis();
+        LOG.info("Encrypted file transfer completed successfully!");
     }
 
     /**
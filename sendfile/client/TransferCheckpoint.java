@@ -0,0 +1,163 @@
+package sendfile.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The part of a file a receiver already has, kept across connections so an
+ * interrupted transfer can be resumed (FileChunks).
+ *
+ * Verified chunks are written in place into NAME.part next to the target;
+ * NAME.part.ckpt records the sender, the file's size and version and how
+ * many bytes from the start are verified. The data is forced to disk
+ * before the checkpoint moves past it, and the checkpoint is replaced
+ * atomically, so after a crash it never claims more than the part file
+ * holds. A complete file is renamed to NAME and both are deleted.
+ *
+ * The resume request carries the version kept here, so a sender whose file
+ * changed since starts from the first chunk; the part is then reset.
+ */
+public class TransferCheckpoint {
+
+    private final File target;
+    private final File part;
+    private final File checkpoint;
+    private final String sender;
+
+    /** Size and version of the file being received, once known **/
+    private long size = -1;
+    private long version;
+
+    /** Bytes from the start of the file that are written and verified **/
+    private long verified;
+
+    private RandomAccessFile data;
+
+    private TransferCheckpoint(File target, String sender) {
+        this.target = target;
+        this.part = new File(target.getPath() + ".part");
+        this.checkpoint = new File(target.getPath() + ".part.ckpt");
+        this.sender = sender;
+    }
+
+    /**
+     * What is left of an earlier transfer of this file from the same sender,
+     * or a fresh start
+     */
+    public static TransferCheckpoint open(File target, String sender) {
+        TransferCheckpoint state = new TransferCheckpoint(target, sender);
+        if (state.checkpoint.exists()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(state.checkpoint))) {
+                String from = in.readUTF();
+                long size = in.readLong();
+                long version = in.readLong();
+                long verified = in.readLong();
+                if (from.equals(sender) && verified <= state.part.length()) {
+                    state.size = size;
+                    state.version = version;
+                    state.verified = verified;
+                }
+            } catch (IOException ignored) {
+                // Unreadable: start over
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Where the sender should start: the first byte not verified yet
+     */
+    public long getOffset() {
+        return verified;
+    }
+
+    /**
+     * Version of the file the kept part belongs to, 0 if nothing is kept
+     */
+    public long getVersion() {
+        return verified > 0 ? version : 0;
+    }
+
+    /**
+     * Check the transfer's header against what is kept; the part of a file
+     * that changed since is dropped and the transfer starts over, which the
+     * sender does from the first chunk
+     */
+    public void begin(FileChunks.Header header) throws IOException {
+        if (verified > 0 && (header.size != size || header.version != version)) {
+            discard();
+        }
+        if ((long) header.firstChunk * header.chunkSize > verified) {
+            throw new IOException("The sender skipped data this side does not have");
+        }
+        size = header.size;
+        version = header.version;
+        verified = Math.min(verified, (long) header.firstChunk * header.chunkSize);
+        data = new RandomAccessFile(part, "rw");
+        save();
+    }
+
+    /**
+     * Keep a verified chunk and move the checkpoint past it
+     */
+    public void write(FileChunks.Header header, int index, byte[] chunk) throws IOException {
+        long offset = (long) index * header.chunkSize;
+        data.seek(offset);
+        data.write(chunk);
+        data.getChannel().force(false);
+        verified = Math.max(verified, offset + chunk.length);
+        save();
+    }
+
+    /**
+     * Everything is there: move the part to the target name
+     */
+    public File complete() throws IOException {
+        data.setLength(size);
+        data.close();
+        data = null;
+        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        checkpoint.delete();
+        return target;
+    }
+
+    /**
+     * Stop for now, keeping what was received for a later resume
+     */
+    public void close() {
+        try {
+            if (data != null) {
+                data.close();
+                data = null;
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void discard() {
+        close();
+        part.delete();
+        checkpoint.delete();
+        size = -1;
+        verified = 0;
+    }
+
+    private void save() throws IOException {
+        File next = new File(checkpoint.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(next))) {
+            out.writeUTF(sender);
+            out.writeLong(size);
+            out.writeLong(version);
+            out.writeLong(verified);
+        }
+        Files.move(next.toPath(), checkpoint.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,266 @@
+package sendfile.loadtest;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import sendfile.client.CryptoManager;
+import sendfile.client.FileChunks;
+import sendfile.log.Log;
+import sendfile.log.Logger;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.MessageStream;
+import sendfile.protocol.ProtocolException;
+
+/**
+ * Runs the file transfer handshake between two simulated users, the way
+ * SecureSendFile and SecureClientThread do it:
+ *
+ *   sender:   sharing socket, CMD_SHARINGSOCKET, CMD_SEND_FILE_XD
+ *   receiver: CMD_FILE_XD, sharing socket, CMD_SHARINGSOCKET, CMD_SEND_FILE_RESUME (offset 0, no version)
+ *   sender:   CMD_RECEIVE_FILE_RESUME, CMD_SENDFILE + header and chunks (FileChunks)
+ *   receiver: CMD_FILE_INCOMING + header and chunks
+ *
+ * The payload is cut into chunks and encrypted once up front so every
+ * transfer sends valid, authenticated CryptoManager output without
+ * re-encrypting.
+ */
+class FileTransferDriver {
+
+    private static final Logger LOG = Log.get("loadtest");
+
+    /** A stalled transfer fails instead of hanging its threads **/
+    private static final int TIMEOUT_MILLIS = 30000;
+    private static final int SKIP_BUFFER = 64 * 1024;
+
+    private final LoadConfig config;
+    private final CryptoManager crypto;
+    private final Executor executor;
+    private final byte[] header;
+    private final byte[][] chunks;
+    private final long streamLength;
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    final LatencyHistogram handshake = new LatencyHistogram();
+    final LatencyHistogram duration = new LatencyHistogram();
+    final LongAdder started = new LongAdder();
+    final LongAdder completed = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+
+    /** Sum of per-transfer times, for the average transfer rate **/
+    final LongAdder transferNanos = new LongAdder();
+
+    private static class Transfer {
+        final String filename;
+        final SimulatedClient sender;
+        final SimulatedClient receiver;
+        final long requested = System.nanoTime();
+        volatile long firstByte;
+
+        Transfer(String filename, SimulatedClient sender, SimulatedClient receiver) {
+            this.filename = filename;
+            this.sender = sender;
+            this.receiver = receiver;
+        }
+    }
+
+    FileTransferDriver(LoadConfig config, CryptoManager crypto, Executor executor) throws Exception {
+        this.config = config;
+        this.crypto = crypto;
+        this.executor = executor;
+
+        byte[] plain = new byte[config.fileSize];
+        new Random(config.fileSize).nextBytes(plain);
+        FileChunks.Header file = new FileChunks.Header(plain.length, 0, FileChunks.CHUNK_SIZE, 0);
+        this.header = FileChunks.header(crypto, file);
+        this.chunks = new byte[file.chunkCount()][];
+        for (int i = 0; i < chunks.length; i++) {
+            int offset = i * FileChunks.CHUNK_SIZE;
+            int length = file.chunkLength(i);
+            chunks[i] = FileChunks.encode(crypto, file, i, Arrays.copyOfRange(plain, offset, offset + length), length);
+        }
+        this.streamLength = FileChunks.streamLength(crypto, file);
+    }
+
+    long getPayloadSize() {
+        return streamLength;
+    }
+
+    int inProgress() {
+        return transfers.size();
+    }
+
+    /**
+     * Start a transfer; both users must already be marked as transferring
+     */
+    void start(SimulatedClient sender, SimulatedClient receiver) {
+        String filename = config.userPrefix + "-file-" + sequence.incrementAndGet() + ".bin";
+        Transfer transfer = new Transfer(filename, sender, receiver);
+        transfers.put(filename, transfer);
+        started.increment();
+        executor.execute(() -> runSender(transfer));
+    }
+
+    /**
+     * A simulated user got CMD_FILE_XD on its chat connection
+     */
+    void requested(SimulatedClient receiver, String filename) {
+        Transfer transfer = transfers.get(filename);
+        if (transfer == null || transfer.receiver != receiver) {
+            return;
+        }
+        executor.execute(() -> runReceiver(transfer));
+    }
+
+    private void runSender(Transfer transfer) {
+        Socket socket = null;
+        try {
+            socket = openSharingSocket(transfer.sender);
+            MessageStream stream = MessageStream.connect(socket, config.format);
+            stream.write(Message.of(Command.SHARINGSOCKET, transfer.sender.username));
+            stream.write(Message.of(Command.SEND_FILE_XD,
+                    transfer.sender.username, transfer.receiver.username, transfer.filename));
+
+            while (true) {
+                Message message;
+                try {
+                    message = stream.read();
+                } catch (ProtocolException e) {
+                    continue;
+                }
+                switch (message.getCommand()) {
+                    case RECEIVE_FILE_RESUME:
+                        // CMD_RECEIVE_FILE_RESUME [filename] [offset] [version], always 0 here
+                        handshake.recordNanos(System.nanoTime() - transfer.requested);
+                        stream.write(Message.of(Command.SENDFILE, transfer.filename, streamLength,
+                                transfer.receiver.username, transfer.sender.username));
+                        transfer.firstByte = System.nanoTime();
+                        stream.writeRaw(header, 0, header.length);
+                        for (byte[] chunk : chunks) {
+                            stream.writeRaw(chunk, 0, chunk.length);
+                        }
+                        // The server closes both sharing sockets once the relay is done
+                        break;
+
+                    case RECEIVE_FILE_ERROR:
+                    case SENDFILEERROR:
+                        fail(transfer, message.getString(0));
+                        return;
+
+                    case SENDFILERESPONSE:
+                        // CMD_SENDFILERESPONSE [username] [message] from a failing receiver
+                        fail(transfer, message.getString(1));
+                        return;
+
+                    default:
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            if (transfer.firstByte == 0) {
+                fail(transfer, "sender: " + e.getMessage());
+            }
+        } finally {
+            close(socket);
+        }
+    }
+
+    private void runReceiver(Transfer transfer) {
+        Socket socket = null;
+        try {
+            socket = openSharingSocket(transfer.receiver);
+            MessageStream stream = MessageStream.connect(socket, config.format);
+            // Accept on the sharing socket itself, so the server has registered it when CMD_SENDFILE comes
+            stream.write(Message.of(Command.SHARINGSOCKET, transfer.receiver.username));
+            stream.write(Message.of(Command.SEND_FILE_RESUME, transfer.sender.username, transfer.filename, 0L, 0L));
+
+            Message message = stream.read();
+            if (message.getCommand() != Command.FILE_INCOMING) {
+                fail(transfer, "receiver got " + message.getCommand().getTextName());
+                return;
+            }
+            // CMD_FILE_INCOMING [filename] [size] [consignee]
+            long size = message.getLong(1);
+            boolean verify = config.verifyEvery > 0;
+
+            DataInputStream input = new DataInputStream(stream.getInputStream());
+            FileChunks.Header received = FileChunks.readHeader(crypto, input);
+            if (received.size != config.fileSize) {
+                fail(transfer, "file size " + received.size + " in the header");
+                return;
+            }
+            byte[] buffer = new byte[SKIP_BUFFER];
+            for (int i = 0; i < received.chunkCount(); i++) {
+                if (verify) {
+                    // Authenticates and decrypts, checking the length
+                    FileChunks.decode(crypto, input, received, i);
+                } else {
+                    input.readInt();
+                    int length = input.readInt();
+                    for (int left = length + FileChunks.MAC_LENGTH; left > 0; left -= buffer.length) {
+                        input.readFully(buffer, 0, Math.min(left, buffer.length));
+                    }
+                }
+            }
+            complete(transfer, size, System.nanoTime());
+        } catch (Exception e) {
+            fail(transfer, "receiver: " + e.getMessage());
+        } finally {
+            close(socket);
+        }
+    }
+
+    /**
+     * The sharing socket goes to the server the user is joined on
+     */
+    private Socket openSharingSocket(SimulatedClient user) throws IOException {
+        Socket socket = new Socket(user.host, user.port);
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        return socket;
+    }
+
+    private void complete(Transfer transfer, long size, long done) {
+        if (transfers.remove(transfer.filename) == null) {
+            return;
+        }
+        long nanos = done - transfer.firstByte;
+        duration.recordNanos(done - transfer.requested);
+        transferNanos.add(nanos);
+        bytes.add(size);
+        completed.increment();
+        release(transfer);
+    }
+
+    private void fail(Transfer transfer, String reason) {
+        if (transfers.remove(transfer.filename) == null) {
+            return;
+        }
+        failed.increment();
+        LOG.warn("[FileTransfer]: " + transfer.filename + " from " + transfer.sender.username
+                + " to " + transfer.receiver.username + " failed: " + reason);
+        release(transfer);
+    }
+
+    private static void release(Transfer transfer) {
+        transfer.sender.transferring.set(false);
+        transfer.receiver.transferring.set(false);
+    }
+
+    private static void close(Socket socket) {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
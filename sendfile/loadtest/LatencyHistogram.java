@@ -0,0 +1,83 @@
+package sendfile.loadtest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram in microseconds, safe to record from many
+ * reader threads at once.
+ *
+ * Values below 64 us get one bucket each; above that every power of two is
+ * split into 32 buckets, so a reported percentile is within about 3% of the
+ * true value up to hours.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 32;
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int BUCKETS = LINEAR + 40 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void recordNanos(long nanos) {
+        long micros = Math.max(nanos, 0) / 1000;
+        counts.incrementAndGet(indexOf(micros));
+        count.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    long getMaxMicros() {
+        return max.get();
+    }
+
+    double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Smallest recorded value (bucket midpoint) that percent of the samples do not exceed
+     */
+    long percentileMicros(double percent) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percent / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(valueOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int indexOf(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - 5;
+        int index = LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((micros >> shift) - SUB_BUCKETS);
+        return Math.min(index, BUCKETS - 1);
+    }
+
+    private static long valueOf(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long low = (long) ((index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return low + (1L << shift) / 2;
+    }
+}
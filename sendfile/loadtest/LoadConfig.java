@@ -0,0 +1,189 @@
+package sendfile.loadtest;
+
+import sendfile.client.CryptoManager;
+import sendfile.protocol.WireFormat;
+
+/**
+ * Settings for one LoadGenerator run, parsed from the command line.
+ */
+public class LoadConfig {
+
+    String host = "127.0.0.1";
+
+    /** Several ports (nodes of a cluster) share the users round robin **/
+    int[] ports = {3333};
+
+    /** Simulated users, connected evenly over rampSeconds **/
+    int clients = 100;
+    int rampSeconds = 10;
+
+    /** Measured run after the ramp, then a short drain for late deliveries **/
+    int durationSeconds = 60;
+
+    /** Chat messages per second, summed over all clients **/
+    int rate = 100;
+
+    /** Users are spread over this many rooms and post to their own (0 = CMD_CHATALL_ENCRYPTED to everyone) **/
+    int rooms = 0;
+
+    /** Share of messages sent as CMD_CHAT_ENCRYPTED to one user instead of CMD_CHATALL_ENCRYPTED **/
+    double directRatio = 0.1;
+
+    /** Plaintext size before encryption **/
+    int messageSize = 64;
+
+    /** Decrypt and check the MAC of every Nth delivery per client (0 = never) **/
+    int verifyEvery = 1;
+
+    /** File transfers spread over the run, each between two idle users **/
+    int files = 0;
+    int fileSize = 1024 * 1024;
+
+    String password = "loadtest";
+    CryptoManager.KeySize keySize = CryptoManager.KeySize.BITS_128;
+    WireFormat format = WireFormat.BINARY;
+    String userPrefix = "load";
+    String reportFile = "loadtest-report.txt";
+
+    /**
+     * Parse --option value pairs; see usage() for the list
+     */
+    public static LoadConfig fromArgs(String[] args) {
+        LoadConfig config = new LoadConfig();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--host":
+                    config.host = value;
+                    break;
+                case "--port":
+                    String[] ports = value.split(",");
+                    config.ports = new int[ports.length];
+                    for (int p = 0; p < ports.length; p++) {
+                        config.ports[p] = parseInt(option, ports[p].trim(), 1, 65535);
+                    }
+                    break;
+                case "--clients":
+                    config.clients = parseInt(option, value, 2, Integer.MAX_VALUE);
+                    break;
+                case "--ramp":
+                    config.rampSeconds = parseInt(option, value, 0, Integer.MAX_VALUE);
+                    break;
+                case "--duration":
+                    config.durationSeconds = parseInt(option, value, 1, Integer.MAX_VALUE);
+                    break;
+                case "--rate":
+                    config.rate = parseInt(option, value, 0, Integer.MAX_VALUE);
+                    break;
+                case "--rooms":
+                    config.rooms = parseInt(option, value, 0, Integer.MAX_VALUE);
+                    break;
+                case "--direct-ratio":
+                    config.directRatio = parseDouble(option, value);
+                    break;
+                case "--message-size":
+                    config.messageSize = parseInt(option, value, 1, 1024 * 1024);
+                    break;
+                case "--verify-every":
+                    config.verifyEvery = parseInt(option, value, 0, Integer.MAX_VALUE);
+                    break;
+                case "--files":
+                    config.files = parseInt(option, value, 0, Integer.MAX_VALUE);
+                    break;
+                case "--file-size":
+                    config.fileSize = parseInt(option, value, 1, Integer.MAX_VALUE / 2);
+                    break;
+                case "--password":
+                    config.password = value;
+                    break;
+                case "--key":
+                    config.keySize = "56".equals(value) ? CryptoManager.KeySize.BITS_56
+                            : "128".equals(value) ? CryptoManager.KeySize.BITS_128 : null;
+                    if (config.keySize == null) {
+                        throw new IllegalArgumentException("--key expects 56 or 128, got '" + value + "'");
+                    }
+                    break;
+                case "--format":
+                    try {
+                        config.format = WireFormat.valueOf(value.toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException("--format expects binary or text, got '" + value + "'");
+                    }
+                    break;
+                case "--prefix":
+                    config.userPrefix = value;
+                    break;
+                case "--report":
+                    config.reportFile = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        return config;
+    }
+
+    static String usage() {
+        return "Usage: java sendfile.loadtest.LoadGenerator [--host H] [--port N[,N...]] [--clients N] [--ramp S]"
+                + " [--duration S] [--rate MSG/S] [--rooms N] [--direct-ratio 0..1] [--message-size B] [--verify-every N]"
+                + " [--files N] [--file-size B] [--password P] [--key 56|128] [--format binary|text]"
+                + " [--prefix NAME] [--report FILE]";
+    }
+
+    private static int parseInt(String option, String value, int min, int max) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < min || parsed > max) {
+                throw new IllegalArgumentException(option + " must be between " + min + " and " + max);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " expects a number, got '" + value + "'");
+        }
+    }
+
+    private static double parseDouble(String option, String value) {
+        try {
+            double parsed = Double.parseDouble(value);
+            if (parsed < 0 || parsed > 1) {
+                throw new IllegalArgumentException(option + " must be between 0 and 1");
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " expects a number, got '" + value + "'");
+        }
+    }
+
+    /**
+     * Port of the node user number index connects to
+     */
+    int portFor(int index) {
+        return ports[index % ports.length];
+    }
+
+    /**
+     * Room of user number index, or null when there are no rooms
+     */
+    String roomFor(int index) {
+        return rooms > 0 ? "team-" + (index % rooms) : null;
+    }
+
+    private String portList() {
+        StringBuilder list = new StringBuilder();
+        for (int port : ports) {
+            list.append(list.length() > 0 ? "," : "").append(port);
+        }
+        return list.toString();
+    }
+
+    @Override
+    public String toString() {
+        return clients + " clients on " + host + ":" + portList() + " (" + format + ", " + keySize.getAlgorithm()
+                + "), ramp " + rampSeconds + " s, run " + durationSeconds + " s, " + rate + " msg/s, "
+                + (rooms > 0 ? rooms + " rooms, " : "") + Math.round(directRatio * 100) + "% direct, " + files + " file transfers of " + fileSize + " bytes";
+    }
+}
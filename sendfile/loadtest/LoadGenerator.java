@@ -0,0 +1,483 @@
+package sendfile.loadtest;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import sendfile.client.CryptoManager;
+import sendfile.log.Log;
+import sendfile.log.Logger;
+import sendfile.server.ClientExecutors;
+
+/**
+ * Headless load generator: simulates many chat users against a running
+ * server over the real protocol, without any Swing form.
+ *
+ * Users connect evenly over the ramp and send CMD_JOIN. From the start of
+ * the ramp a pacer sends messages at the configured total rate, from random
+ * joined users: mostly CMD_CHATALL_ENCRYPTED with CryptoManager ciphertext
+ * and MAC, some CMD_CHAT_ENCRYPTED to one random user. With --rooms the users are
+ * spread over that many rooms and post CMD_CHATROOM_ENCRYPTED to their own
+ * instead, which only its members receive. Optional file transfers run the
+ * full handshake (see FileTransferDriver).
+ *
+ * Latency is measured from just before a message is encrypted to the moment
+ * its frame arrives at each recipient; the ciphertext (unique per message,
+ * random IV) identifies it. Only messages sent in the measured window after
+ * the ramp are counted, so connect storms do not skew percentiles.
+ * Everything runs in one JVM, so all timestamps come from one nanoTime clock.
+ *
+ *   java sendfile.loadtest.LoadGenerator --clients 2000 --ramp 20 --rate 500 --duration 60
+ */
+public class LoadGenerator {
+
+    private static final Logger LOG = Log.get("loadtest");
+
+    private static final long PROGRESS_SECONDS = 5;
+    private static final long JOIN_WAIT_MILLIS = 10000;
+    private static final long DRAIN_MILLIS = 2000;
+
+    /** Deliveries later than this are counted as unmatched **/
+    private static final long EXPIRE_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final LoadConfig config;
+    private final CryptoManager crypto;
+    private final SimulatedClient[] clients;
+    private final List<SimulatedClient> joined = new CopyOnWriteArrayList<>();
+
+    /** Joined users per room, for the expected deliveries of a room message **/
+    private final AtomicInteger[] roomMembers;
+    private final Map<String, Long> inFlight = new ConcurrentHashMap<>();
+
+    private final Executor readers;
+    private final ThreadPoolExecutor senders;
+    private final ScheduledExecutorService scheduler;
+    private final FileTransferDriver files;
+
+    private volatile boolean stopping;
+    private volatile long windowStart = Long.MAX_VALUE;
+    private volatile long windowEnd = Long.MAX_VALUE;
+    private long paceStart;
+    private long scheduled;
+    private final AtomicInteger filesLaunched = new AtomicInteger();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram joinLatency = new LatencyHistogram();
+    private final LongAdder broadcastsSent = new LongAdder();
+    private final LongAdder directSent = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder unmatched = new LongAdder();
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder verifyFailures = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder redirects = new LongAdder();
+    private final LongAdder protocolErrors = new LongAdder();
+    private final LongAdder filesSkipped = new LongAdder();
+
+    public LoadGenerator(LoadConfig config) throws Exception {
+        this.config = config;
+        this.crypto = new CryptoManager(config.password, config.keySize);
+        this.clients = new SimulatedClient[config.clients];
+        this.roomMembers = new AtomicInteger[config.rooms];
+        for (int r = 0; r < roomMembers.length; r++) {
+            roomMembers[r] = new AtomicInteger();
+        }
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new SimulatedClient(config.userPrefix + i, config.roomFor(i),
+                    config.rooms > 0 ? i % config.rooms : -1, config.portFor(i), this);
+        }
+
+        // One blocking reader per user; virtual threads keep thousands of them cheap on JDK 21+
+        ExecutorService virtual = ClientExecutors.virtualThreads();
+        this.readers = virtual != null ? virtual : ClientExecutors.platformThreads();
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.senders = (ThreadPoolExecutor) Executors.newFixedThreadPool(cores, daemon("sender"));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(daemon("pacer"));
+        this.files = config.files > 0 ? new FileTransferDriver(config, crypto, readers) : null;
+    }
+
+    /**
+     * Ramp up, run the measured window, drain, and return the report
+     */
+    public String run() throws InterruptedException {
+        LOG.info("[LoadGenerator]: " + config);
+        long started = System.currentTimeMillis();
+
+        paceStart = System.nanoTime();
+        ScheduledFuture<?> pacer = scheduler.scheduleAtFixedRate(this::pace, 1, 1, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> progress = scheduler.scheduleAtFixedRate(new Progress(),
+                PROGRESS_SECONDS, PROGRESS_SECONDS, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(this::expire, 5, 5, TimeUnit.SECONDS);
+
+        long rampNanos = TimeUnit.SECONDS.toNanos(config.rampSeconds);
+        long rampStart = System.nanoTime();
+        for (int i = 0; i < clients.length; i++) {
+            long due = rampStart + rampNanos * i / clients.length;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            try {
+                clients[i].connect(config);
+                readers.execute(clients[i]);
+            } catch (IOException e) {
+                connectFailures.increment();
+                clients[i].close();
+                if (connectFailures.sum() <= 10) {
+                    LOG.warn("[LoadGenerator]: " + clients[i].username + " cannot connect: " + e.getMessage());
+                }
+            }
+        }
+
+        long connected = clients.length - connectFailures.sum();
+        long joinDeadline = System.currentTimeMillis() + JOIN_WAIT_MILLIS;
+        while (joined.size() < connected - disconnects.sum() && System.currentTimeMillis() < joinDeadline) {
+            Thread.sleep(10);
+        }
+        LOG.info("[LoadGenerator]: Ramp done, " + joined.size() + " of " + clients.length + " users joined");
+
+        windowStart = System.nanoTime();
+        ScheduledFuture<?> transfers = null;
+        if (files != null) {
+            long every = Math.max(1, TimeUnit.SECONDS.toMicros(config.durationSeconds) / config.files);
+            transfers = scheduler.scheduleAtFixedRate(this::startFileTransfer, 0, every, TimeUnit.MICROSECONDS);
+        }
+        TimeUnit.SECONDS.sleep(config.durationSeconds);
+        windowEnd = System.nanoTime();
+
+        pacer.cancel(false);
+        if (transfers != null) {
+            transfers.cancel(false);
+        }
+        senders.shutdown();
+        senders.awaitTermination(10, TimeUnit.SECONDS);
+
+        // Late deliveries and running transfers still count
+        long drainUntil = System.currentTimeMillis() + DRAIN_MILLIS;
+        while (System.currentTimeMillis() < drainUntil
+                || (files != null && files.inProgress() > 0 && System.currentTimeMillis() < drainUntil + 30000)) {
+            Thread.sleep(50);
+        }
+        progress.cancel(false);
+        long finished = System.currentTimeMillis();
+
+        stopping = true;
+        scheduler.shutdownNow();
+        for (SimulatedClient client : clients) {
+            client.close();
+        }
+        if (readers instanceof ExecutorService) {
+            ((ExecutorService) readers).shutdown();
+        }
+        return report(started, finished);
+    }
+
+    /**
+     * Queue the messages that are due by now; skip instead of queueing
+     * without bound when encryption cannot keep up with the rate
+     */
+    private void pace() {
+        long due = (long) ((System.nanoTime() - paceStart) / 1e9 * config.rate) - scheduled;
+        for (; due > 0; due--) {
+            scheduled++;
+            if (senders.getQueue().size() > Math.max(config.rate, 1000)) {
+                skipped.increment();
+            } else {
+                senders.execute(this::sendOne);
+            }
+        }
+    }
+
+    private void sendOne() {
+        List<SimulatedClient> online = joined;
+        int count = online.size();
+        if (count < 2) {
+            skipped.increment();
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        SimulatedClient sender = online.get(random.nextInt(count));
+        boolean direct = random.nextDouble() < config.directRatio;
+        String ciphertext = null;
+        try {
+            long sent = System.nanoTime();
+            String plaintext = plaintext(sender, sent);
+            ciphertext = crypto.encrypt(plaintext);
+            inFlight.put(ciphertext, sent);
+            boolean measured = sent >= windowStart && sent < windowEnd;
+
+            if (direct) {
+                SimulatedClient target = online.get(random.nextInt(count));
+                if (target == sender) {
+                    target = online.get((online.indexOf(sender) + 1) % count);
+                }
+                sender.sendDirect(target.username, ciphertext, crypto.generateMAC(plaintext));
+                directSent.increment();
+                if (measured) {
+                    expected.increment();
+                }
+            } else if (sender.room != null) {
+                String mac = crypto.generateMAC(plaintext);
+                sender.sendRoom(ciphertext, mac);
+                broadcastsSent.increment();
+                if (measured) {
+                    expected.add(roomMembers[sender.roomIndex].get() - 1);
+                }
+            } else {
+                String mac = crypto.generateMAC(plaintext);
+                sender.sendBroadcast(ciphertext, mac);
+                broadcastsSent.increment();
+                if (measured) {
+                    expected.add(count - 1);
+                }
+            }
+        } catch (Exception e) {
+            sendErrors.increment();
+            if (ciphertext != null) {
+                inFlight.remove(ciphertext);
+            }
+        }
+    }
+
+    private String plaintext(SimulatedClient sender, long sent) {
+        StringBuilder text = new StringBuilder(config.messageSize);
+        text.append(sender.username).append(' ').append(sent).append(' ');
+        while (text.length() < config.messageSize) {
+            text.append('x');
+        }
+        text.setLength(config.messageSize);
+        return text.toString();
+    }
+
+    private void startFileTransfer() {
+        if (filesLaunched.get() >= config.files) {
+            return;
+        }
+        List<SimulatedClient> online = joined;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int attempt = 0; attempt < 10 && online.size() >= 2; attempt++) {
+            SimulatedClient sender = online.get(random.nextInt(online.size()));
+            SimulatedClient receiver = online.get(random.nextInt(online.size()));
+            if (sender == receiver || !sender.transferring.compareAndSet(false, true)) {
+                continue;
+            }
+            if (!receiver.transferring.compareAndSet(false, true)) {
+                sender.transferring.set(false);
+                continue;
+            }
+            filesLaunched.incrementAndGet();
+            files.start(sender, receiver);
+            return;
+        }
+        filesSkipped.increment();
+    }
+
+    private void expire() {
+        long oldest = System.nanoTime() - EXPIRE_NANOS;
+        inFlight.values().removeIf(sent -> sent < oldest);
+    }
+
+    /** Callbacks from SimulatedClient reader threads **/
+
+    void joined(SimulatedClient client, long nanos) {
+        joinLatency.recordNanos(nanos);
+        if (client.room != null) {
+            roomMembers[client.roomIndex].incrementAndGet();
+        }
+        joined.add(client);
+    }
+
+    void delivered(String ciphertext, String mac, long now, int deliveries) {
+        Long sent = inFlight.get(ciphertext);
+        if (sent == null) {
+            unmatched.increment();
+        } else if (sent >= windowStart && sent < windowEnd) {
+            latency.recordNanos(now - sent);
+            delivered.increment();
+        }
+
+        // Do what a real client does with the frame: decrypt, then check the MAC
+        if (config.verifyEvery > 0 && deliveries % config.verifyEvery == 0) {
+            try {
+                String plaintext = crypto.decrypt(ciphertext);
+                if (mac != null && !crypto.verifyMAC(plaintext, mac)) {
+                    verifyFailures.increment();
+                }
+            } catch (Exception e) {
+                verifyFailures.increment();
+            }
+            verified.increment();
+        }
+    }
+
+    void fileRequested(SimulatedClient receiver, String filename) {
+        if (files != null) {
+            files.requested(receiver, filename);
+        }
+    }
+
+    void redirected(SimulatedClient client) {
+        redirects.increment();
+    }
+
+    void protocolError(SimulatedClient client, Exception e) {
+        protocolErrors.increment();
+    }
+
+    void disconnected(SimulatedClient client, IOException e) {
+        if (stopping) {
+            return;
+        }
+        disconnects.increment();
+        if (joined.remove(client) && client.room != null) {
+            roomMembers[client.roomIndex].decrementAndGet();
+        }
+        LOG.warn("[LoadGenerator]: " + client.username + " disconnected: " + e.getMessage());
+    }
+
+    /**
+     * Logs running totals while the test runs
+     */
+    private class Progress implements Runnable {
+        private long lastSent, lastDelivered, lastTime = System.nanoTime();
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            long sent = broadcastsSent.sum() + directSent.sum();
+            long got = delivered.sum();
+            double seconds = (now - lastTime) / 1e9;
+            LOG.info(String.format("[LoadGenerator]: %d/%d joined, %.0f msg/s sent, %.0f deliveries/s,"
+                            + " p50 %s, p99 %s",
+                    joined.size(), clients.length, (sent - lastSent) / seconds, (got - lastDelivered) / seconds,
+                    millis(latency.percentileMicros(50)), millis(latency.percentileMicros(99))));
+            lastSent = sent;
+            lastDelivered = got;
+            lastTime = now;
+        }
+    }
+
+    private String report(long started, long finished) {
+        SimpleDateFormat time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        double window = (windowEnd - windowStart) / 1e9;
+        long sent = broadcastsSent.sum() + directSent.sum();
+        StringBuilder out = new StringBuilder();
+
+        out.append("Chat load test report\n");
+        out.append("=====================\n");
+        out.append("Started:   ").append(time.format(new Date(started))).append('\n');
+        out.append("Finished:  ").append(time.format(new Date(finished))).append('\n');
+        out.append("Setup:     ").append(config).append('\n');
+        out.append("Client:    ").append(crypto.getKeyInfo()).append(", ").append(config.messageSize)
+                .append(" byte messages, verify every ").append(config.verifyEvery).append('\n');
+        out.append('\n');
+
+        out.append("Connections\n");
+        out.append(String.format("  joined %d of %d, connect failures %d, disconnects %d, protocol errors %d%n",
+                joined.size(), clients.length, connectFailures.sum(), disconnects.sum(), protocolErrors.sum()));
+        if (redirects.sum() > 0) {
+            out.append(String.format("  redirected to their cluster node %d%n", redirects.sum()));
+        }
+        out.append("  join latency (CMD_JOIN to CMD_ONLINE): ").append(percentiles(joinLatency)).append('\n');
+        out.append('\n');
+
+        out.append(String.format("Messages (measured window %.1f s)%n", window));
+        out.append(String.format("  sent %d (%d %s, %d direct), send errors %d, skipped %d%n",
+                sent, broadcastsSent.sum(), config.rooms > 0 ? "room" : "broadcast", directSent.sum(),
+                sendErrors.sum(), skipped.sum()));
+        out.append(String.format("  deliveries %d of %d expected (%.2f%%), unmatched %d%n",
+                delivered.sum(), expected.sum(),
+                expected.sum() == 0 ? 100.0 : 100.0 * delivered.sum() / expected.sum(), unmatched.sum()));
+        out.append(String.format("  throughput %.1f deliveries/s%n", delivered.sum() / window));
+        out.append("  latency: ").append(percentiles(latency)).append('\n');
+        out.append(String.format("  decrypted and verified %d, failures %d%n", verified.sum(), verifyFailures.sum()));
+
+        if (files != null) {
+            double transferSeconds = files.transferNanos.sum() / 1e9;
+            out.append('\n');
+            out.append(String.format("File transfers (%d bytes, %d encrypted)%n",
+                    config.fileSize, files.getPayloadSize()));
+            out.append(String.format("  started %d, completed %d, failed %d, skipped (no idle pair) %d%n",
+                    files.started.sum(), files.completed.sum(), files.failed.sum(), filesSkipped.sum()));
+            out.append("  handshake (CMD_SEND_FILE_XD to CMD_RECEIVE_FILE_RESUME): ")
+                    .append(percentiles(files.handshake)).append('\n');
+            out.append("  total (request to last byte received): ").append(percentiles(files.duration)).append('\n');
+            out.append(String.format("  average rate %.2f MB/s per transfer%n",
+                    transferSeconds == 0 ? 0 : files.bytes.sum() / transferSeconds / (1024 * 1024)));
+        }
+        return out.toString();
+    }
+
+    private static String percentiles(LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return "no samples";
+        }
+        return String.format("n=%d mean %s p50 %s p90 %s p99 %s p99.9 %s max %s",
+                histogram.getCount(), millis((long) histogram.getMeanMicros()),
+                millis(histogram.percentileMicros(50)), millis(histogram.percentileMicros(90)),
+                millis(histogram.percentileMicros(99)), millis(histogram.percentileMicros(99.9)),
+                millis(histogram.getMaxMicros()));
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.2f ms", micros / 1000.0);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger number = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, "loadtest-" + name + "-" + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public static void main(String[] args) {
+        LoadConfig config;
+        try {
+            config = LoadConfig.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LoadConfig.usage());
+            System.exit(2);
+            return;
+        }
+
+        try {
+            String report = new LoadGenerator(config).run();
+            System.out.println();
+            System.out.print(report);
+            try (Writer writer = new PrintWriter(new FileWriter(config.reportFile))) {
+                writer.write(report);
+            }
+            System.out.println("Report written to " + config.reportFile);
+        } catch (Exception e) {
+            System.err.println("Load test failed: " + e);
+            System.exit(1);
+        }
+        // Reader threads of users whose sockets never closed must not keep the JVM up
+        System.exit(0);
+    }
+}
@@ -0,0 +1,226 @@
+package sendfile.loadtest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Starts a cluster of headless servers on this machine, one process per
+ * node, for trying federation and user placement without several hosts.
+ *
+ *   java -cp ... sendfile.loadtest.LocalCluster --nodes 3 --port 7001 [-- server options]
+ *
+ * Node nI listens on port + I - 1, peers with all the others and places
+ * users by consistent hash (--placement hash, unless given after --). The
+ * nodes share a --cluster-secret made up for this run, unless one is given.
+ * The
+ * nodes run from this process's classpath and log to nI.log in --log-dir.
+ * Then LoadGenerator --port with the printed list exercises the cluster,
+ * while stop nI / start nI on standard input take a node away and back to
+ * watch users leave, rejoin and be redirected. quit (or end of input)
+ * stops every node.
+ */
+public class LocalCluster {
+
+    private final int nodes;
+    private final int basePort;
+    private final File logDirectory;
+    private final List<String> serverOptions;
+    private final Process[] processes;
+    private final String clusterSecret;
+
+    LocalCluster(int nodes, int basePort, File logDirectory, List<String> serverOptions) {
+        this.nodes = nodes;
+        this.basePort = basePort;
+        this.logDirectory = logDirectory;
+        this.serverOptions = serverOptions;
+        this.processes = new Process[nodes];
+        byte[] secret = new byte[24];
+        new SecureRandom().nextBytes(secret);
+        this.clusterSecret = Base64.getEncoder().encodeToString(secret);
+    }
+
+    static String nodeId(int index) {
+        return "n" + (index + 1);
+    }
+
+    /**
+     * Comma-separated client ports, as LoadGenerator --port takes them
+     */
+    String portList() {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < nodes; i++) {
+            list.append(i > 0 ? "," : "").append(basePort + i);
+        }
+        return list.toString();
+    }
+
+    synchronized void start(int index) throws IOException {
+        if (processes[index] != null && processes[index].isAlive()) {
+            return;
+        }
+        StringBuilder peers = new StringBuilder();
+        for (int i = 0; i < nodes; i++) {
+            if (i != index) {
+                peers.append(peers.length() > 0 ? "," : "").append("127.0.0.1:").append(basePort + i);
+            }
+        }
+
+        List<String> command = new ArrayList<>(Arrays.asList(
+                new File(System.getProperty("java.home"), "bin" + File.separator + "java").getPath(),
+                "-cp", System.getProperty("java.class.path"),
+                "sendfile.server.ChatServer",
+                "--port", Integer.toString(basePort + index),
+                "--node-id", nodeId(index),
+                "--peers", peers.toString()));
+        if (!serverOptions.contains("--placement")) {
+            command.add("--placement");
+            command.add("hash");
+        }
+        if (!serverOptions.contains("--cluster-secret")) {
+            command.add("--cluster-secret");
+            command.add(clusterSecret);
+        }
+        command.addAll(serverOptions);
+
+        logDirectory.mkdirs();
+        File log = new File(logDirectory, nodeId(index) + ".log");
+        processes[index] = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(log))
+                .start();
+        System.out.println("Started " + nodeId(index) + " on port " + (basePort + index) + ", log " + log.getPath());
+    }
+
+    /**
+     * Stop a node the way Ctrl-C would, so the others see it leave
+     */
+    synchronized void stop(int index) throws InterruptedException {
+        Process process = processes[index];
+        if (process == null || !process.isAlive()) {
+            return;
+        }
+        process.destroy();
+        process.waitFor();
+        processes[index] = null;
+        System.out.println("Stopped " + nodeId(index));
+    }
+
+    synchronized void stopAll() throws InterruptedException {
+        for (int i = 0; i < nodes; i++) {
+            stop(i);
+        }
+    }
+
+    /**
+     * Node index for nI or I, or -1
+     */
+    private int indexOf(String name) {
+        try {
+            int index = Integer.parseInt(name.startsWith("n") ? name.substring(1) : name) - 1;
+            return index >= 0 && index < nodes ? index : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Read stop / start / quit commands until quit or end of input
+     */
+    void console() throws IOException, InterruptedException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] words = line.trim().split("\\s+");
+            if (words[0].isEmpty()) {
+                continue;
+            }
+            if (words[0].equals("quit")) {
+                break;
+            }
+            int index = words.length == 2 ? indexOf(words[1]) : -1;
+            if (index < 0 || !(words[0].equals("stop") || words[0].equals("start"))) {
+                System.out.println("Commands: stop nI, start nI, quit (nodes n1 to n" + nodes + ")");
+            } else if (words[0].equals("stop")) {
+                stop(index);
+            } else {
+                start(index);
+            }
+        }
+    }
+
+    private static int parseInt(String option, String value, int min, int max) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < min || parsed > max) {
+                throw new IllegalArgumentException(option + " must be between " + min + " and " + max);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " expects a number, got '" + value + "'");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int nodes = 3;
+        int basePort = 7001;
+        File logDirectory = new File(".");
+        List<String> serverOptions = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if (option.equals("--")) {
+                    serverOptions.addAll(Arrays.asList(args).subList(i + 1, args.length));
+                    break;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + option);
+                }
+                String value = args[++i];
+                switch (option) {
+                    case "--nodes":
+                        nodes = parseInt(option, value, 1, 64);
+                        break;
+                    case "--port":
+                        basePort = parseInt(option, value, 1, 65535 - 64);
+                        break;
+                    case "--log-dir":
+                        logDirectory = new File(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java sendfile.loadtest.LocalCluster [--nodes N] [--port FIRST]"
+                    + " [--log-dir DIR] [-- server options]");
+            System.exit(2);
+            return;
+        }
+
+        final LocalCluster cluster = new LocalCluster(nodes, basePort, logDirectory, serverOptions);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                cluster.stopAll();
+            } catch (InterruptedException ignored) {
+            }
+        }, "local-cluster-shutdown"));
+
+        for (int i = 0; i < nodes; i++) {
+            cluster.start(i);
+        }
+        System.out.println();
+        System.out.println("Load test:  java -cp " + System.getProperty("java.class.path")
+                + " sendfile.loadtest.LoadGenerator --port " + cluster.portList() + " ...");
+        System.out.println("Commands:   stop nI, start nI, quit");
+        cluster.console();
+        cluster.stopAll();
+    }
+}
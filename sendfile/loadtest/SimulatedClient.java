@@ -0,0 +1,167 @@
+package sendfile.loadtest;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.MessageStream;
+import sendfile.protocol.ProtocolException;
+
+/**
+ * One simulated chat user: a real protocol connection and its reader.
+ * Does what SecureClientThread does for a person, minus Swing: joins,
+ * receives broadcasts and direct messages, answers file requests.
+ */
+class SimulatedClient implements Runnable {
+
+    final String username;
+
+    /** Room this user posts to and reads (CMD_ROOM_JOIN after CMD_JOIN), or null **/
+    final String room;
+    final int roomIndex;
+
+    /** Server (cluster node) this user is joined on, after any CMD_REDIRECT; its file transfers use it too **/
+    volatile String host;
+    volatile int port;
+    private final LoadGenerator generator;
+    private LoadConfig config;
+    private Socket socket;
+    private MessageStream stream;
+    private long joinStart;
+    private volatile boolean joined;
+    private int deliveries;
+
+    /** A user takes part in one file transfer at a time (the server keys them by username) **/
+    final AtomicBoolean transferring = new AtomicBoolean();
+
+    SimulatedClient(String username, String room, int roomIndex, int port, LoadGenerator generator) {
+        this.username = username;
+        this.room = room;
+        this.roomIndex = roomIndex;
+        this.port = port;
+        this.generator = generator;
+    }
+
+    /**
+     * Connect and send CMD_JOIN; the reader completes the join on CMD_ONLINE
+     */
+    void connect(LoadConfig config) throws IOException {
+        this.config = config;
+        host = config.host;
+        joinStart = System.nanoTime();
+        join();
+    }
+
+    private void join() throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        stream = MessageStream.connect(socket, config.format);
+        stream.write(Message.of(Command.JOIN, username));
+        if (room != null) {
+            stream.write(Message.of(Command.ROOM_JOIN, room));
+        }
+    }
+
+    boolean isJoined() {
+        return joined;
+    }
+
+    /**
+     * CMD_CHATALL_ENCRYPTED [from] [ciphertext] [mac]
+     */
+    void sendBroadcast(String ciphertext, String mac) throws IOException {
+        stream.write(Message.of(Command.CHATALL_ENCRYPTED, username, ciphertext, mac));
+    }
+
+    /**
+     * CMD_CHATROOM_ENCRYPTED [from] [room] [ciphertext] [mac]
+     */
+    void sendRoom(String ciphertext, String mac) throws IOException {
+        stream.write(Message.of(Command.CHATROOM_ENCRYPTED, username, room, ciphertext, mac));
+    }
+
+    /**
+     * CMD_CHAT_ENCRYPTED [from] [sendTo] [ciphertext] [mac]
+     */
+    void sendDirect(String sendTo, String ciphertext, String mac) throws IOException {
+        stream.write(Message.of(Command.CHAT_ENCRYPTED, username, sendTo, ciphertext, mac));
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Message message;
+                try {
+                    message = stream.read();
+                } catch (ProtocolException e) {
+                    generator.protocolError(this, e);
+                    continue;
+                }
+                long now = System.nanoTime();
+
+                switch (message.getCommand()) {
+                    case ONLINE:
+                        if (!joined) {
+                            joined = true;
+                            generator.joined(this, now - joinStart);
+                        }
+                        break;
+
+                    case REDIRECT:
+                        // CMD_REDIRECT [node] [host] [port]: join again on our node; counts into the join latency
+                        if (joined) {
+                            throw new IOException("CMD_REDIRECT after joining");
+                        }
+                        socket.close();
+                        host = message.getString(1);
+                        port = (int) message.getLong(2);
+                        generator.redirected(this);
+                        join();
+                        break;
+
+                    case MESSAGE_ENCRYPTED:
+                        // CMD_MESSAGE_ENCRYPTED [from] [ciphertext] [mac]
+                        generator.delivered(message.getString(1), message.getString(2), now, ++deliveries);
+                        break;
+
+                    case ROOM_MESSAGE_ENCRYPTED:
+                        // CMD_ROOM_MESSAGE_ENCRYPTED [room] [from] [ciphertext] [mac]
+                        generator.delivered(message.getString(2), message.getString(3), now, ++deliveries);
+                        break;
+
+                    case DIRECT_MESSAGE_ENCRYPTED:
+                        // CMD_DIRECT_MESSAGE_ENCRYPTED [from] [ciphertext] [mac]
+                        generator.delivered(message.getString(1), message.getString(2), now, ++deliveries);
+                        break;
+
+                    case MESSAGE:
+                        // CMD_MESSAGE [from] [message]
+                        generator.delivered(message.getString(1), null, now, ++deliveries);
+                        break;
+
+                    case FILE_XD:
+                        // CMD_FILE_XD [sender] [receiver] [filename]
+                        generator.fileRequested(this, message.getString(2));
+                        break;
+
+                    default:
+                        // Presence updates, history and the rest are not measured
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            generator.disconnected(this, e);
+        }
+    }
+
+    void close() {
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package sendfile.log;
+
+/**
+ * Writes records to standard output (WARN and ERROR to standard error)
+ */
+public class ConsoleSink implements LogSink {
+
+    @Override
+    public void write(LogRecord record) {
+        if (record.getLevel().compareTo(Level.WARN) >= 0) {
+            System.err.println(LogFormat.fullLine(record));
+        } else {
+            System.out.println(LogFormat.fullLine(record));
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package sendfile.log;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Appends records to a text file; flushed once per batch, not per line
+ */
+public class FileSink implements LogSink {
+
+    private final Writer out;
+
+    public FileSink(String path) throws IOException {
+        out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void write(LogRecord record) throws IOException {
+        out.write(LogFormat.fullLine(record));
+        out.write(System.lineSeparator());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
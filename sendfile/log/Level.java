@@ -0,0 +1,8 @@
+package sendfile.log;
+
+/**
+ * Log levels, least to most severe
+ */
+public enum Level {
+    DEBUG, INFO, WARN, ERROR
+}
@@ -0,0 +1,205 @@
+package sendfile.log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logging shared by client and server.
+ *
+ * Producers put records on a lock-free queue and return; one daemon thread
+ * ("log-writer") hands them to the sinks in batches. When the queue holds
+ * MAX_QUEUED records new ones are dropped (and counted) rather than
+ * blocking message routing.
+ *
+ * Configured with system properties:
+ *   sendfile.log.level=DEBUG|INFO|WARN|ERROR   default level (INFO)
+ *   sendfile.log.debug=broadcast,client        categories logged at DEBUG
+ *   sendfile.log.off=presence                  categories switched off
+ *   sendfile.log.rate=broadcast:200            records per second per category
+ *   sendfile.log.file=server.log               also append to this file
+ *   sendfile.log.console=false                 no console output
+ */
+public final class Log {
+
+    private static final int MAX_QUEUED = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+
+    /** Hot per-message categories are sampled unless sendfile.log.rate says otherwise **/
+    private static final String DEFAULT_RATES = "broadcast:200,client:200";
+
+    private static final ConcurrentHashMap<String, Logger> loggers = new ConcurrentHashMap<>();
+    private static final Queue<LogRecord> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicInteger dropped = new AtomicInteger();
+    private static final List<LogSink> sinks = new CopyOnWriteArrayList<>();
+    private static volatile Level defaultLevel = Level.INFO;
+    private static volatile boolean writerParked = false;
+    private static final Thread writer;
+
+    static {
+        String level = System.getProperty("sendfile.log.level");
+        if (level != null) {
+            defaultLevel = Level.valueOf(level.trim().toUpperCase());
+        }
+        if (!"false".equalsIgnoreCase(System.getProperty("sendfile.log.console"))) {
+            sinks.add(new ConsoleSink());
+        }
+        String file = System.getProperty("sendfile.log.file");
+        if (file != null) {
+            try {
+                sinks.add(new FileSink(file));
+            } catch (IOException e) {
+                System.err.println("Cannot open log file " + file + ": " + e.getMessage());
+            }
+        }
+
+        writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    /**
+     * Logger for a category, created on first use
+     */
+    public static Logger get(String category) {
+        Logger logger = loggers.get(category);
+        if (logger == null) {
+            Logger created = new Logger(category, defaultLevel);
+            applyProperties(created);
+            logger = loggers.putIfAbsent(category, created);
+            if (logger == null) {
+                logger = created;
+            }
+        }
+        return logger;
+    }
+
+    private static void applyProperties(Logger logger) {
+        String rates = System.getProperty("sendfile.log.rate", DEFAULT_RATES);
+        for (String entry : rates.split(",")) {
+            int colon = entry.indexOf(':');
+            if (colon > 0 && entry.substring(0, colon).trim().equals(logger.getCategory())) {
+                logger.setMaxPerSecond(Integer.parseInt(entry.substring(colon + 1).trim()));
+            }
+        }
+        if (listed("sendfile.log.debug", logger.getCategory())) {
+            logger.setLevel(Level.DEBUG);
+        }
+        if (listed("sendfile.log.off", logger.getCategory())) {
+            logger.setCategoryEnabled(false);
+        }
+    }
+
+    private static boolean listed(String property, String category) {
+        String value = System.getProperty(property);
+        if (value == null) {
+            return false;
+        }
+        for (String name : value.split(",")) {
+            if (name.trim().equals(category)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Change the level of every logger, existing and future
+     */
+    public static void setDefaultLevel(Level level) {
+        defaultLevel = level;
+        for (Logger logger : loggers.values()) {
+            logger.setLevel(level);
+        }
+    }
+
+    public static void addSink(LogSink sink) {
+        sinks.add(sink);
+    }
+
+    public static void removeSink(LogSink sink) {
+        sinks.remove(sink);
+    }
+
+    /**
+     * Records dropped because the queue was full, since startup
+     */
+    public static int getDropped() {
+        return dropped.get();
+    }
+
+    static void enqueue(LogRecord record) {
+        if (queued.incrementAndGet() > MAX_QUEUED) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.add(record);
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void writeLoop() {
+        int reportedDrops = 0;
+        while (true) {
+            if (!drain()) {
+                writerParked = true;
+                if (queue.isEmpty()) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                writerParked = false;
+            }
+            int drops = dropped.get();
+            if (drops != reportedDrops) {
+                write(new LogRecord(System.currentTimeMillis(), Level.WARN, "log",
+                        (drops - reportedDrops) + " log records dropped (queue full)", null));
+                reportedDrops = drops;
+            }
+        }
+    }
+
+    /**
+     * Write everything queued so far; false if there was nothing.
+     * Also used by the shutdown hook so the last lines are not lost.
+     */
+    private static synchronized boolean drain() {
+        LogRecord record;
+        boolean any = false;
+        while ((record = queue.poll()) != null) {
+            queued.decrementAndGet();
+            write(record);
+            any = true;
+        }
+        if (any) {
+            for (LogSink sink : sinks) {
+                try {
+                    sink.flush();
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Log sink failed: " + e);
+                }
+            }
+        }
+        return any;
+    }
+
+    private static void write(LogRecord record) {
+        for (LogSink sink : sinks) {
+            try {
+                sink.write(record);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Log sink failed: " + e);
+            }
+        }
+    }
+}
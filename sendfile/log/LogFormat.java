@@ -0,0 +1,47 @@
+package sendfile.log;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Line formats shared by the sinks (writer thread only)
+ */
+public final class LogFormat {
+
+    private static final DateTimeFormatter TIME =
+            DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter DATE_TIME =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private LogFormat() {
+    }
+
+    /**
+     * "[HH:mm:ss] message", as shown in the server window
+     */
+    public static String shortLine(LogRecord record) {
+        return "[" + TIME.format(Instant.ofEpochMilli(record.getTime())) + "] " + record.getMessage()
+                + stackTrace(record.getError());
+    }
+
+    /**
+     * "yyyy-MM-dd HH:mm:ss.SSS LEVEL [category] message", for files and the console
+     */
+    public static String fullLine(LogRecord record) {
+        return DATE_TIME.format(Instant.ofEpochMilli(record.getTime())) + " "
+                + String.format("%-5s", record.getLevel()) + " [" + record.getCategory() + "] "
+                + record.getMessage() + stackTrace(record.getError());
+    }
+
+    private static String stackTrace(Throwable error) {
+        if (error == null) {
+            return "";
+        }
+        StringWriter trace = new StringWriter();
+        error.printStackTrace(new PrintWriter(trace));
+        return System.lineSeparator() + trace.toString().trim();
+    }
+}
@@ -0,0 +1,43 @@
+package sendfile.log;
+
+/**
+ * One log event as handed from a producer to the writer thread
+ */
+public final class LogRecord {
+
+    private final long time;
+    private final Level level;
+    private final String category;
+    private final String message;
+    private final Throwable error;
+
+    LogRecord(long time, Level level, String category, String message, Throwable error) {
+        this.time = time;
+        this.level = level;
+        this.category = category;
+        this.message = message;
+        this.error = error;
+    }
+
+    /** Milliseconds since the epoch **/
+    public long getTime() {
+        return time;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /** Attached exception, or null **/
+    public Throwable getError() {
+        return error;
+    }
+}
@@ -0,0 +1,18 @@
+package sendfile.log;
+
+import java.io.IOException;
+
+/**
+ * Destination for log records (console, file, a UI).
+ * Only ever called from the log writer thread, so implementations need no locking.
+ */
+public interface LogSink {
+
+    void write(LogRecord record) throws IOException;
+
+    /**
+     * Called after each batch of records
+     */
+    default void flush() throws IOException {
+    }
+}
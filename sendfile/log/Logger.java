@@ -0,0 +1,122 @@
+package sendfile.log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logger for one category, obtained from Log.get().
+ *
+ * Disabled levels cost one volatile read; guard expensive messages with
+ * isDebugEnabled(). Enabled records are queued for the writer thread, the
+ * caller never does I/O. A category can be rate limited: beyond
+ * maxPerSecond records in a second the rest are counted and reported as
+ * one "suppressed" line in the next second.
+ */
+public final class Logger {
+
+    private final String category;
+    private volatile Level level;
+    private volatile boolean enabled = true;
+    private volatile int maxPerSecond = 0;
+
+    /** Sampling window state **/
+    private final AtomicLong windowSecond = new AtomicLong();
+    private final AtomicInteger windowCount = new AtomicInteger();
+    private final AtomicInteger suppressed = new AtomicInteger();
+
+    Logger(String category, Level level) {
+        this.category = category;
+        this.level = level;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public boolean isCategoryEnabled() {
+        return enabled;
+    }
+
+    public void setCategoryEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Keep at most this many records per second (0 = no limit)
+     */
+    public void setMaxPerSecond(int maxPerSecond) {
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    public boolean isEnabled(Level check) {
+        return enabled && check.compareTo(level) >= 0;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public void warn(String message, Throwable error) {
+        log(Level.WARN, message, error);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    public void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    public void log(Level at, String message, Throwable error) {
+        if (!isEnabled(at)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (maxPerSecond > 0 && !sample(now)) {
+            return;
+        }
+        Log.enqueue(new LogRecord(now, at, category, message, error));
+    }
+
+    /**
+     * True if this record fits in the current second's budget
+     */
+    private boolean sample(long now) {
+        long second = now / 1000;
+        long current = windowSecond.get();
+        if (second != current && windowSecond.compareAndSet(current, second)) {
+            windowCount.set(0);
+            int skipped = suppressed.getAndSet(0);
+            if (skipped > 0) {
+                Log.enqueue(new LogRecord(now, Level.INFO, category,
+                        skipped + " messages suppressed (limit " + maxPerSecond + "/s)", null));
+            }
+        }
+        if (windowCount.incrementAndGet() > maxPerSecond) {
+            suppressed.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+}
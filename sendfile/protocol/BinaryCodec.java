@@ -0,0 +1,282 @@
+package sendfile.protocol;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Versioned binary framing:
+ *
+ *   [opcode: 1 byte][body length: varint][body]
+ *
+ * Body fields follow the command's schema: STRING/TEXT as varint length +
+ * UTF-8 bytes, LONG as varint, LIST as varint count + strings. No 64 KB cap,
+ * no modified UTF-8 and no tokenizing. A connection opts in by sending
+ * PREAMBLE as its first four bytes.
+ */
+public final class BinaryCodec {
+
+    public static final int VERSION = 1;
+    public static final byte[] PREAMBLE = {'S', 'C', 'B', VERSION};
+    public static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Total encoded size of a frame (opcode + length + body)
+     */
+    public static int encodedLength(Message message) {
+        int body = bodyLength(message);
+        return 1 + varintLength(body) + body;
+    }
+
+    /**
+     * Encode a message into a new heap buffer, flipped and ready to write
+     */
+    public static ByteBuffer encode(Message message) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength(message));
+        encode(message, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encode a message into dst, which must have encodedLength() bytes remaining
+     */
+    public static void encode(Message message, ByteBuffer dst) {
+        Command command = message.getCommand();
+        dst.put((byte) command.getOpcode());
+        writeVarint(dst, bodyLength(message));
+        for (int i = 0; i < command.getFieldCount(); i++) {
+            switch (command.getField(i)) {
+                case LONG:
+                    writeVarint(dst, message.getLong(i));
+                    break;
+                case LIST:
+                    String[] items = message.getList(i);
+                    writeVarint(dst, items.length);
+                    for (String item : items) {
+                        writeString(dst, item);
+                    }
+                    break;
+                default:
+                    writeString(dst, message.getString(i));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Decode one frame from src. Returns null (position unchanged) if the
+     * frame is not complete yet. Throws ProtocolException with the frame
+     * consumed when the opcode is unknown or the body is malformed, and
+     * FrameTooLargeException when the stream cannot be trusted any more
+     * (a length past MAX_FRAME or no valid varint at all).
+     */
+    public static Message decode(ByteBuffer src) throws IOException {
+        int start = src.position();
+        if (src.remaining() < 2) {
+            return null;
+        }
+        int opcode = src.get() & 0xFF;
+        long length;
+        try {
+            length = readVarint(src);
+        } catch (BufferUnderflowException e) {
+            src.position(start);
+            return null;
+        } catch (ProtocolException e) {
+            throw new FrameTooLargeException("Frame length is not a valid varint");
+        }
+        // Unsigned: a length with the top bit set is as much too large as any
+        if (length < 0 || length > MAX_FRAME) {
+            throw new FrameTooLargeException(length);
+        }
+        if (src.remaining() < length) {
+            src.position(start);
+            return null;
+        }
+
+        ByteBuffer body = src.slice();
+        body.limit((int) length);
+        src.position(src.position() + (int) length);
+        return decodeBody(opcode, body);
+    }
+
+    /**
+     * Decode a frame body whose opcode and length have already been read
+     */
+    public static Message decodeBody(int opcode, ByteBuffer body) throws ProtocolException {
+        Command command = Command.forOpcode(opcode);
+        if (command == null) {
+            throw new ProtocolException("Unknown opcode 0x" + Integer.toHexString(opcode));
+        }
+        try {
+            Object[] values = new Object[command.getFieldCount()];
+            for (int i = 0; i < values.length; i++) {
+                switch (command.getField(i)) {
+                    case LONG:
+                        values[i] = readVarintStrict(body);
+                        break;
+                    case LIST:
+                        int count = (int) readVarintStrict(body);
+                        if (count > body.remaining()) {
+                            throw new IllegalStateException("truncated list");
+                        }
+                        String[] items = new String[count];
+                        for (int j = 0; j < count; j++) {
+                            items[j] = readString(body);
+                        }
+                        values[i] = items;
+                        break;
+                    default:
+                        values[i] = readString(body);
+                        break;
+                }
+            }
+            return Message.of(command, values);
+        } catch (RuntimeException e) {
+            throw new ProtocolException(command + ": malformed body");
+        }
+    }
+
+    private static int bodyLength(Message message) {
+        Command command = message.getCommand();
+        int length = 0;
+        for (int i = 0; i < command.getFieldCount(); i++) {
+            switch (command.getField(i)) {
+                case LONG:
+                    length += varintLength(message.getLong(i));
+                    break;
+                case LIST:
+                    String[] items = message.getList(i);
+                    length += varintLength(items.length);
+                    for (String item : items) {
+                        length += stringLength(item);
+                    }
+                    break;
+                default:
+                    length += stringLength(message.getString(i));
+                    break;
+            }
+        }
+        return length;
+    }
+
+    /** Varints: 7 bits per byte, low bits first, high bit = more **/
+
+    public static int varintLength(long value) {
+        int length = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    public static void writeVarint(ByteBuffer dst, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    /**
+     * Read a varint (any 64-bit value, so also negative ones). Throws
+     * BufferUnderflowException (position undefined) if src ends first, and
+     * ProtocolException if it does not end within ten bytes or overflows.
+     */
+    public static long readVarint(ByteBuffer src) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = src.get();
+            if (shift == 63 && (b & 0x7E) != 0) {
+                throw new ProtocolException("Malformed varint: more than 64 bits");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Malformed varint: more than 10 bytes");
+    }
+
+    private static long readVarintStrict(ByteBuffer src) throws ProtocolException {
+        try {
+            return readVarint(src);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalStateException("truncated varint");
+        }
+    }
+
+    /** Strings: varint byte length + UTF-8, encoded straight into the buffer **/
+
+    private static int stringLength(String s) {
+        int bytes = utf8Length(s);
+        return varintLength(bytes) + bytes;
+    }
+
+    static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writeString(ByteBuffer dst, String s) {
+        writeVarint(dst, utf8Length(s));
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                dst.put((byte) c);
+            } else if (c < 0x800) {
+                dst.put((byte) (0xC0 | (c >> 6)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                dst.put((byte) (0xF0 | (cp >> 18)));
+                dst.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                dst.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (cp & 0x3F)));
+            } else {
+                // Lone surrogate: 3 bytes, decoded as U+FFFD on the other side
+                dst.put((byte) (0xE0 | (c >> 12)));
+                dst.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                dst.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer src) throws ProtocolException {
+        int length = (int) readVarintStrict(src);
+        if (length > src.remaining()) {
+            throw new IllegalStateException("truncated string");
+        }
+        String s;
+        if (src.hasArray()) {
+            s = new String(src.array(), src.arrayOffset() + src.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            src.duplicate().get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        src.position(src.position() + length);
+        return s;
+    }
+}
@@ -0,0 +1,112 @@
+package sendfile.protocol;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Every command of the chat protocol with its binary opcode, its legacy
+ * text name and the typed fields it carries (in wire order).
+ *
+ * The same text name can mean different things depending on direction
+ * (CMD_SENDFILE client->server carries the recipient, server->client the sender),
+ * so text names are resolved per direction; opcodes are unique.
+ */
+public enum Command {
+
+    /** Client -> server **/
+    JOIN(0x01, "CMD_JOIN", Direction.TO_SERVER, Field.STRING),
+    CHAT(0x02, "CMD_CHAT", Direction.TO_SERVER, Field.STRING, Field.STRING, Field.TEXT),
+    CHATALL(0x03, "CMD_CHATALL", Direction.TO_SERVER, Field.STRING, Field.TEXT),
+    CHATALL_ENCRYPTED(0x04, "CMD_CHATALL_ENCRYPTED", Direction.TO_SERVER, Field.STRING, Field.STRING, Field.STRING),
+    SHARINGSOCKET(0x05, "CMD_SHARINGSOCKET", Direction.TO_SERVER, Field.STRING),
+    SENDFILE(0x06, "CMD_SENDFILE", Direction.TO_SERVER, Field.STRING, Field.LONG, Field.STRING, Field.STRING),
+    SEND_FILE_XD(0x07, "CMD_SEND_FILE_XD", Direction.TO_SERVER, Field.STRING, Field.STRING, Field.STRING),
+    SEND_FILE_ERROR(0x08, "CMD_SEND_FILE_ERROR", Direction.TO_SERVER, Field.STRING, Field.TEXT),
+    SEND_FILE_ACCEPT(0x09, "CMD_SEND_FILE_ACCEPT", Direction.TO_SERVER, Field.STRING, Field.TEXT),
+    ROOM_JOIN(0x0A, "CMD_ROOM_JOIN", Direction.TO_SERVER, Field.STRING),
+    ROOM_LEAVE(0x0B, "CMD_ROOM_LEAVE", Direction.TO_SERVER, Field.STRING),
+    CHATROOM_ENCRYPTED(0x0C, "CMD_CHATROOM_ENCRYPTED", Direction.TO_SERVER, Field.STRING, Field.STRING, Field.STRING, Field.STRING),
+    CHAT_ENCRYPTED(0x0D, "CMD_CHAT_ENCRYPTED", Direction.TO_SERVER, Field.STRING, Field.STRING, Field.STRING, Field.STRING),
+    SEND_FILE_RESUME(0x0E, "CMD_SEND_FILE_RESUME", Direction.TO_SERVER, Field.STRING, Field.STRING, Field.LONG, Field.LONG),
+
+    /** Both directions **/
+    SENDFILERESPONSE(0x10, "CMD_SENDFILERESPONSE", Direction.BOTH, Field.STRING, Field.TEXT),
+
+    /** Server -> client **/
+    MESSAGE(0x20, "CMD_MESSAGE", Direction.TO_CLIENT, Field.STRING, Field.TEXT),
+    MESSAGE_ENCRYPTED(0x21, "CMD_MESSAGE_ENCRYPTED", Direction.TO_CLIENT, Field.STRING, Field.STRING, Field.STRING),
+    ONLINE(0x22, "CMD_ONLINE", Direction.TO_CLIENT, Field.LIST),
+    FILE_XD(0x23, "CMD_FILE_XD", Direction.TO_CLIENT, Field.STRING, Field.STRING, Field.STRING),
+    FILE_INCOMING(0x24, "CMD_SENDFILE", Direction.TO_CLIENT, Field.STRING, Field.LONG, Field.STRING),
+    SENDFILEERROR(0x25, "CMD_SENDFILEERROR", Direction.TO_CLIENT, Field.TEXT),
+    RECEIVE_FILE_ERROR(0x26, "CMD_RECEIVE_FILE_ERROR", Direction.TO_CLIENT, Field.TEXT),
+    RECEIVE_FILE_ACCEPT(0x27, "CMD_RECEIVE_FILE_ACCEPT", Direction.TO_CLIENT, Field.TEXT),
+    PRESENCE_ADD(0x28, "CMD_PRESENCE_ADD", Direction.TO_CLIENT, Field.LIST),
+    PRESENCE_REMOVE(0x29, "CMD_PRESENCE_REMOVE", Direction.TO_CLIENT, Field.LIST),
+    REDIRECT(0x2A, "CMD_REDIRECT", Direction.TO_CLIENT, Field.STRING, Field.STRING, Field.LONG),
+    ROOM_MESSAGE_ENCRYPTED(0x2B, "CMD_ROOM_MESSAGE_ENCRYPTED", Direction.TO_CLIENT, Field.STRING, Field.STRING, Field.STRING, Field.STRING),
+    DIRECT_MESSAGE_ENCRYPTED(0x2C, "CMD_DIRECT_MESSAGE_ENCRYPTED", Direction.TO_CLIENT, Field.STRING, Field.STRING, Field.STRING),
+    HISTORY(0x2D, "CMD_HISTORY", Direction.TO_CLIENT, Field.STRING, Field.LIST),
+    RECEIVE_FILE_RESUME(0x2E, "CMD_RECEIVE_FILE_RESUME", Direction.TO_CLIENT, Field.STRING, Field.LONG, Field.LONG),
+
+    /** Server -> server, between the nodes of a cluster (sendfile.server.Cluster) **/
+    PEER_HELLO(0x40, "CMD_PEER_HELLO", Direction.TO_SERVER, Field.STRING, Field.STRING, Field.LONG, Field.STRING),
+    PEER_JOIN(0x41, "CMD_PEER_JOIN", Direction.TO_SERVER, Field.LIST),
+    PEER_LEAVE(0x42, "CMD_PEER_LEAVE", Direction.TO_SERVER, Field.LIST);
+
+    /**
+     * Field types. TEXT is free text (the rest of the line in the text protocol),
+     * LIST is a variable number of strings (the whole line in the text protocol).
+     */
+    public enum Field { STRING, LONG, TEXT, LIST }
+
+    public enum Direction { TO_SERVER, TO_CLIENT, BOTH }
+
+    private static final Command[] BY_OPCODE = new Command[256];
+    private static final Map<String, Command> TO_SERVER_NAMES = new HashMap<>();
+    private static final Map<String, Command> TO_CLIENT_NAMES = new HashMap<>();
+
+    static {
+        for (Command command : values()) {
+            BY_OPCODE[command.opcode] = command;
+            if (command.direction != Direction.TO_CLIENT) {
+                TO_SERVER_NAMES.put(command.textName, command);
+            }
+            if (command.direction != Direction.TO_SERVER) {
+                TO_CLIENT_NAMES.put(command.textName, command);
+            }
+        }
+    }
+
+    private final int opcode;
+    private final String textName;
+    private final Direction direction;
+    private final Field[] fields;
+
+    Command(int opcode, String textName, Direction direction, Field... fields) {
+        this.opcode = opcode;
+        this.textName = textName;
+        this.direction = direction;
+        this.fields = fields;
+    }
+
+    public int getOpcode() { return opcode; }
+    public String getTextName() { return textName; }
+    public Direction getDirection() { return direction; }
+    public int getFieldCount() { return fields.length; }
+    public Field getField(int index) { return fields[index]; }
+
+    /**
+     * Look up a binary opcode, or null if unknown
+     */
+    public static Command forOpcode(int opcode) {
+        return (opcode >= 0 && opcode < BY_OPCODE.length) ? BY_OPCODE[opcode] : null;
+    }
+
+    /**
+     * Look up a text command name as received by the server or by a client
+     */
+    public static Command forTextName(String name, boolean toServer) {
+        return toServer ? TO_SERVER_NAMES.get(name) : TO_CLIENT_NAMES.get(name);
+    }
+}
@@ -0,0 +1,21 @@
+package sendfile.protocol;
+
+import java.io.IOException;
+
+/**
+ * A binary frame announced a body larger than BinaryCodec.MAX_FRAME, or a
+ * length that is not a varint at all. Unlike ProtocolException the stream
+ * cannot be resynchronised.
+ */
+public class FrameTooLargeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public FrameTooLargeException(long length) {
+        super("Frame too large: " + Long.toUnsignedString(length) + " bytes");
+    }
+
+    public FrameTooLargeException(String message) {
+        super(message);
+    }
+}
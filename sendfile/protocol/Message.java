@@ -0,0 +1,71 @@
+package sendfile.protocol;
+
+/**
+ * One decoded protocol message: a command plus its typed field values.
+ * STRING/TEXT fields are String, LONG fields are Long, LIST fields are String[].
+ * Immutable, so a single instance can be handed to many connections.
+ */
+public final class Message {
+
+    private final Command command;
+    private final Object[] values;
+
+    private Message(Command command, Object[] values) {
+        this.command = command;
+        this.values = values;
+    }
+
+    /**
+     * Build a message, checking values against the command's field types
+     */
+    public static Message of(Command command, Object... values) {
+        if (values.length != command.getFieldCount()) {
+            throw new IllegalArgumentException(command + " expects " + command.getFieldCount()
+                    + " fields, got " + values.length);
+        }
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            boolean ok;
+            switch (command.getField(i)) {
+                case LONG:
+                    ok = value instanceof Long;
+                    break;
+                case LIST:
+                    ok = value instanceof String[];
+                    break;
+                default:
+                    ok = value instanceof String;
+                    break;
+            }
+            if (!ok) {
+                throw new IllegalArgumentException(command + " field " + i + " must be " + command.getField(i));
+            }
+        }
+        return new Message(command, values);
+    }
+
+    public Command getCommand() {
+        return command;
+    }
+
+    public String getString(int index) {
+        return (String) values[index];
+    }
+
+    public long getLong(int index) {
+        return (Long) values[index];
+    }
+
+    public String[] getList(int index) {
+        return (String[]) values[index];
+    }
+
+    Object getValue(int index) {
+        return values[index];
+    }
+
+    @Override
+    public String toString() {
+        return TextCodec.encode(this);
+    }
+}
@@ -0,0 +1,168 @@
+package sendfile.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocking message reader/writer over a socket, in either wire format.
+ * Reads are unbuffered so raw file bytes following a CMD_SENDFILE frame
+ * can be read from getInputStream() without losing anything.
+ */
+public class MessageStream {
+
+    private final InputStream in;
+    private final DataInputStream dis;
+    private final OutputStream out;
+    private final DataOutputStream dos;
+    private final WireFormat format;
+    private final boolean toServer;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private byte[] body = new byte[256];
+
+    private MessageStream(InputStream in, OutputStream out, WireFormat format, boolean toServer) {
+        this.in = in;
+        this.dis = new DataInputStream(in);
+        this.out = out;
+        this.dos = new DataOutputStream(out);
+        this.format = format;
+        this.toServer = toServer;
+    }
+
+    /**
+     * Client side: open a stream in the given format (sends the preamble for BINARY)
+     */
+    public static MessageStream connect(Socket socket, WireFormat format) throws IOException {
+        MessageStream stream = new MessageStream(socket.getInputStream(), socket.getOutputStream(), format, false);
+        if (format == WireFormat.BINARY) {
+            stream.out.write(BinaryCodec.PREAMBLE);
+            stream.out.flush();
+        }
+        return stream;
+    }
+
+    /**
+     * Server side: detect the client's format from its first bytes
+     */
+    public static MessageStream accept(Socket socket) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(socket.getInputStream(), WireFormat.DETECT_LENGTH);
+        byte[] first = new byte[WireFormat.DETECT_LENGTH];
+        new DataInputStream(in).readFully(first);
+
+        WireFormat format = WireFormat.detect(first);
+        if (format == WireFormat.TEXT) {
+            in.unread(first);
+        } else if (WireFormat.version(first) != BinaryCodec.VERSION) {
+            throw new IOException("Unsupported protocol version " + WireFormat.version(first));
+        }
+        return new MessageStream(in, socket.getOutputStream(), format, true);
+    }
+
+    public WireFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Read the next message. A ProtocolException means the frame was skipped
+     * and the stream can still be used.
+     */
+    public Message read() throws IOException {
+        if (format == WireFormat.TEXT) {
+            return TextCodec.decode(dis.readUTF(), toServer);
+        }
+
+        int opcode = in.read();
+        if (opcode < 0) {
+            throw new EOFException();
+        }
+        long length = readVarint();
+        if (length < 0 || length > BinaryCodec.MAX_FRAME) {
+            throw new FrameTooLargeException(length);
+        }
+        if (body.length < length) {
+            body = new byte[(int) Math.max(length, body.length * 2L)];
+        }
+        dis.readFully(body, 0, (int) length);
+        return BinaryCodec.decodeBody(opcode, ByteBuffer.wrap(body, 0, (int) length));
+    }
+
+    private long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            if (shift == 63 && (b & 0x7E) != 0) {
+                break;
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new FrameTooLargeException("Frame length is not a valid varint");
+    }
+
+    /**
+     * Write one message
+     */
+    public void write(Message message) throws IOException {
+        writeLock.lock();
+        try {
+            if (format == WireFormat.TEXT) {
+                dos.writeUTF(TextCodec.encode(message));
+            } else {
+                ByteBuffer frame = BinaryCodec.encode(message);
+                out.write(frame.array(), frame.arrayOffset(), frame.remaining());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Encode one message as a complete frame in the given format, ready to be
+     * queued and written later with writeRaw() or a channel write
+     */
+    public static ByteBuffer encode(Message message, WireFormat format) throws IOException {
+        if (format == WireFormat.BINARY) {
+            return BinaryCodec.encode(message);
+        }
+        String line = TextCodec.encode(message);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(line.length() + 2);
+        new DataOutputStream(bytes).writeUTF(line);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * Write raw bytes (file content following a CMD_SENDFILE frame)
+     */
+    public void writeRaw(byte[] data, int offset, int length) throws IOException {
+        writeLock.lock();
+        try {
+            out.write(data, offset, length);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Raw input positioned right after the last frame read
+     */
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    public OutputStream getOutputStream() {
+        return out;
+    }
+}
@@ -0,0 +1,17 @@
+package sendfile.protocol;
+
+import java.io.IOException;
+
+/**
+ * A frame was read completely but could not be decoded (unknown command,
+ * missing fields). The stream is still in sync, so callers may skip the
+ * frame and keep reading.
+ */
+public class ProtocolException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ProtocolException(String message) {
+        super(message);
+    }
+}
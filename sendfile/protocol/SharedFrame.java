@@ -0,0 +1,140 @@
+package sendfile.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded frame that many connections can queue at once.
+ *
+ * A message is encoded at most once per wire format, on first use, and
+ * every recipient gets its own view (bytes()) of the same immutable bytes,
+ * so a broadcast costs one encode plus one pointer per recipient.
+ *
+ * Reference counted: the creator holds one reference, each outbound queue
+ * takes one with retain() and gives it back with release() once written or
+ * dropped. A released frame refuses further use so a stale reference shows up.
+ *
+ * A best-effort frame (broadcast chat, presence) may be dropped for a
+ * recipient that cannot keep up instead of holding the others back.
+ */
+public final class SharedFrame {
+
+    private final Message message;
+    private final ByteBuffer[] encoded = new ByteBuffer[WireFormat.values().length];
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final Runnable onFree;
+    private final boolean bestEffort;
+
+    private SharedFrame(Message message, ByteBuffer raw, Runnable onFree, boolean bestEffort) {
+        this.message = message;
+        this.onFree = onFree;
+        this.bestEffort = bestEffort;
+        if (raw != null) {
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = raw;
+            }
+        }
+    }
+
+    /**
+     * Frame for a protocol message, encoded lazily per wire format
+     */
+    public static SharedFrame of(Message message) {
+        return new SharedFrame(message, null, null, false);
+    }
+
+    /**
+     * Like of(), for a message a slow recipient may lose
+     */
+    public static SharedFrame bestEffort(Message message) {
+        return new SharedFrame(message, null, null, true);
+    }
+
+    /**
+     * Frame for raw bytes (file content) that are the same in every format.
+     * The buffer must not be modified afterwards.
+     */
+    public static SharedFrame wrap(ByteBuffer raw) {
+        return new SharedFrame(null, raw.slice(), null, false);
+    }
+
+    /**
+     * Raw bytes whose buffer is handed back (e.g. to a pool) by onFree
+     * once the last reference is released
+     */
+    public static SharedFrame wrap(ByteBuffer raw, Runnable onFree) {
+        return new SharedFrame(null, raw.slice(), onFree, false);
+    }
+
+    /**
+     * The message this frame carries, or null for raw bytes
+     */
+    public Message getMessage() {
+        return message;
+    }
+
+    public boolean isBestEffort() {
+        return bestEffort;
+    }
+
+    /**
+     * A fresh view of the encoded bytes; position and limit are private to the caller
+     */
+    public ByteBuffer bytes(WireFormat format) throws IOException {
+        return encoding(format).duplicate();
+    }
+
+    /**
+     * Encoded length in the given format
+     */
+    public int length(WireFormat format) throws IOException {
+        return encoding(format).remaining();
+    }
+
+    private synchronized ByteBuffer encoding(WireFormat format) throws IOException {
+        if (refCount.get() <= 0) {
+            throw new IllegalStateException("Frame already released");
+        }
+        ByteBuffer buffer = encoded[format.ordinal()];
+        if (buffer == null) {
+            buffer = MessageStream.encode(message, format);
+            encoded[format.ordinal()] = buffer;
+        }
+        return buffer;
+    }
+
+    public SharedFrame retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Frame already released");
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Drop one reference; the bytes are let go with the last one
+     */
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            synchronized (this) {
+                for (int i = 0; i < encoded.length; i++) {
+                    encoded[i] = null;
+                }
+            }
+            if (onFree != null) {
+                onFree.run();
+            }
+        } else if (count < 0) {
+            throw new IllegalStateException("Frame released too many times");
+        }
+    }
+
+    public int refCount() {
+        return refCount.get();
+    }
+}
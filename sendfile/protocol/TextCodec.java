@@ -0,0 +1,116 @@
+package sendfile.protocol;
+
+/**
+ * Legacy text protocol: "CMD_NAME field field ... free text", carried in
+ * DataOutputStream.writeUTF frames. Kept for clients that do not send the
+ * binary preamble.
+ */
+public final class TextCodec {
+
+    /** Most bytes writeUTF() takes for one line **/
+    public static final int MAX_LINE = 65535;
+
+    private TextCodec() {
+    }
+
+    /**
+     * Bytes a string takes in a writeUTF() frame (modified UTF-8); never
+     * less than its standard UTF-8 length
+     */
+    public static int utfLength(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length += 1;
+            } else if (c <= 0x07FF) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encode a message as one text line
+     */
+    public static String encode(Message message) {
+        Command command = message.getCommand();
+        StringBuilder line = new StringBuilder(64).append(command.getTextName());
+        for (int i = 0; i < command.getFieldCount(); i++) {
+            Object value = message.getValue(i);
+            if (value instanceof String[]) {
+                for (String item : (String[]) value) {
+                    line.append(' ').append(item);
+                }
+            } else {
+                line.append(' ').append(value);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Decode one text line as received by the server (toServer) or a client
+     */
+    public static Message decode(String line, boolean toServer) throws ProtocolException {
+        int pos = skipSpaces(line, 0);
+        int end = tokenEnd(line, pos);
+        String name = line.substring(pos, end);
+
+        Command command = Command.forTextName(name, toServer);
+        if (command == null) {
+            throw new ProtocolException("Unknown command " + name);
+        }
+
+        Object[] values = new Object[command.getFieldCount()];
+        pos = end;
+        for (int i = 0; i < values.length; i++) {
+            pos = skipSpaces(line, pos);
+            switch (command.getField(i)) {
+                case TEXT:
+                    values[i] = line.substring(pos);
+                    pos = line.length();
+                    break;
+                case LIST:
+                    values[i] = line.substring(pos).trim().isEmpty()
+                            ? new String[0] : line.substring(pos).trim().split("\\s+");
+                    pos = line.length();
+                    break;
+                default:
+                    if (pos >= line.length()) {
+                        throw new ProtocolException(name + ": missing field " + (i + 1));
+                    }
+                    end = tokenEnd(line, pos);
+                    String token = line.substring(pos, end);
+                    pos = end;
+                    if (command.getField(i) == Command.Field.LONG) {
+                        try {
+                            values[i] = Long.parseLong(token);
+                        } catch (NumberFormatException e) {
+                            throw new ProtocolException(name + ": invalid number " + token);
+                        }
+                    } else {
+                        values[i] = token;
+                    }
+                    break;
+            }
+        }
+        return Message.of(command, values);
+    }
+
+    private static int skipSpaces(String line, int pos) {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int tokenEnd(String line, int pos) {
+        while (pos < line.length() && !Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,36 @@
+package sendfile.protocol;
+
+/**
+ * Framing used on one connection, chosen by the client's first bytes
+ */
+public enum WireFormat {
+
+    /** Legacy writeUTF frames carrying "CMD_..." text lines **/
+    TEXT,
+
+    /** BinaryCodec frames, announced by BinaryCodec.PREAMBLE **/
+    BINARY;
+
+    public static final int DETECT_LENGTH = BinaryCodec.PREAMBLE.length;
+
+    /**
+     * Classify the first DETECT_LENGTH bytes of a connection.
+     * A legacy frame can never match: its text always starts with "CMD_",
+     * which puts 'C','M' at offsets 2-3 where the preamble has 'B' and the version.
+     */
+    public static WireFormat detect(byte[] first) {
+        for (int i = 0; i < DETECT_LENGTH - 1; i++) {
+            if (first[i] != BinaryCodec.PREAMBLE[i]) {
+                return TEXT;
+            }
+        }
+        return BINARY;
+    }
+
+    /**
+     * Version byte of a binary preamble
+     */
+    public static int version(byte[] first) {
+        return first[DETECT_LENGTH - 1] & 0xFF;
+    }
+}
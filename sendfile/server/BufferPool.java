@@ -0,0 +1,64 @@
+package sendfile.server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import sendfile.protocol.SharedFrame;
+
+/**
+ * Recycled fixed-size buffers for the file relay.
+ *
+ * A chunk read from the sender is queued on the recipient as a SharedFrame;
+ * when the recipient has written it the frame's last release() puts the
+ * buffer back here, so a relay allocates nothing per chunk.
+ * DIRECT is used by the NIO mode (socket to socket without passing through
+ * the Java heap), HEAP by the blocking mode whose streams need arrays.
+ */
+final class BufferPool {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED = 256;
+
+    static final BufferPool DIRECT = new BufferPool(true);
+    static final BufferPool HEAP = new BufferPool(false);
+
+    private final boolean direct;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private BufferPool(boolean direct) {
+        this.direct = direct;
+    }
+
+    /**
+     * An empty buffer of BUFFER_SIZE bytes
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back; beyond MAX_POOLED it is left to the garbage collector
+     */
+    void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() <= MAX_POOLED) {
+            free.add(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Wrap a filled (flipped) buffer as a frame that returns it here when freed
+     */
+    SharedFrame frame(ByteBuffer filled) {
+        return SharedFrame.wrap(filled, () -> release(filled));
+    }
+}
@@ -0,0 +1,254 @@
+package sendfile.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import sendfile.log.Log;
+import sendfile.log.LogFormat;
+import sendfile.log.LogRecord;
+import sendfile.log.LogSink;
+import sendfile.log.Logger;
+
+/**
+ * The chat server itself: owns the session registry, the accept loop,
+ * client threads and presence updates, configured by a ServerConfig.
+ *
+ * Several servers started with --peers form a cluster (see Cluster).
+ * Messages for users who are offline wait in a Mailbox until they rejoin.
+ *
+ * Runs without any UI. ServerForm is an optional ServerView attached to it;
+ * log lines go through sendfile.log (console and/or file) and to the views.
+ *
+ * Headless: java sendfile.server.ChatServer [--port 3333] [--mode threads|nio|virtual]
+ */
+public class ChatServer {
+
+    private static final Logger LOG = Log.get("server");
+
+    final ServerConfig config;
+
+    /** Chat and File Sharing sessions **/
+    public final SessionRegistry registry = new SessionRegistry();
+    public final RoomRegistry rooms = new RoomRegistry();
+    public final RoomHistory history = new RoomHistory(this);
+    final OnlineListThread presence = new OnlineListThread(this);
+    final Cluster cluster = new Cluster(this);
+    final Mailbox mailbox = new Mailbox(this);
+
+    /** Frames written to clients and the socket writes they took (all connections) **/
+    final LongAdder framesWritten = new LongAdder();
+    final LongAdder socketWrites = new LongAdder();
+
+    /** Slow consumers seen, the best-effort frames dropped for them and the frames spilled to disk **/
+    final LongAdder slowConsumerEvents = new LongAdder();
+    final LongAdder framesDropped = new LongAdder();
+    final LongAdder framesSpilled = new LongAdder();
+
+    private final List<ServerView> views = new CopyOnWriteArrayList<>();
+    private final LogSink viewSink = this::showInViews;
+    private ServerLoop serverThread;
+    private Thread presenceThread;
+
+    public ChatServer(ServerConfig config) {
+        this.config = config;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    public synchronized void attach(ServerView view) {
+        if (views.isEmpty()) {
+            Log.addSink(viewSink);
+        }
+        views.add(view);
+    }
+
+    public synchronized void detach(ServerView view) {
+        views.remove(view);
+        if (views.isEmpty()) {
+            Log.removeSink(viewSink);
+        }
+    }
+
+    public synchronized boolean isRunning() {
+        return serverThread != null;
+    }
+
+    /**
+     * Bind the port and start accepting clients
+     */
+    public synchronized void start() throws IOException {
+        if (serverThread != null) {
+            throw new IllegalStateException("Server already running");
+        }
+        appendMessage("[Server]: Starting (" + config + ")");
+
+        Executor executor = ClientExecutors.platformThreads();
+        if (config.mode == ServerMode.VIRTUAL_THREADS) {
+            executor = ClientExecutors.virtualThreads();
+            if (executor == null) {
+                appendMessage("[Server]: Virtual threads need JDK 21+, using thread per client");
+                executor = ClientExecutors.platformThreads();
+            } else {
+                appendMessage("[Server]: Running clients on virtual threads");
+            }
+        }
+
+        if (config.mode == ServerMode.NIO) {
+            serverThread = new NioServerThread(config.port, this);
+        } else {
+            serverThread = new ServerThread(config.port, this, executor);
+        }
+        try {
+            mailbox.open();
+        } catch (IOException e) {
+            LOG.error("[Server]: Cannot open the mailbox in " + config.getMailboxDirectory()
+                    + ", messages for offline users are not kept: " + e.getMessage());
+        }
+        new Thread(serverThread, "accept-" + config.port).start();
+
+        presenceThread = new Thread(presence, "presence");
+        presenceThread.setDaemon(true);
+        presenceThread.start();
+        cluster.start();
+
+        for (ServerView view : views) {
+            view.serverStateChanged(true);
+        }
+    }
+
+    /**
+     * Stop accepting and close every client connection
+     */
+    public synchronized void stop() {
+        if (serverThread == null) {
+            return;
+        }
+        appendMessage("[Server]: Stopping secure server...");
+        serverThread.stop();
+        serverThread = null;
+        cluster.stop();
+        presenceThread.interrupt();
+        presenceThread = null;
+
+        for (Session session : registry.snapshot()) {
+            // Their mail is kept from here, before the mailbox closes under the disconnects
+            mailbox.left(session.getUsername());
+            session.getConnection().close();
+        }
+        for (ClientConnection connection : registry.fileSharingConnections()) {
+            connection.close();
+        }
+        mailbox.close();
+        long writes = socketWrites.sum();
+        appendMessage(String.format("[Server]: %d frames written in %d socket writes (%.1f frames per write)",
+                framesWritten.sum(), writes, writes == 0 ? 0.0 : (double) framesWritten.sum() / writes));
+        if (slowConsumerEvents.sum() > 0) {
+            appendMessage("[Server]: " + slowConsumerEvents.sum() + " slow consumer episodes, "
+                    + framesDropped.sum() + " frames dropped, " + framesSpilled.sum() + " spilled to disk");
+        }
+
+        for (ServerView view : views) {
+            view.serverStateChanged(false);
+        }
+    }
+
+    /**
+     * Log one line (asynchronously) to the console, log file and attached views
+     */
+    public void appendMessage(String msg) {
+        LOG.info(msg);
+    }
+
+    /**
+     * Log sink feeding the attached views (log writer thread)
+     */
+    private void showInViews(LogRecord record) {
+        String line = LogFormat.shortLine(record);
+        for (ServerView view : views) {
+            view.appendLog(line);
+        }
+    }
+
+    // Server management methods (backed by SessionRegistry)
+    public void addClient(String client, ClientConnection connection) {
+        Session previous = registry.register(client, connection);
+        if (previous != null && previous.getConnection() != connection) {
+            appendMessage("Client re-joined, replacing previous session: " + client);
+        }
+        appendMessage("Client joined: " + client);
+        presence.userChanged(client);
+        cluster.localJoined(client);
+        clientCountChanged();
+    }
+
+    public ClientConnection getClient(String client) {
+        return registry.find(client);
+    }
+
+    public void removeClient(String client, ClientConnection connection) {
+        if (registry.unregister(client, connection)) {
+            appendMessage("👋 Client disconnected: " + client);
+            presence.userChanged(client);
+            cluster.localLeft(client);
+            mailbox.left(client);
+            clientCountChanged();
+        }
+    }
+
+    public void addFileSharing(String username, ClientConnection connection) {
+        registry.registerFileSharing(username, connection);
+    }
+
+    public ClientConnection getFileSharing(String username) {
+        return registry.findFileSharing(username);
+    }
+
+    public void removeFileSharing(String username) {
+        ClientConnection rSock = registry.removeFileSharing(username);
+        if (rSock != null) {
+            rSock.close();
+            appendMessage("File sharing cancelled: " + username);
+        }
+    }
+
+    private void clientCountChanged() {
+        int count = registry.size();
+        for (ServerView view : views) {
+            view.clientCountChanged(count);
+        }
+    }
+
+    /**
+     * Headless entry point
+     */
+    public static void main(String[] args) {
+        ServerConfig config;
+        try {
+            config = ServerConfig.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: java sendfile.server.ChatServer [--port N] [--mode threads|nio|virtual]"
+                    + " [--outbound-capacity N] [--max-queued-bytes N] [--slow-consumer drop|disconnect|demote|spill]"
+                    + " [--spill-dir DIR] [--max-spill-mb N] [--mailbox-dir DIR] [--mailbox-ttl-hours N]"
+                    + " [--mailbox-max-mb N] [--mailbox-max-users N] [--history N] [--history-kb N] [--write-stall-millis N] [--node-id NAME]"
+                    + " [--peers HOST:PORT,...] [--cluster-secret SECRET] [--placement any|hash] [--backlog N]"
+                    + " [--tcp-nodelay true|false] [--keep-alive true|false]"
+                    + " [--send-buffer N] [--receive-buffer N] [--write-batch N] [--flush-delay-micros N]");
+            System.exit(2);
+            return;
+        }
+
+        final ChatServer server = new ChatServer(config);
+        try {
+            server.start();
+        } catch (IOException e) {
+            System.err.println("Cannot start server: " + e.getMessage());
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "shutdown"));
+    }
+}
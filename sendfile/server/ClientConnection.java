@@ -0,0 +1,70 @@
+package sendfile.server;
+
+import java.io.IOException;
+import sendfile.protocol.Message;
+import sendfile.protocol.SharedFrame;
+import sendfile.protocol.WireFormat;
+
+/**
+ * A connected client as seen by the command handlers.
+ * Implemented by the blocking socket mode and by the NIO event-loop mode
+ * so both speak exactly the same CMD_* protocol, in text or binary framing.
+ */
+public interface ClientConnection {
+
+    /**
+     * Default for how many protocol messages a connection may have queued
+     * before the slow-consumer policy applies (see ServerConfig)
+     */
+    int OUTBOUND_CAPACITY = 1024;
+
+    /**
+     * Queue one protocol message in this connection's wire format.
+     * Never blocks on the network; fails if the outbound queue is full
+     * (see SlowConsumerGuard) or the connection was closed as a slow consumer.
+     */
+    void send(Message message) throws IOException;
+
+    /**
+     * Queue a frame that may be shared with other connections (broadcast).
+     * Takes its own reference; the caller keeps and releases its own.
+     * A best-effort frame may be dropped silently for a slow consumer.
+     */
+    void send(SharedFrame frame) throws IOException;
+
+    /**
+     * Queue raw bytes that follow a CMD_SENDFILE header, waiting for room
+     * if needed. Takes its own reference to the chunk like send(SharedFrame).
+     */
+    void writeRaw(SharedFrame chunk) throws IOException;
+
+    /**
+     * Relay the next size bytes received on this connection to the target,
+     * then run onComplete. May return before the relay has finished. If the
+     * sender's bytes end early, onComplete is not run and the target is closed.
+     */
+    void relayFile(ClientConnection target, long size, Runnable onComplete) throws IOException;
+
+    /**
+     * Run task once everything queued so far has been written (spilled
+     * bytes included), or once the connection is closed, when sends fail.
+     * Runs at once on the caller's thread if nothing is queued, else on
+     * the thread that finds the queue empty.
+     */
+    void whenDrained(Runnable task);
+
+    /**
+     * Wire format the client speaks (TEXT until it has identified itself)
+     */
+    WireFormat getFormat();
+
+    /**
+     * Close the underlying socket
+     */
+    void close();
+
+    /**
+     * Remote host:port for logging
+     */
+    String getRemoteAddress();
+}
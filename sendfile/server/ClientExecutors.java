@@ -0,0 +1,48 @@
+package sendfile.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executors used to run SocketThread and its outbound writer in the
+ * blocking modes. OnlineListThread has a platform thread of its own
+ * (ChatServer.start()).
+ *
+ * Virtual threads (JDK 21+) are looked up reflectively so the project still
+ * builds and runs on JDK 8; on older runtimes virtualThreads() is null.
+ *
+ * Pinning audit for virtual threads: socket writes are guarded with
+ * ReentrantLock (MessageStream), never with synchronized, so a client
+ * blocked on a full TCP window parks its virtual thread instead of pinning
+ * the carrier. Writers wait on a LinkedBlockingQueue, which also parks.
+ * Spill files are created, mapped and extended under SpillFile's
+ * ReentrantLock, and storing mail only queues it for the Mailbox's own
+ * thread. The monitors a client thread can reach (HistoryRing, the rooms
+ * of RoomRegistry, PeerLink.presence()) guard memory only.
+ */
+public final class ClientExecutors {
+
+    private ClientExecutors() {
+    }
+
+    /**
+     * Classic mode: one new platform thread per task
+     */
+    public static Executor platformThreads() {
+        return task -> new Thread(task).start();
+    }
+
+    /**
+     * Virtual thread per task, or null when the runtime has no virtual threads
+     */
+    public static ExecutorService virtualThreads() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package sendfile.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import sendfile.log.Log;
+import sendfile.log.Logger;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.MessageStream;
+import sendfile.protocol.SharedFrame;
+import sendfile.protocol.WireFormat;
+
+/**
+ * This server's place in a cluster of chat servers (--node-id, --peers),
+ * so users on different nodes see one chat.
+ *
+ * Every node keeps its own clients and dials every peer (full mesh). The
+ * link a node dialed carries its traffic out (PeerLink); the links the
+ * peers dialed bring theirs in, and are handled by CommandProcessor like a
+ * client that started with CMD_PEER_HELLO. Over a link go:
+ *
+ *   CMD_PEER_JOIN / CMD_PEER_LEAVE   users that joined or left on the node
+ *   CMD_CHATALL(_ENCRYPTED)          broadcasts, once per node, not per user
+ *   CMD_CHATROOM_ENCRYPTED           room messages, likewise; each node has its own room index
+ *   CMD_CHAT(_ENCRYPTED)             for a user on the other node, as received
+ *   CMD_SEND_FILE_*, ...             likewise
+ *
+ * A node fans a broadcast out to its own clients only, so both connections
+ * and broadcast work spread over the nodes. Commands that came from a peer
+ * are never forwarded again. File bytes for a receiver on another node go
+ * over a connection of their own (CMD_PEER_HELLO relay + CMD_SENDFILE),
+ * which that node relays like a client's sharing socket.
+ *
+ * CMD_PEER_HELLO is only accepted from the address of a configured peer
+ * and with a proof of the shared --cluster-secret (PeerAuth); anything
+ * else saying it is a node is refused and disconnected.
+ *
+ * When a node goes away its users leave on the others, and its link is
+ * redialed until it is back.
+ *
+ * With --placement hash every user has a home node on a consistent-hash
+ * ring of the nodes this one has a link to (HashRing). A CMD_JOIN that
+ * arrives elsewhere is answered with CMD_REDIRECT to the home node, so
+ * users mostly stay put as nodes come and go; the mesh above still carries
+ * whatever crosses nodes. Users already joined are not moved.
+ *
+ * Each node keeps the mailbox of the users who left it. A CMD_CHAT(_ENCRYPTED)
+ * for a user who is not online anywhere goes to their home node with
+ * placement hash, which is where they come back, and to every node
+ * otherwise; a node that does not know the user drops it. Broadcasts reach
+ * every node anyway, and each keeps them for its own offline users.
+ */
+public class Cluster {
+
+    private static final Logger LOG = Log.get("cluster");
+
+    static final long RECONNECT_MILLIS = 2000;
+    static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /** Second field of CMD_PEER_HELLO: a node link, or a connection carrying one file **/
+    static final String LINK = "link";
+    static final String RELAY = "relay";
+
+    private final ChatServer main;
+    private final List<PeerLink> links = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+
+    /** Links that are up, by the peer's node id **/
+    private final Map<String, PeerLink> byNode = new ConcurrentHashMap<>();
+
+    /** The connection each peer's own link came in on, so a stale one cannot remove its users **/
+    private final Map<String, ClientConnection> inbound = new ConcurrentHashMap<>();
+
+    /** Checks and signs CMD_PEER_HELLO; null without a cluster secret, then no peer is accepted **/
+    private volatile PeerAuth auth;
+
+    /** Addresses the configured peers resolved to, the only ones a hello is taken from **/
+    private final Set<String> peerHosts = ConcurrentHashMap.newKeySet();
+
+    /** This node and the ones it has a link to, rebuilt under ringLock as links come and go **/
+    private volatile HashRing ring;
+    private final Object ringLock = new Object();
+
+    public Cluster(ChatServer main) {
+        this.main = main;
+    }
+
+    public String getNodeId() {
+        return main.getConfig().getNodeId();
+    }
+
+    /**
+     * Start dialing the configured peers
+     */
+    synchronized void start() {
+        placeUsers();
+        String secret = main.getConfig().getClusterSecret();
+        auth = secret != null ? new PeerAuth(secret) : null;
+        if (auth == null && !main.getConfig().getPeers().isEmpty()) {
+            LOG.error("[Cluster]: Peers configured without --cluster-secret, not linking");
+            return;
+        }
+        for (InetSocketAddress peer : main.getConfig().getPeers()) {
+            try {
+                for (InetAddress resolved : InetAddress.getAllByName(peer.getHostString())) {
+                    peerHosts.add(resolved.getHostAddress());
+                }
+            } catch (IOException e) {
+                // Added when the link resolves it
+            }
+        }
+        for (InetSocketAddress peer : main.getConfig().getPeers()) {
+            PeerLink link = new PeerLink(this, main, peer);
+            Thread thread = new Thread(link, "peer-" + peer.getHostString() + ":" + peer.getPort());
+            thread.setDaemon(true);
+            links.add(link);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop dialing and close the links both ways, so the peers see this node leave
+     */
+    synchronized void stop() {
+        for (PeerLink link : links) {
+            link.stop();
+        }
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+        for (ClientConnection connection : inbound.values()) {
+            connection.close();
+        }
+        links.clear();
+        threads.clear();
+        byNode.clear();
+    }
+
+    /**
+     * A signed CMD_PEER_HELLO from this node ([link|relay])
+     */
+    Message hello(String kind) throws IOException {
+        PeerAuth signer = auth;
+        if (signer == null) {
+            throw new IOException("No --cluster-secret");
+        }
+        return signer.hello(getNodeId(), kind);
+    }
+
+    /**
+     * Whether a CMD_PEER_HELLO carries a valid proof of the cluster secret
+     */
+    boolean verify(Message hello) {
+        PeerAuth verifier = auth;
+        return verifier != null && verifier.verify(hello);
+    }
+
+    /**
+     * Whether a connection may become a peer with this hello: it comes from
+     * a configured peer's address and proves the cluster secret
+     */
+    boolean admit(Message hello, ClientConnection connection) {
+        String remote = connection.getRemoteAddress();
+        String host = remote.substring(0, remote.lastIndexOf(':'));
+        if (!peerHosts.contains(host)) {
+            LOG.warn("[Cluster]: Refused CMD_PEER_HELLO from " + remote + ", not a configured peer");
+            return false;
+        }
+        if (!verify(hello)) {
+            LOG.warn("[Cluster]: Refused CMD_PEER_HELLO from " + remote + ", no valid proof of the cluster secret");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A peer's address as a link reached it, in case it was not known at start
+     */
+    void resolved(InetAddress address) {
+        peerHosts.add(address.getHostAddress());
+    }
+
+    void linkUp(PeerLink link) {
+        byNode.put(link.getNodeId(), link);
+        placeUsers();
+    }
+
+    void linkDown(PeerLink link) {
+        byNode.values().remove(link);
+        placeUsers();
+    }
+
+    private void placeUsers() {
+        synchronized (ringLock) {
+            List<String> nodes = new ArrayList<>(byNode.keySet());
+            nodes.add(getNodeId());
+            ring = new HashRing(nodes);
+        }
+    }
+
+    /**
+     * Where a joining user belongs if that is another node: the link to it,
+     * whose address is the node's client port. Null to let the user join here
+     * (placement any, the user's node is this one, or no ring yet).
+     */
+    PeerLink homeOf(String username) {
+        HashRing placed = ring;
+        if (main.getConfig().getPlacement() != UserPlacement.HASH || placed == null) {
+            return null;
+        }
+        String node = placed.nodeFor(username);
+        return node.equals(getNodeId()) ? null : byNode.get(node);
+    }
+
+    /** Outbound: what happens here, for the other nodes **/
+
+    void localJoined(String username) {
+        for (PeerLink link : byNode.values()) {
+            link.presence(Command.PEER_JOIN, username);
+        }
+    }
+
+    void localLeft(String username) {
+        for (PeerLink link : byNode.values()) {
+            link.presence(Command.PEER_LEAVE, username);
+        }
+    }
+
+    /**
+     * Pass a client's broadcast on to every node, encoded once for all links;
+     * critical, since each carries it for all of that node's users
+     */
+    void broadcast(Message message) {
+        if (byNode.isEmpty()) {
+            return;
+        }
+        SharedFrame frame = SharedFrame.of(message);
+        try {
+            for (PeerLink link : byNode.values()) {
+                link.send(frame);
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Send a client's command on to the node the user is joined on; false
+     * if the user is not on another node or that node cannot be reached
+     */
+    boolean forward(String username, Message message) {
+        PeerLink link = linkFor(username);
+        return link != null && link.send(message);
+    }
+
+    /**
+     * Pass a client's message for a user who is not online on any node to
+     * the nodes that may keep it for them (see above); false if there are none
+     */
+    boolean forwardOffline(String username, Message message) {
+        if (main.getConfig().getPlacement() == UserPlacement.HASH) {
+            PeerLink home = homeOf(username);
+            return home != null && home.send(message);
+        }
+        if (byNode.isEmpty()) {
+            return false;
+        }
+        broadcast(message);
+        return true;
+    }
+
+    boolean isRemote(String username) {
+        return main.registry.nodeOf(username) != null;
+    }
+
+    private PeerLink linkFor(String username) {
+        String node = main.registry.nodeOf(username);
+        return node != null ? byNode.get(node) : null;
+    }
+
+    /**
+     * Relay the file announced by header (CMD_SENDFILE, as the sender sent
+     * it) to the recipient's node over a new connection, then run onComplete
+     */
+    void relayFile(ClientConnection source, Message header, String recipient, long size, Runnable onComplete)
+            throws IOException {
+        PeerLink link = linkFor(recipient);
+        if (link == null) {
+            throw new IOException("No link to the node of '" + recipient + "'");
+        }
+        if (source instanceof NioConnection) {
+            // Connecting may block, so the event loop hands it to a thread and waits for the hop
+            ((NioConnection) source).relayToPeer(this, link.address, header, size, onComplete);
+            return;
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.connect(resolve(link.address), CONNECT_TIMEOUT_MILLIS);
+            main.getConfig().configure(socket);
+            MessageStream stream = openRelay(socket, header);
+            final SocketConnection hop = new SocketConnection(socket, stream, main);
+            hop.startWriter(ClientExecutors.platformThreads());
+            source.relayFile(hop, size, () -> {
+                hop.close();
+                onComplete.run();
+            });
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connect a blocking channel for NioConnection.relayToPeer(); it is
+     * switched to non-blocking by the event loop
+     */
+    SocketChannel openRelayChannel(InetSocketAddress address, Message header) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(resolve(address), CONNECT_TIMEOUT_MILLIS);
+            main.getConfig().configure(channel.socket());
+            openRelay(channel.socket(), header);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private MessageStream openRelay(Socket socket, Message header) throws IOException {
+        MessageStream stream = MessageStream.connect(socket, WireFormat.BINARY);
+        stream.write(hello(RELAY));
+        stream.write(header);
+        return stream;
+    }
+
+    /** Inbound: what the other nodes tell us (CommandProcessor) **/
+
+    void peerConnected(String node, ClientConnection connection) {
+        ClientConnection previous = inbound.put(node, connection);
+        if (previous != null && previous != connection) {
+            previous.close();
+        }
+        LOG.info("[Cluster]: " + node + " linked in from " + connection.getRemoteAddress());
+    }
+
+    void peerJoined(String node, String[] usernames) {
+        for (String username : usernames) {
+            main.registry.registerRemote(username, node);
+            main.presence.userChanged(username);
+        }
+    }
+
+    void peerLeft(String node, String[] usernames) {
+        for (String username : usernames) {
+            if (main.registry.unregisterRemote(username, node)) {
+                main.presence.userChanged(username);
+            }
+        }
+    }
+
+    /**
+     * A peer's link closed: its users are gone until it links in again
+     */
+    void peerLost(String node, ClientConnection connection) {
+        if (!inbound.remove(node, connection)) {
+            return;
+        }
+        List<String> gone = main.registry.removeNode(node);
+        for (String username : gone) {
+            main.presence.userChanged(username);
+        }
+        LOG.warn("[Cluster]: Lost " + node + ", " + gone.size() + " users left with it");
+    }
+
+    static String describe(InetSocketAddress address) {
+        return address.getHostString() + ":" + address.getPort();
+    }
+
+    /**
+     * A fresh address for each dial, so a peer that moved is found again
+     */
+    static InetSocketAddress resolve(InetSocketAddress address) {
+        return new InetSocketAddress(address.getHostString(), address.getPort());
+    }
+}
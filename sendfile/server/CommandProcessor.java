@@ -0,0 +1,589 @@
+package sendfile.server;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import sendfile.log.Log;
+import sendfile.log.Logger;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.SharedFrame;
+
+/**
+ * Handles the CMD_* protocol for one client connection.
+ * Shared by the blocking SocketThread and the NIO event loops; messages
+ * arrive already decoded, whichever wire format the client uses.
+ *
+ * In a cluster the same processor serves the links from other nodes (after
+ * CMD_PEER_HELLO): what they send is delivered to local users only, and
+ * what local users send for someone on another node is forwarded there.
+ */
+public class CommandProcessor {
+
+    private static final Logger LOG = Log.get("server");
+    private static final Logger BROADCAST = Log.get("broadcast");
+
+    ClientConnection connection;
+    ChatServer main;
+    String client, filesharing_username;
+
+    /** Node id if this connection comes from another node of the cluster **/
+    String peerNode;
+    boolean peerLink;
+
+    /** Rooms this client is in, to leave them when it disconnects (this connection's thread only) **/
+    final Set<String> rooms = new HashSet<>();
+
+    public CommandProcessor(ClientConnection connection, ChatServer main) {
+        this.connection = connection;
+        this.main = main;
+    }
+
+    /**
+     * Create connection for file sharing (enhanced for secure transfers)
+     */
+    private void createConnection(String receiver, String sender, String filename) {
+        try {
+            main.appendMessage("[createConnection]: Creating file sharing connection.");
+            ClientConnection receiverConnection = main.getClient(receiver);
+
+            if (receiverConnection != null) {
+                main.appendMessage("[createConnection]: Connection OK");
+
+                // Format: CMD_FILE_XD [sender] [receiver] [filename]
+                Message format = Message.of(Command.FILE_XD, sender, receiver, filename);
+                receiverConnection.send(format);
+                main.appendMessage("[createConnection]: " + format);
+
+            } else if (peerNode == null
+                    && main.cluster.forward(receiver, Message.of(Command.SEND_FILE_XD, sender, receiver, filename))) {
+                main.appendMessage("[createConnection]: '" + receiver + "' is on " + main.registry.nodeOf(receiver));
+
+            } else if (peerNode != null) {
+                // Left while the request was on its way; the sender's transfer times out
+                main.appendMessage("[createConnection]: Client '" + receiver + "' no longer here");
+
+            } else {
+                // Client not found
+                main.appendMessage("[createConnection]: Client '" + receiver + "' not found");
+                connection.send(Message.of(Command.SENDFILEERROR,
+                        "Client '" + receiver + "' not found in user list. Ensure user is online."));
+            }
+        } catch (IOException e) {
+            main.appendMessage("[createConnection]: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Keep a message for a user who is not online here or on another node:
+     * in this node's mailbox if the user left here, else (client commands
+     * only) on the nodes that may know them. False if nobody keeps it.
+     */
+    private boolean keepForOffline(String username, Message delivery, Message received) {
+        return main.mailbox.store(username, delivery)
+                || (peerNode == null && main.cluster.forwardOffline(username, received));
+    }
+
+    /**
+     * CMD_HISTORY with the room's recent messages from before the given time,
+     * if any. History is a courtesy: failing to send it does not fail the join.
+     */
+    private void sendHistory(String room, long beforeMillis) {
+        try {
+            for (Message history : main.history.replay(room, beforeMillis, connection.getFormat())) {
+                connection.send(history);
+            }
+        } catch (IOException e) {
+            main.appendMessage("[History]: Not sent to " + client + " for " + room + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send a joining user what was kept for them while offline, in order,
+     * after the user list (from the mailbox thread, once it has read them)
+     */
+    private void deliverMailbox(String username) {
+        final ClientConnection joined = connection;
+        main.mailbox.joined(username, waiting -> new MailboxReplay(main, joined, username, waiting).run());
+    }
+
+    /**
+     * Process one message received from the client
+     */
+    public void process(Message message) throws IOException {
+        /**
+         * Process commands
+         */
+        switch (message.getCommand()) {
+            case JOIN:
+                /**
+                 * CMD_JOIN [clientUsername]
+                 */
+                String clientUsername = message.getString(0);
+                PeerLink home = main.cluster.homeOf(clientUsername);
+                String homeNode = home != null ? home.getNodeId() : null;
+                if (homeNode != null) {
+                    /**
+                     * CMD_REDIRECT [node] [host] [port] - the user's node on the hash ring;
+                     * the client closes this connection and joins there
+                     */
+                    connection.send(Message.of(Command.REDIRECT, homeNode,
+                            home.address.getHostString(), (long) home.address.getPort()));
+                    connection.close();
+                    main.appendMessage("[Client]: " + clientUsername + " redirected to " + homeNode);
+                    break;
+                }
+                client = clientUsername;
+                main.addClient(clientUsername, connection);
+                main.appendMessage("[Client]: " + clientUsername + " joined chatroom!");
+                // Full list once; later changes arrive as presence deltas
+                connection.send(Message.of(Command.ONLINE, (Object) main.registry.usernames()));
+                // History up to when the user left; the mailbox has the rest
+                sendHistory(RoomHistory.EVERYONE, main.mailbox.leftTime(clientUsername));
+                deliverMailbox(clientUsername);
+                break;
+
+            case CHAT:
+                /**
+                 * CMD_CHAT [from] [sendTo] [message]
+                 */
+                String from = message.getString(0);
+                String sendTo = message.getString(1);
+                String msg = message.getString(2);
+                ClientConnection target = main.getClient(sendTo);
+                try {
+                    if (target == null) {
+                        if (peerNode == null && main.cluster.forward(sendTo, message)) {
+                            main.appendMessage("[Message]: From " + from + " To " + sendTo + " on "
+                                    + main.registry.nodeOf(sendTo));
+                            break;
+                        }
+                        if (keepForOffline(sendTo, Message.of(Command.MESSAGE, from, msg), message)) {
+                            main.appendMessage("[Message]: From " + from + " To " + sendTo + " kept, not online");
+                            break;
+                        }
+                        throw new IOException("not online");
+                    }
+                    /**
+                     * CMD_MESSAGE
+                     */
+                    target.send(Message.of(Command.MESSAGE, from, msg));
+                    main.appendMessage("[Message]: From " + from + " To " + sendTo + " : " + msg);
+                } catch (IOException e) {
+                    main.appendMessage("[IOException]: Cannot send message to " + sendTo);
+                }
+                break;
+
+            case CHAT_ENCRYPTED:
+                /**
+                 * CMD_CHAT_ENCRYPTED [from] [sendTo] [ciphertext] [mac] - one hash lookup and
+                 * one critical frame on the recipient's queue; nobody else sees it
+                 */
+                String dm_from = message.getString(0);
+                String dm_to = message.getString(1);
+                ClientConnection recipient = main.getClient(dm_to);
+                try {
+                    if (recipient == null) {
+                        if (peerNode == null && main.cluster.forward(dm_to, message)) {
+                            if (BROADCAST.isDebugEnabled()) {
+                                BROADCAST.debug("Direct message from: " + dm_from + " to " + dm_to
+                                        + " on " + main.registry.nodeOf(dm_to));
+                            }
+                            break;
+                        }
+                        if (keepForOffline(dm_to, Message.of(Command.DIRECT_MESSAGE_ENCRYPTED,
+                                dm_from, message.getString(2), message.getString(3)), message)) {
+                            if (BROADCAST.isDebugEnabled()) {
+                                BROADCAST.debug("Direct message from: " + dm_from + " to " + dm_to + " kept, not online");
+                            }
+                            break;
+                        }
+                        throw new IOException("not online");
+                    }
+                    recipient.send(Message.of(Command.DIRECT_MESSAGE_ENCRYPTED,
+                            dm_from, message.getString(2), message.getString(3)));
+                    if (BROADCAST.isDebugEnabled()) {
+                        BROADCAST.debug("Direct message from: " + dm_from + " to " + dm_to);
+                    }
+                } catch (IOException e) {
+                    main.appendMessage("[IOException]: Cannot send direct message to " + dm_to + ": " + e.getMessage());
+                }
+                break;
+
+            case CHATALL:
+                /**
+                 * CMD_CHATALL [from] [message] - Legacy broadcast
+                 */
+                String chatall_from = message.getString(0);
+                SharedFrame chatall = SharedFrame.bestEffort(Message.of(Command.MESSAGE, chatall_from, message.getString(1)));
+
+                try {
+                    for (Session session : main.registry.snapshot()) {
+                        if (!session.getUsername().equals(chatall_from)) {
+                            try {
+                                session.getConnection().send(chatall);
+                            } catch (IOException e) {
+                                main.appendMessage("[CMD_CHATALL]: " + e.getMessage());
+                            }
+                        }
+                    }
+                } finally {
+                    chatall.release();
+                }
+                main.mailbox.storeBroadcast(chatall_from, Message.of(Command.MESSAGE, chatall_from, message.getString(1)));
+                if (peerNode == null) {
+                    main.cluster.broadcast(message);
+                }
+                main.appendMessage("[CMD_CHATALL]: " + chatall_from + " " + message.getString(1));
+                break;
+
+            case CHATALL_ENCRYPTED:
+                String encrypted_from = message.getString(0);
+                Message encrypted = Message.of(Command.MESSAGE_ENCRYPTED,
+                        encrypted_from, message.getString(1), message.getString(2));
+                // Encoded once, the same bytes are queued for every recipient
+                SharedFrame messageToSend = SharedFrame.bestEffort(encrypted);
+
+                Session[] recipients = main.registry.snapshot();
+                boolean debug = BROADCAST.isDebugEnabled();
+                if (debug) {
+                    BROADCAST.debug("Encrypted message from: " + encrypted_from
+                            + ", broadcasting to " + recipients.length + " clients");
+                }
+
+                // Broadcast to all clients except sender
+                try {
+                    for (Session session : recipients) {
+                        String targetClient = session.getUsername();
+
+                        if (!targetClient.equals(encrypted_from)) {
+                            try {
+                                session.getConnection().send(messageToSend);
+
+                                if (debug) {
+                                    BROADCAST.debug("Sent encrypted message to: " + targetClient);
+                                }
+
+                            } catch (IOException e) {
+                                BROADCAST.warn("Failed to send to " + targetClient + ": " + e.getMessage());
+                            }
+                        }
+                    }
+                } finally {
+                    messageToSend.release();
+                }
+                // Every node keeps broadcasts for its own offline users and joining clients
+                main.mailbox.storeBroadcast(encrypted_from, encrypted);
+                main.history.add(RoomHistory.EVERYONE, encrypted);
+                if (peerNode == null) {
+                    main.cluster.broadcast(message);
+                }
+                break;
+
+            case ROOM_JOIN:
+                /**
+                 * CMD_ROOM_JOIN [room]
+                 */
+                String joinRoom = message.getString(0);
+                if (client == null || !RoomRegistry.isValidName(joinRoom)) {
+                    main.appendMessage("[Room]: Ignoring CMD_ROOM_JOIN " + joinRoom + " from " + client);
+                    break;
+                }
+                if (main.rooms.join(joinRoom, new Session(client, connection))) {
+                    rooms.add(joinRoom);
+                    main.appendMessage("[Room]: " + client + " joined #" + joinRoom);
+                    sendHistory(joinRoom, Long.MAX_VALUE);
+                }
+                break;
+
+            case ROOM_LEAVE:
+                /**
+                 * CMD_ROOM_LEAVE [room]
+                 */
+                String leaveRoom = message.getString(0);
+                if (main.rooms.leave(leaveRoom, connection)) {
+                    rooms.remove(leaveRoom);
+                    main.appendMessage("[Room]: " + client + " left #" + leaveRoom);
+                }
+                break;
+
+            case CHATROOM_ENCRYPTED:
+                /**
+                 * CMD_CHATROOM_ENCRYPTED [from] [room] [ciphertext] [mac] - only the room's
+                 * members are touched; from a peer node the sender is not ours to check
+                 */
+                String room_from = message.getString(0);
+                String room = message.getString(1);
+                if (peerNode == null && !rooms.contains(room)) {
+                    main.appendMessage("[Room]: " + room_from + " is not in #" + room);
+                    break;
+                }
+                Session[] members = main.rooms.members(room);
+                if (BROADCAST.isDebugEnabled()) {
+                    BROADCAST.debug("Room message from: " + room_from + " to #" + room + ", "
+                            + members.length + " members here");
+                }
+                Message roomEncrypted = Message.of(Command.ROOM_MESSAGE_ENCRYPTED,
+                        room, room_from, message.getString(2), message.getString(3));
+                if (members.length > 0) {
+                    SharedFrame roomMessage = SharedFrame.bestEffort(roomEncrypted);
+                    try {
+                        for (Session member : members) {
+                            if (member.getConnection() != connection) {
+                                try {
+                                    member.getConnection().send(roomMessage);
+                                } catch (IOException e) {
+                                    BROADCAST.warn("Failed to send to " + member.getUsername() + ": " + e.getMessage());
+                                }
+                            }
+                        }
+                    } finally {
+                        roomMessage.release();
+                    }
+                }
+                main.history.add(room, roomEncrypted);
+                if (peerNode == null) {
+                    main.cluster.broadcast(message);
+                }
+                break;
+
+            case SHARINGSOCKET:
+                main.appendMessage("CMD_SHARINGSOCKET: Client setting up file sharing socket...");
+                String file_sharing_username = message.getString(0);
+                filesharing_username = file_sharing_username;
+                main.addFileSharing(file_sharing_username, connection);
+                main.appendMessage("CMD_SHARINGSOCKET: Username: " + file_sharing_username);
+                main.appendMessage("CMD_SHARINGSOCKET: File Sharing is now active");
+                break;
+
+            case SENDFILE:
+                main.appendMessage("CMD_SENDFILE: Client sending file...");
+                /*
+                 Format: CMD_SENDFILE [Filename] [Size] [Recipient] [Consignee]
+                 */
+                String file_name = message.getString(0);
+                long filesize = message.getLong(1);
+                final String sendto = message.getString(2);
+                final String consignee = message.getString(3);
+                main.appendMessage("CMD_SENDFILE: From: " + consignee);
+                main.appendMessage("CMD_SENDFILE: To: " + sendto);
+                main.appendMessage("CMD_SENDFILE: File size: " + filesize + " bytes");
+
+                /**
+                 * Get client connection
+                 */
+                main.appendMessage("CMD_SENDFILE: Ready for connections...");
+                ClientConnection cConn = main.getFileSharing(sendto);
+
+                if (cConn != null) {
+                    try {
+                        main.appendMessage("CMD_SENDFILE: Connected!");
+                        /**
+                         * Send file info to receiver
+                         */
+                        main.appendMessage("CMD_SENDFILE: Sending file to client...");
+                        cConn.send(Message.of(Command.FILE_INCOMING, file_name, filesize, consignee));
+
+                        /**
+                         * Relay file data, then clean up client lists
+                         */
+                        final long relayStart = System.nanoTime();
+                        connection.relayFile(cConn, filesize, () -> {
+                            main.removeFileSharing(sendto);
+                            main.removeFileSharing(consignee);
+                            main.appendMessage("CMD_SENDFILE: File sent to client successfully");
+                            logThroughput(filesize, System.nanoTime() - relayStart);
+                        });
+
+                    } catch (IOException e) {
+                        // The sender's bytes have nowhere to go: end the transfer on both sides
+                        main.appendMessage("[CMD_SENDFILE]: " + e.getMessage());
+                        connection.close();
+                        main.removeFileSharing(sendto);
+                        main.removeFileSharing(consignee);
+                    }
+                } else if (peerNode == null && main.cluster.isRemote(sendto)) {
+                    // The receiver's sharing socket is on another node: relay through that node
+                    final long relayStart = System.nanoTime();
+                    try {
+                        main.cluster.relayFile(connection, message, sendto, filesize, () -> {
+                            main.removeFileSharing(consignee);
+                            main.appendMessage("CMD_SENDFILE: File sent to " + sendto + " on another node");
+                            logThroughput(filesize, System.nanoTime() - relayStart);
+                        });
+                    } catch (IOException e) {
+                        main.appendMessage("[CMD_SENDFILE]: " + e.getMessage());
+                        connection.send(Message.of(Command.SENDFILEERROR,
+                                "Cannot reach the server of '" + sendto + "', File Sharing will exit."));
+                    }
+                } else {
+                    /*   Client not available for file sharing   */
+                    main.removeFileSharing(consignee);
+                    main.appendMessage("CMD_SENDFILE: Client '" + sendto + "' not found for file sharing!");
+                    connection.send(Message.of(Command.SENDFILEERROR,
+                            "Client '" + sendto + "' not found, File Sharing will exit."));
+                }
+                break;
+
+            case SENDFILERESPONSE:
+                /*
+                 Format: CMD_SENDFILERESPONSE [username] [Message]
+                 */
+                String receiver = message.getString(0);
+                main.appendMessage("[CMD_SENDFILERESPONSE]: username: " + receiver);
+                if (!forwardToNode(receiver, message)) {
+                    forwardToFileSharing(receiver, message, "[CMD_SENDFILERESPONSE]: ");
+                }
+                break;
+
+            case SEND_FILE_XD:  // Format: CMD_SEND_FILE_XD [sender] [receiver] [filename]
+                String send_sender = message.getString(0);
+                String send_receiver = message.getString(1);
+                String send_filename = message.getString(2);
+                main.appendMessage("[CMD_SEND_FILE_XD]: From: " + send_sender);
+                this.createConnection(send_receiver, send_sender, send_filename);
+                break;
+
+            case SEND_FILE_ERROR:  // Format: CMD_SEND_FILE_ERROR [receiver] [Message]
+                if (forwardToNode(message.getString(0), message)) {
+                    break;
+                }
+                forwardToFileSharing(message.getString(0),
+                        Message.of(Command.RECEIVE_FILE_ERROR, message.getString(1)), "[CMD_RECEIVE_FILE_ERROR]: ");
+                break;
+
+            case SEND_FILE_ACCEPT: // Format: CMD_SEND_FILE_ACCEPT [receiver] [Message]
+                if (forwardToNode(message.getString(0), message)) {
+                    break;
+                }
+                forwardToFileSharing(message.getString(0),
+                        Message.of(Command.RECEIVE_FILE_ACCEPT, message.getString(1)), "[CMD_RECEIVE_FILE_ACCEPT]: ");
+                break;
+
+            case SEND_FILE_RESUME: // Format: CMD_SEND_FILE_RESUME [sender] [filename] [offset] [version]
+                /**
+                 * Accepts like CMD_SEND_FILE_ACCEPT, asking for the chunked format from
+                 * offset on if the file is still version; sent on the receiver's sharing
+                 * socket once it is registered
+                 */
+                if (forwardToNode(message.getString(0), message)) {
+                    break;
+                }
+                forwardToFileSharing(message.getString(0), Message.of(Command.RECEIVE_FILE_RESUME,
+                        message.getString(1), message.getLong(2), message.getLong(3)), "[CMD_RECEIVE_FILE_RESUME]: ");
+                break;
+
+            case PEER_HELLO:
+                /**
+                 * CMD_PEER_HELLO [nodeId] [link|relay] [time] [proof] - another node of the
+                 * cluster, as the first command on the connection; anyone else is cut off
+                 */
+                if (client != null || peerNode != null || !main.cluster.admit(message, connection)) {
+                    connection.close();
+                    break;
+                }
+                peerNode = message.getString(0);
+                if (Cluster.LINK.equals(message.getString(1))) {
+                    peerLink = true;
+                    main.cluster.peerConnected(peerNode, connection);
+                    connection.send(main.cluster.hello(Cluster.LINK));
+                }
+                break;
+
+            case PEER_JOIN:
+                /**
+                 * CMD_PEER_JOIN [user1] [user2] ... - joined on the peer node
+                 */
+                if (!peerLink) {
+                    refusePeerCommand(message);
+                    break;
+                }
+                main.cluster.peerJoined(peerNode, message.getList(0));
+                break;
+
+            case PEER_LEAVE:
+                if (!peerLink) {
+                    refusePeerCommand(message);
+                    break;
+                }
+                main.cluster.peerLeft(peerNode, message.getList(0));
+                break;
+
+            default:
+                main.appendMessage("[CMDException]: Unexpected command " + message.getCommand().getTextName());
+                break;
+        }
+    }
+
+    /**
+     * A cluster command on a connection that is not a node's link
+     */
+    private void refusePeerCommand(Message message) {
+        main.appendMessage("[Cluster]: Refused " + message.getCommand().getTextName() + " from "
+                + connection.getRemoteAddress() + ", not a peer link");
+        connection.close();
+    }
+
+    /**
+     * Report how fast a relay went (until the last byte was queued on the receiver)
+     */
+    private void logThroughput(long bytes, long nanos) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        main.appendMessage(String.format("CMD_SENDFILE: Relayed %d bytes in %.1f ms (%.2f MB/s)",
+                bytes, nanos / 1e6, bytes / seconds / (1024 * 1024)));
+    }
+
+    /**
+     * Pass a file transfer message on to the node of a user whose sharing
+     * connection is not here; false if it is for this node
+     */
+    private boolean forwardToNode(String username, Message message) {
+        if (peerNode != null || main.getFileSharing(username) != null || !main.cluster.forward(username, message)) {
+            return false;
+        }
+        main.appendMessage("[" + message.getCommand().getTextName() + "]: Forwarded to "
+                + main.registry.nodeOf(username));
+        return true;
+    }
+
+    /**
+     * Send a message to a user's file sharing connection
+     */
+    private void forwardToFileSharing(String username, Message message, String logPrefix) {
+        try {
+            ClientConnection fileConnection = main.getFileSharing(username);
+            if (fileConnection == null) {
+                throw new IOException("'" + username + "' has no file sharing connection");
+            }
+            fileConnection.send(message);
+        } catch (IOException e) {
+            main.appendMessage(logPrefix + e.getMessage());
+        }
+    }
+
+    /**
+     * Handle client disconnection
+     */
+    public void disconnected() {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Client disconnected: " + client + ", file sharing: " + filesharing_username);
+        }
+
+        for (String room : rooms) {
+            main.rooms.leave(room, connection);
+        }
+        rooms.clear();
+        if (client != null) {
+            main.removeClient(client, connection);
+        }
+        if (peerLink) {
+            main.cluster.peerLost(peerNode, connection);
+        }
+        if (filesharing_username != null) {
+            if (main.registry.removeFileSharing(filesharing_username, connection)) {
+                main.appendMessage("File sharing cancelled: " + filesharing_username);
+            }
+        }
+        main.appendMessage("[SocketThread]: Client connection closed!");
+    }
+}
@@ -0,0 +1,63 @@
+package sendfile.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring of node ids, placing each username on one node.
+ *
+ * Every node is hashed onto the ring at VIRTUAL_NODES points and a username
+ * belongs to the first point at or after its own hash. Adding or removing a
+ * node therefore only moves the users between it and its neighbours, about
+ * 1/N of them, and nodes that know the same members agree on every user
+ * without talking to each other. Immutable; Cluster builds a new ring
+ * whenever a link comes up or goes down.
+ */
+final class HashRing {
+
+    /** Points per node; enough to keep the share of each node within a few percent **/
+    private static final int VIRTUAL_NODES = 160;
+
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    HashRing(Collection<String> nodes) {
+        for (String node : nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * The node the username belongs to, or null if the ring is empty
+     */
+    String nodeFor(String username) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(username));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    /**
+     * First 64 bits of the MD5 digest: the same on every node and JVM, and
+     * spread well enough for short, similar keys like user1, user2, ...
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has to provide MD5
+            throw new IllegalStateException(e);
+        }
+    }
+}
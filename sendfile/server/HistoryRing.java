@@ -0,0 +1,93 @@
+package sendfile.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import sendfile.protocol.BinaryCodec;
+import sendfile.protocol.Message;
+
+/**
+ * The last messages of one conversation, as binary frames in a fixed-size
+ * direct buffer, for RoomHistory.
+ *
+ * Frames are encoded straight into the buffer one after the other and the
+ * write position wraps to the start when the next one does not fit; the
+ * oldest frames are dropped to make room, or once there are as many as
+ * the slot arrays hold. Everything is allocated up front, so adding a
+ * message allocates nothing and the kept history is no work for the GC.
+ * Reading it back decodes a copy of every frame.
+ */
+final class HistoryRing {
+
+    private final ByteBuffer data;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final long[] times;
+
+    /** Slot of the oldest frame, frames kept, and where the next one goes **/
+    private int first;
+    private int count;
+    private int tail;
+
+    HistoryRing(int messages, int bytes) {
+        data = ByteBuffer.allocateDirect(bytes);
+        offsets = new int[messages];
+        lengths = new int[messages];
+        times = new long[messages];
+    }
+
+    /**
+     * Keep a frame, dropping the oldest as needed; false if it is larger
+     * than the whole ring
+     */
+    synchronized boolean add(Message message) {
+        int length = BinaryCodec.encodedLength(message);
+        if (length > data.capacity()) {
+            return false;
+        }
+        int start = tail;
+        boolean wrapped = start + length > data.capacity();
+        if (wrapped) {
+            start = 0;
+        }
+        // The frames after the tail are the oldest; past the wrap they all go
+        while (count > 0 && (count == offsets.length
+                || (wrapped && offsets[first] >= tail)
+                || (offsets[first] < start + length && start < offsets[first] + lengths[first]))) {
+            first = (first + 1) % offsets.length;
+            count--;
+        }
+
+        data.limit(data.capacity()).position(start);
+        BinaryCodec.encode(message, data);
+        int slot = (first + count) % offsets.length;
+        offsets[slot] = start;
+        lengths[slot] = length;
+        times[slot] = System.currentTimeMillis();
+        count++;
+        tail = start + length;
+        return true;
+    }
+
+    /**
+     * The kept messages added before the given time, oldest first
+     */
+    synchronized List<Message> before(long timeMillis) throws IOException {
+        List<Message> messages = new ArrayList<>(count);
+        ByteBuffer frame = data.duplicate();
+        for (int i = 0; i < count; i++) {
+            int slot = (first + i) % offsets.length;
+            if (times[slot] >= timeMillis) {
+                break;
+            }
+            frame.limit(offsets[slot] + lengths[slot]).position(offsets[slot]);
+            messages.add(BinaryCodec.decode(frame));
+        }
+        return messages;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+}
@@ -0,0 +1,60 @@
+package sendfile.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fixed-size store of the most recent log lines.
+ * Every line gets a sequence number; once capacity is reached the oldest
+ * line is overwritten, so memory stays bounded however fast lines arrive.
+ * Writers are server threads, the reader is ServerForm's refresh timer.
+ */
+final class LogRingBuffer {
+
+    private final String[] lines;
+    private long written = 0;   // sequence number of the next line
+
+    LogRingBuffer(int capacity) {
+        lines = new String[capacity];
+    }
+
+    synchronized void add(String line) {
+        lines[(int) (written % lines.length)] = line;
+        written++;
+    }
+
+    /**
+     * Sequence number the next line will get
+     */
+    synchronized long next() {
+        return written;
+    }
+
+    /**
+     * Lines from sequence number 'from' on that are still retained.
+     * first > from means older lines were overwritten before being read.
+     */
+    synchronized Range since(long from) {
+        long first = Math.max(from, written - lines.length);
+        first = Math.max(first, 0);
+        List<String> result = new ArrayList<>((int) (written - first));
+        for (long seq = first; seq < written; seq++) {
+            result.add(lines[(int) (seq % lines.length)]);
+        }
+        return new Range(first, result);
+    }
+
+    static final class Range {
+        final long first;
+        final List<String> lines;
+
+        Range(long first, List<String> lines) {
+            this.first = first;
+            this.lines = lines;
+        }
+
+        long end() {
+            return first + lines.size();
+        }
+    }
+}
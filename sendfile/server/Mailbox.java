@@ -0,0 +1,770 @@
+package sendfile.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import sendfile.log.Log;
+import sendfile.log.Logger;
+import sendfile.protocol.BinaryCodec;
+import sendfile.protocol.Message;
+
+/**
+ * Store-and-forward mailbox for users who are offline, on an append-only
+ * log of memory-mapped segment files (--mailbox-dir).
+ *
+ * A direct message for a known user who is not online is appended once as
+ * the frame they would have received, and so is a broadcast while anybody
+ * known is offline (one record, whoever it is for). A user becomes known
+ * when they leave: a LEFT record remembers where in the log they stopped.
+ * On CMD_JOIN the user gets, in log order, their direct messages and the
+ * broadcasts after their LEFT record, then a JOINED record marks all of it
+ * delivered; what the connection then fails to send is stored again as
+ * direct messages (restore(), see MailboxReplay). Every record carries a
+ * sequence number; the log is read back in that order on start, so the
+ * mailbox survives restarts.
+ *
+ * Only the mailbox's own writer thread touches the log and the index.
+ * Callers look up who is offline in a concurrent map and queue what is to
+ * be stored, so a live sender or event loop never waits for the disk,
+ * and nothing is queued when everybody is online. The writer appends in
+ * queue order, forces the active segment to disk every second, drops
+ * messages older than the TTL from the index, and copies the records still
+ * needed out of mostly-dead segments before deleting them. A join is
+ * queued too: its messages are handed to the caller's callback on the
+ * writer thread, after everything queued before it.
+ *
+ * Record: [int length][byte type][long seq][long time][short n][n bytes user][frame]
+ * where the length (of everything after it) is written last, so a record
+ * torn by a crash reads as the end of the segment.
+ */
+public class Mailbox {
+
+    private static final Logger LOG = Log.get("mailbox");
+
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int HEADER = 4 + 1 + 8 + 8 + 2;
+
+    /** Compact a sealed segment once less than this share of it is still needed **/
+    private static final double COMPACT_BELOW = 0.5;
+    private static final long FLUSH_MILLIS = 1000;
+    private static final int COMPACT_EVERY_FLUSHES = 30;
+
+    /** Appends waiting for the writer; more are rejected like a full mailbox **/
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+
+    /** Record types **/
+    private static final byte MESSAGE = 1;
+    private static final byte BROADCAST = 2;
+    private static final byte LEFT = 3;
+    private static final byte JOINED = 4;
+
+    /** Asks the writer to expire and compact now (compactNow()); never written **/
+    private static final byte COMPACT = 5;
+
+    private final ChatServer main;
+
+    /** Filled by any thread, drained by the writer **/
+    private final BlockingQueue<Op> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+
+    /** Known users who are offline and when they left; read and updated by the callers **/
+    private final Map<String, Long> offline = new ConcurrentHashMap<>();
+
+    private volatile boolean open;
+    private Thread writer;
+    private int maxUsers;
+
+    /** Writer thread only (and open() before it starts) from here on **/
+
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextSeq = 1;
+    private long maxBytes;
+    private long ttlMillis;
+
+    /** Messages waiting per user, and broadcasts, both in sequence order **/
+    private final Map<String, List<Entry>> direct = new HashMap<>();
+    private final ArrayDeque<Entry> broadcasts = new ArrayDeque<>();
+
+    /** Every entry above by sequence number, to tell live records from dead ones **/
+    private final Map<Long, Entry> live = new HashMap<>();
+
+    /** Known users who are offline: sequence number and time of their LEFT record **/
+    private final Map<String, Long> leftAt = new HashMap<>();
+    private final Map<String, Long> leftTime = new HashMap<>();
+
+    /** Messages that did not fit (mailbox full, message too large, queue full) **/
+    private long rejected;
+    private final AtomicLong queueRejected = new AtomicLong();
+    private final AtomicLong untracked = new AtomicLong();
+
+    /**
+     * Something for the writer to do, in the order it was asked for
+     */
+    private static final class Op {
+        final byte type;
+        final String user;
+        final Message message;
+        final long time;
+        final Consumer<List<Message>> delivery;
+
+        Op(byte type, String user, Message message, long time, Consumer<List<Message>> delivery) {
+            this.type = type;
+            this.user = user;
+            this.message = message;
+            this.time = time;
+            this.delivery = delivery;
+        }
+    }
+
+    /** Tells the writer to close the log **/
+    private static final Op CLOSE = new Op((byte) 0, null, null, 0, null);
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int size;
+        long minSeq = Long.MAX_VALUE;
+
+        Segment(int id, File file, FileChannel channel, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Where a stored message is; moves when compaction copies the record
+     */
+    private static final class Entry {
+        final long seq;
+        final long time;
+        final String user;
+        Segment segment;
+        int offset;
+
+        Entry(long seq, long time, String user, Segment segment, int offset) {
+            this.seq = seq;
+            this.time = time;
+            this.user = user;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * One record as read back from a segment
+     */
+    private static final class Record {
+        final byte type;
+        final long seq;
+        final long time;
+        final String user;
+        final Segment segment;
+        final int offset;
+
+        Record(byte type, long seq, long time, String user, Segment segment, int offset) {
+            this.type = type;
+            this.seq = seq;
+            this.time = time;
+            this.user = user;
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    public Mailbox(ChatServer main) {
+        this.main = main;
+    }
+
+    /**
+     * Open the log, rebuild the index from it and start the writer; does
+     * nothing if the mailbox is turned off (TTL 0)
+     */
+    public synchronized void open() throws IOException {
+        ServerConfig config = main.getConfig();
+        if (open || config.getMailboxTtlHours() == 0) {
+            return;
+        }
+        ttlMillis = TimeUnit.HOURS.toMillis(config.getMailboxTtlHours());
+        maxBytes = config.getMailboxMaxMegabytes() * 1024L * 1024L;
+        maxUsers = config.getMailboxMaxUsers();
+        File directory = config.getMailboxDirectory();
+        directory.mkdirs();
+
+        File[] files = directory.listFiles((dir, name) -> name.matches("mailbox-\\d{8}\\.log"));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                segments.add(map(Integer.parseInt(file.getName().substring(8, 16)), file));
+            }
+        }
+        rebuild();
+        if (segments.isEmpty()) {
+            segments.add(map(1, segmentFile(1)));
+        }
+        open = true;
+        LOG.info("[Mailbox]: " + live.size() + " messages waiting for " + leftAt.size()
+                + " offline users in " + directory.getPath());
+
+        writer = new Thread(this::write, "mailbox");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop taking messages, let the writer store what is queued and write
+     * everything out
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            thread = writer;
+            writer = null;
+        }
+        try {
+            queue.put(CLOSE);
+            thread.join();
+        } catch (InterruptedException e) {
+            thread.interrupt();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Keep a direct message for an offline user; false if the user is not
+     * known here (never left this node) or it cannot be queued
+     */
+    public boolean store(String username, Message message) {
+        return open && offline.containsKey(username) && enqueue(new Op(MESSAGE, username, message,
+                System.currentTimeMillis(), null));
+    }
+
+    /**
+     * Keep a broadcast for the users who are offline, if there are any.
+     * The sender is recorded so they do not get their own message back.
+     */
+    public boolean storeBroadcast(String from, Message message) {
+        return open && !offline.isEmpty() && enqueue(new Op(BROADCAST, from, message,
+                System.currentTimeMillis(), null));
+    }
+
+    /**
+     * A user left: from now on their mail is kept, for up to the TTL unless
+     * they join again, if fewer than --mailbox-max-users are offline
+     */
+    public void left(String username) {
+        if (!open) {
+            return;
+        }
+        if (offline.size() >= maxUsers && !offline.containsKey(username)) {
+            if (untracked.getAndIncrement() % 1000 == 0) {
+                LOG.warn("[Mailbox]: Not keeping mail for " + username + ", " + maxUsers + " users offline already ("
+                        + untracked.get() + " so far)");
+            }
+            return;
+        }
+        long time = System.currentTimeMillis();
+        // Known before the LEFT record is written, so no broadcast in between is missed
+        offline.put(username, time);
+        if (!enqueue(new Op(LEFT, username, null, time, null))) {
+            offline.remove(username, time);
+        }
+    }
+
+    /**
+     * When the user left, if their mail is kept here, else Long.MAX_VALUE;
+     * the broadcasts from then on are the user's until joined()
+     */
+    public long leftTime(String username) {
+        Long time = offline.get(username);
+        return time != null ? time : Long.MAX_VALUE;
+    }
+
+    /**
+     * A user joined: hand what was kept for them, in the order it arrived,
+     * to delivery (on the mailbox thread, only if there is any) and mark it
+     * delivered. The caller sends the messages.
+     */
+    public void joined(String username, Consumer<List<Message>> delivery) {
+        if (!open) {
+            return;
+        }
+        offline.remove(username);
+        enqueue(new Op(JOINED, username, null, System.currentTimeMillis(), delivery));
+    }
+
+    /**
+     * Keep messages handed to joined() that could not be sent after all,
+     * in order, as direct messages for the user's next join; false if they
+     * could not all be queued
+     */
+    public boolean restore(String username, List<Message> messages) {
+        long time = System.currentTimeMillis();
+        for (Message message : messages) {
+            if (!open || !enqueue(new Op(MESSAGE, username, message, time, null))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Expire and compact after what is queued, instead of at the next
+     * interval (tests, or after a burst that left mostly dead segments)
+     */
+    void compactNow() {
+        if (open) {
+            enqueue(new Op(COMPACT, null, null, 0, null));
+        }
+    }
+
+    private boolean enqueue(Op op) {
+        if (queue.offer(op)) {
+            return true;
+        }
+        if (queueRejected.getAndIncrement() % 1000 == 0) {
+            LOG.warn("[Mailbox]: Cannot store: writer behind, " + QUEUE_CAPACITY + " queued ("
+                    + queueRejected.get() + " so far)");
+        }
+        return false;
+    }
+
+    /** Writer thread **/
+
+    /**
+     * Store what is queued in order; every second force the active segment,
+     * and every COMPACT_EVERY_FLUSHES seconds expire and compact. Appends
+     * queue up meanwhile instead of waiting.
+     */
+    private void write() {
+        int flushes = 0;
+        long nextFlush = System.currentTimeMillis() + FLUSH_MILLIS;
+        try {
+            while (true) {
+                Op op = queue.poll(Math.max(1, nextFlush - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (op == CLOSE) {
+                    break;
+                }
+                if (op != null) {
+                    apply(op);
+                }
+                if (System.currentTimeMillis() >= nextFlush) {
+                    segments.get(segments.size() - 1).buffer.force();
+                    if (++flushes % COMPACT_EVERY_FLUSHES == 0) {
+                        sweep();
+                        compact();
+                    }
+                    nextFlush = System.currentTimeMillis() + FLUSH_MILLIS;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closing without waiting; what is mapped is still written by the OS
+        }
+
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            try {
+                segment.channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        segments.clear();
+        direct.clear();
+        broadcasts.clear();
+        live.clear();
+        leftAt.clear();
+        leftTime.clear();
+        offline.clear();
+        queue.clear();
+    }
+
+    private void apply(Op op) {
+        switch (op.type) {
+            case MESSAGE:
+                Entry message = append(MESSAGE, op.user, op.message, op.time);
+                if (message != null) {
+                    direct.computeIfAbsent(op.user, user -> new ArrayList<>()).add(message);
+                    live.put(message.seq, message);
+                }
+                break;
+            case BROADCAST:
+                if (leftAt.isEmpty()) {
+                    // Everybody it was queued for came back first
+                    break;
+                }
+                Entry broadcast = append(BROADCAST, op.user, op.message, op.time);
+                if (broadcast != null) {
+                    broadcasts.add(broadcast);
+                    live.put(broadcast.seq, broadcast);
+                }
+                break;
+            case LEFT:
+                Entry left = append(LEFT, op.user, null, op.time);
+                if (left != null) {
+                    leftAt.put(op.user, left.seq);
+                    leftTime.put(op.user, left.time);
+                } else {
+                    offline.remove(op.user, op.time);
+                }
+                break;
+            case JOINED:
+                List<Message> messages = take(op.user);
+                if (!messages.isEmpty()) {
+                    op.delivery.accept(messages);
+                }
+                break;
+            case COMPACT:
+                sweep();
+                compact();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Take what was kept for a user who joined and mark it delivered
+     */
+    private List<Message> take(String username) {
+        List<Entry> entries = new ArrayList<>();
+        List<Entry> mine = direct.remove(username);
+        if (mine != null) {
+            entries.addAll(mine);
+        }
+        Long left = leftAt.remove(username);
+        leftTime.remove(username);
+        if (left == null && mine == null) {
+            return Collections.emptyList();
+        }
+        if (left != null) {
+            for (Entry broadcast : broadcasts) {
+                if (broadcast.seq > left && !broadcast.user.equals(username)) {
+                    entries.add(broadcast);
+                }
+            }
+            entries.sort(Comparator.comparingLong(entry -> entry.seq));
+        }
+
+        List<Message> messages = new ArrayList<>(entries.size());
+        long expired = System.currentTimeMillis() - ttlMillis;
+        for (Entry entry : entries) {
+            if (mine != null && entry.user.equals(username)) {
+                live.remove(entry.seq);
+            }
+            if (entry.time < expired) {
+                continue;
+            }
+            try {
+                messages.add(read(entry));
+            } catch (IOException e) {
+                LOG.warn("[Mailbox]: Cannot read message " + entry.seq + " for " + username + ": " + e.getMessage());
+            }
+        }
+        append(JOINED, username, null, System.currentTimeMillis());
+        return messages;
+    }
+
+    /** Log **/
+
+    private Entry append(byte type, String user, Message message, long time) {
+        byte[] name = user.getBytes(StandardCharsets.UTF_8);
+        int frame = message != null ? BinaryCodec.encodedLength(message) : 0;
+        int length = HEADER + name.length + frame;
+        if (length > SEGMENT_SIZE || name.length > Short.MAX_VALUE) {
+            return reject("message for " + user + " too large (" + length + " bytes)");
+        }
+        Segment segment = segmentFor(length, false);
+        if (segment == null) {
+            return reject("mailbox full (" + maxBytes / (1024 * 1024) + " MB)");
+        }
+
+        long seq = nextSeq++;
+        int offset = segment.size;
+        ByteBuffer target = segment.buffer.duplicate();
+        target.position(offset + 4);
+        target.put(type).putLong(seq).putLong(time).putShort((short) name.length).put(name);
+        if (message != null) {
+            BinaryCodec.encode(message, target);
+        }
+        // Length last: until it is there the record does not exist
+        segment.buffer.putInt(offset, length - 4);
+        segment.size += length;
+        segment.minSeq = Math.min(segment.minSeq, seq);
+        return new Entry(seq, time, user, segment, offset);
+    }
+
+    private Entry reject(String reason) {
+        if (rejected++ % 1000 == 0) {
+            LOG.warn("[Mailbox]: Cannot store: " + reason + " (" + rejected + " so far)");
+        }
+        return null;
+    }
+
+    /**
+     * The active segment if the record fits, else a new one; null when the
+     * mailbox is at its maximum (compaction may go past it for a moment)
+     */
+    private Segment segmentFor(int length, boolean compacting) {
+        Segment active = segments.get(segments.size() - 1);
+        if (active.size + length <= SEGMENT_SIZE) {
+            return active;
+        }
+        if (!compacting && (long) (segments.size() + 1) * SEGMENT_SIZE > maxBytes) {
+            return null;
+        }
+        try {
+            Segment next = map(active.id + 1, segmentFile(active.id + 1));
+            segments.add(next);
+            return next;
+        } catch (IOException e) {
+            LOG.error("[Mailbox]: Cannot create a segment: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Message read(Entry entry) throws IOException {
+        ByteBuffer record = entry.segment.buffer.duplicate();
+        record.position(entry.offset);
+        int length = record.getInt();
+        record.limit(entry.offset + 4 + length);
+        record.position(entry.offset + HEADER - 2);
+        int name = record.getShort();
+        record.position(record.position() + name);
+        Message message = BinaryCodec.decode(record);
+        if (message == null) {
+            throw new IOException("truncated record");
+        }
+        return message;
+    }
+
+    private File segmentFile(int id) {
+        return new File(main.getConfig().getMailboxDirectory(), String.format("mailbox-%08d.log", id));
+    }
+
+    private static Segment map(int id, File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            return new Segment(id, file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The records of a segment in file order; sets its size and lowest sequence number
+     */
+    private static List<Record> scan(Segment segment) {
+        List<Record> records = new ArrayList<>();
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int offset = 0;
+        while (offset + HEADER <= SEGMENT_SIZE) {
+            int length = buffer.getInt(offset);
+            if (length < HEADER - 4 || offset + 4 + length > SEGMENT_SIZE) {
+                break;
+            }
+            buffer.position(offset + 4);
+            byte type = buffer.get();
+            long seq = buffer.getLong();
+            long time = buffer.getLong();
+            byte[] name = new byte[buffer.getShort()];
+            buffer.get(name);
+            records.add(new Record(type, seq, time, new String(name, StandardCharsets.UTF_8), segment, offset));
+            segment.minSeq = Math.min(segment.minSeq, seq);
+            offset += 4 + length;
+        }
+        segment.size = offset;
+        return records;
+    }
+
+    /**
+     * Replay every segment in sequence order; a record that compaction
+     * copied but could not delete yet is read once
+     */
+    private void rebuild() {
+        List<Record> records = new ArrayList<>();
+        for (Segment segment : segments) {
+            records.addAll(scan(segment));
+        }
+        records.sort(Comparator.comparingLong(record -> record.seq));
+
+        long expired = System.currentTimeMillis() - ttlMillis;
+        long previous = 0;
+        for (Record record : records) {
+            if (record.seq == previous) {
+                continue;
+            }
+            previous = record.seq;
+            nextSeq = record.seq + 1;
+            Entry entry = new Entry(record.seq, record.time, record.user, record.segment, record.offset);
+            switch (record.type) {
+                case MESSAGE:
+                    if (record.time >= expired) {
+                        direct.computeIfAbsent(record.user, user -> new ArrayList<>()).add(entry);
+                        live.put(entry.seq, entry);
+                    }
+                    break;
+                case BROADCAST:
+                    if (record.time >= expired) {
+                        broadcasts.add(entry);
+                        live.put(entry.seq, entry);
+                    }
+                    break;
+                case LEFT:
+                    leftAt.put(record.user, record.seq);
+                    leftTime.put(record.user, record.time);
+                    offline.put(record.user, record.time);
+                    break;
+                case JOINED:
+                    List<Entry> delivered = direct.remove(record.user);
+                    if (delivered != null) {
+                        for (Entry done : delivered) {
+                            live.remove(done.seq);
+                        }
+                    }
+                    leftAt.remove(record.user);
+                    leftTime.remove(record.user);
+                    offline.remove(record.user);
+                    break;
+                default:
+                    break;
+            }
+        }
+        sweep();
+    }
+
+    /** Expire, compact **/
+
+    /**
+     * Forget users who left longer than the TTL ago (compaction then drops
+     * their LEFT records), expired messages, and broadcasts no offline user
+     * is waiting for
+     */
+    private void sweep() {
+        long expired = System.currentTimeMillis() - ttlMillis;
+        for (Iterator<Map.Entry<String, Long>> users = leftTime.entrySet().iterator(); users.hasNext(); ) {
+            Map.Entry<String, Long> user = users.next();
+            if (user.getValue() < expired) {
+                leftAt.remove(user.getKey());
+                offline.remove(user.getKey(), user.getValue());
+                users.remove();
+            }
+        }
+        for (Iterator<List<Entry>> users = direct.values().iterator(); users.hasNext(); ) {
+            List<Entry> entries = users.next();
+            while (!entries.isEmpty() && entries.get(0).time < expired) {
+                live.remove(entries.remove(0).seq);
+            }
+            if (entries.isEmpty()) {
+                users.remove();
+            }
+        }
+        long oldestLeft = leftAt.isEmpty() ? Long.MAX_VALUE : Collections.min(leftAt.values());
+        while (!broadcasts.isEmpty()
+                && (broadcasts.peek().time < expired || broadcasts.peek().seq <= oldestLeft)) {
+            live.remove(broadcasts.poll().seq);
+        }
+    }
+
+    /**
+     * Copy what is still needed out of sealed segments that are mostly dead,
+     * then delete them
+     */
+    private void compact() {
+        for (Segment segment : new ArrayList<>(segments.subList(0, segments.size() - 1))) {
+            List<Record> records = scan(segment);
+            List<Record> keep = new ArrayList<>();
+            long keepBytes = 0;
+            for (Record record : records) {
+                if (isNeeded(record, segment)) {
+                    keep.add(record);
+                    keepBytes += 4 + segment.buffer.getInt(record.offset);
+                }
+            }
+            if (keepBytes >= segment.size * COMPACT_BELOW) {
+                continue;
+            }
+
+            for (Record record : keep) {
+                int length = 4 + segment.buffer.getInt(record.offset);
+                Segment target = segmentFor(length, true);
+                if (target == null) {
+                    return;
+                }
+                ByteBuffer source = segment.buffer.duplicate();
+                source.limit(record.offset + length);
+                source.position(record.offset);
+                ByteBuffer destination = target.buffer.duplicate();
+                destination.position(target.size);
+                destination.put(source);
+                Entry entry = live.get(record.seq);
+                if (entry != null) {
+                    entry.segment = target;
+                    entry.offset = target.size;
+                }
+                target.size += length;
+                target.minSeq = Math.min(target.minSeq, record.seq);
+            }
+            segments.get(segments.size() - 1).buffer.force();
+
+            segments.remove(segment);
+            try {
+                segment.channel.close();
+            } catch (IOException ignored) {
+            }
+            if (!segment.file.delete()) {
+                // Read again on restart; the copies have the same sequence numbers
+                LOG.warn("[Mailbox]: Cannot delete " + segment.file.getName());
+            }
+            LOG.info("[Mailbox]: Compacted " + segment.file.getName() + ", kept " + keep.size()
+                    + " of " + records.size() + " records");
+        }
+    }
+
+    private boolean isNeeded(Record record, Segment segment) {
+        switch (record.type) {
+            case MESSAGE:
+            case BROADCAST:
+                Entry entry = live.get(record.seq);
+                return entry != null && entry.segment == segment && entry.offset == record.offset;
+            case LEFT:
+                Long left = leftAt.get(record.user);
+                return left != null && left == record.seq;
+            case JOINED:
+                // Still hides older records of the user in other segments
+                for (Segment other : segments) {
+                    if (other != segment && other.minSeq < record.seq) {
+                        return true;
+                    }
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+}
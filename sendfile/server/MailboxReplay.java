@@ -0,0 +1,79 @@
+package sendfile.server;
+
+import java.io.IOException;
+import java.util.List;
+import sendfile.protocol.Message;
+import sendfile.protocol.SharedFrame;
+
+/**
+ * Sends a joining user what the Mailbox kept for them, in order.
+ *
+ * A user who was offline through a busy period can have more waiting than
+ * the outbound queue holds, so the messages go out in steps of at most
+ * half the high-water marks (messages and bytes), each once the connection
+ * has written the one before (ClientConnection.whenDrained()). The slow
+ * consumer policy never sees the replay. If a send fails anyway, or the
+ * user is gone before the last step, what was not sent is stored again
+ * for their next join instead of being lost.
+ */
+final class MailboxReplay implements Runnable {
+
+    private final ChatServer main;
+    private final ClientConnection connection;
+    private final String username;
+    private final List<Message> messages;
+    private final int stepMessages;
+    private final long stepBytes;
+
+    /** The next message to send; steps run one after another **/
+    private int next;
+
+    MailboxReplay(ChatServer main, ClientConnection connection, String username, List<Message> messages) {
+        ServerConfig config = main.getConfig();
+        this.main = main;
+        this.connection = connection;
+        this.username = username;
+        this.messages = messages;
+        this.stepMessages = Math.max(1, config.getOutboundCapacity() / 2);
+        this.stepBytes = Math.max(1, config.getMaxQueuedBytes() / 2);
+    }
+
+    /**
+     * Send the next step, then wait for the connection to drain it
+     */
+    @Override
+    public void run() {
+        int sent = 0;
+        long bytes = 0;
+        while (next < messages.size()) {
+            SharedFrame frame = SharedFrame.of(messages.get(next));
+            try {
+                int length = frame.length(connection.getFormat());
+                if (sent > 0 && (sent >= stepMessages || bytes + length > stepBytes)) {
+                    connection.whenDrained(this);
+                    return;
+                }
+                connection.send(frame);
+                sent++;
+                bytes += length;
+                next++;
+            } catch (IOException e) {
+                notSent(e.getMessage());
+                return;
+            } finally {
+                frame.release();
+            }
+        }
+        main.appendMessage("[Mailbox]: Delivered " + messages.size() + " kept messages to " + username);
+    }
+
+    private void notSent(String reason) {
+        List<Message> rest = messages.subList(next, messages.size());
+        if (main.mailbox.restore(username, rest)) {
+            main.appendMessage("[Mailbox]: " + rest.size() + " kept messages not delivered to " + username
+                    + ", kept for their next join: " + reason);
+        } else {
+            main.appendMessage("[Mailbox]: " + rest.size() + " kept messages lost for " + username + ": " + reason);
+        }
+    }
+}
@@ -0,0 +1,781 @@
+package sendfile.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import sendfile.protocol.BinaryCodec;
+import sendfile.protocol.FrameTooLargeException;
+import sendfile.protocol.Message;
+import sendfile.protocol.SharedFrame;
+import sendfile.protocol.ProtocolException;
+import sendfile.protocol.TextCodec;
+import sendfile.protocol.WireFormat;
+
+/**
+ * ClientConnection driven by an NioEventLoop.
+ * Detects the wire format from the first bytes, decodes text (writeUTF) or
+ * binary frames from a non-blocking channel and queues outbound frames
+ * until the socket is writable.
+ *
+ * The outbound queue is this connection's writer: senders only enqueue and
+ * return, and the loop drains it in FIFO order, so a recipient with a full
+ * TCP window never holds up the sender or the other recipients. Protocol
+ * messages are bounded by the configured outbound capacity; relayed file
+ * bytes are bounded by RELAY_HIGH_WATER instead. With the spill policy a
+ * lagging client's backlog continues in a SpillFile, written straight from
+ * the mapping once the loop reaches the SPILLED marker in the queue; a
+ * relay to it pauses until the spill file is written.
+ */
+public class NioConnection implements ClientConnection {
+
+    private static final int INITIAL_READ_BUFFER = 1024;
+    private static final int MAX_FRAME = BinaryCodec.MAX_FRAME + 16;
+    private static final long RELAY_HIGH_WATER = 1024 * 1024;
+
+    /** Frames handed to one gathering write (well below the usual IOV_MAX) **/
+    private static final int MAX_GATHER = 64;
+
+    /** Marks where the spilled bytes belong in the outbound queue **/
+    private static final SharedFrame SPILLED = SharedFrame.wrap(ByteBuffer.allocate(0));
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final NioEventLoop loop;
+    private final ChatServer main;
+    private final CommandProcessor processor;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+    private final Queue<SharedFrame> outbound = new ConcurrentLinkedQueue<>();
+
+    /** Frames taken off the queue for the current gathering write (loop thread only) **/
+    private final SharedFrame[] batchFrames = new SharedFrame[MAX_GATHER];
+    private final ByteBuffer[] batchViews = new ByteBuffer[MAX_GATHER];
+    private int batchStart, batchEnd;
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicInteger queuedFrames = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closed = false;
+    private volatile boolean closing = false;
+    private volatile WireFormat format;
+
+    /** File relay state (only touched on this connection's loop) **/
+    private NioConnection relayTarget;
+    private long relayRemaining;
+    private Runnable relayComplete;
+
+    /** A chunk the target could not take yet (its backlog is spilled) **/
+    private SharedFrame relayHeld;
+
+    /** Reading stops while a relay to another node is being connected **/
+    private boolean relayPending;
+
+    /** Waiting for the queue to be empty (whenDrained()) **/
+    private final Queue<Runnable> drainedTasks = new ConcurrentLinkedQueue<>();
+    private final SlowConsumerGuard guard;
+
+    /** Only with the spill policy; also the lock that keeps senders in order with the drain **/
+    private final SpillFile spill;
+    private boolean drainingSpill;
+
+    public NioConnection(SocketChannel channel, SelectionKey key, NioEventLoop loop, ChatServer main) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.main = main;
+        this.processor = new CommandProcessor(this, main);
+        ServerConfig config = main.getConfig();
+        this.spill = config.getSlowConsumerPolicy() == SlowConsumerPolicy.SPILL
+                ? new SpillFile(config.getSpillDirectory(), getRemoteAddress().replace(':', '-'), config.getMaxSpillBytes())
+                : null;
+        this.guard = new SlowConsumerGuard(main, this, new SlowConsumerGuard.Backlog() {
+            @Override
+            public int queuedFrames() {
+                return queuedFrames.get();
+            }
+
+            @Override
+            public long queuedBytes() {
+                return pendingBytes.get();
+            }
+
+            @Override
+            public SharedFrame removeOldestBestEffort() throws IOException {
+                return removeOldest();
+            }
+
+            @Override
+            public boolean spilling() {
+                return spill != null && spill.isActive();
+            }
+
+            @Override
+            public long spilledBytes() {
+                return spill == null ? 0 : spill.pendingBytes();
+            }
+
+            @Override
+            public void spill(SharedFrame frame) throws IOException {
+                spillFrame(frame);
+            }
+        }, () -> loop.execute(this::closeNow));
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        SharedFrame frame = SharedFrame.of(message);
+        try {
+            send(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void send(SharedFrame frame) throws IOException {
+        if (closed || closing) {
+            throw new IOException("Connection closed: " + getRemoteAddress());
+        }
+        if (spill == null) {
+            if (guard.admit(frame, frame.length(getFormat()))) {
+                enqueue(frame.retain());
+            }
+        } else {
+            spill.lock();
+            try {
+                if (guard.admit(frame, frame.length(getFormat()))) {
+                    enqueue(frame.retain());
+                }
+            } finally {
+                spill.unlock();
+            }
+        }
+    }
+
+    /**
+     * Append a frame to the spill file (holding the spill lock); the first one
+     * of an episode puts the SPILLED marker in the queue for the loop
+     */
+    private void spillFrame(SharedFrame frame) throws IOException {
+        if (!spill.isActive()) {
+            spill.start();
+            outbound.add(SPILLED);
+            queuedFrames.incrementAndGet();
+            scheduleFlush();
+        }
+        spill.append(frame.bytes(getFormat()));
+    }
+
+    /**
+     * Take the oldest best-effort frame off the queue, unless the loop got it first
+     */
+    private SharedFrame removeOldest() throws IOException {
+        for (SharedFrame frame : outbound) {
+            if (frame.isBestEffort() && outbound.remove(frame)) {
+                queuedFrames.decrementAndGet();
+                pendingBytes.addAndGet(-frame.length(getFormat()));
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queue file bytes, unless the backlog is being spilled: they would sit
+     * behind the SPILLED marker and everything sent after them would reach
+     * the client first. The relay then waits for whenDrained() and offers
+     * them again; file bytes never go to the spill file.
+     */
+    @Override
+    public void writeRaw(SharedFrame chunk) throws IOException {
+        if (!offerRaw(chunk)) {
+            throw new IOException("Backlog spilled to disk, file bytes must wait: " + getRemoteAddress());
+        }
+    }
+
+    /**
+     * Queue file bytes (taking a reference) if nothing is spilled; false if
+     * the caller has to wait for the drain
+     */
+    private boolean offerRaw(SharedFrame chunk) throws IOException {
+        if (spill == null) {
+            enqueue(chunk.retain());
+            return true;
+        }
+        spill.lock();
+        try {
+            if (spill.isActive()) {
+                return false;
+            }
+            enqueue(chunk.retain());
+            return true;
+        } finally {
+            spill.unlock();
+        }
+    }
+
+    /**
+     * Queue a frame this connection already holds a reference to
+     */
+    private void enqueue(SharedFrame frame) throws IOException {
+        int length;
+        try {
+            if (closed || closing) {
+                throw new IOException("Connection closed: " + getRemoteAddress());
+            }
+            // Encode on the sender's thread (once per format for shared frames)
+            length = frame.length(getFormat());
+        } catch (IOException e) {
+            frame.release();
+            throw e;
+        }
+        outbound.add(frame);
+        queuedFrames.incrementAndGet();
+        pendingBytes.addAndGet(length);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        // Coalesce wakeups: one flush task per batch of queued frames, optionally
+        // held back up to the flush delay so more frames share its write
+        if (flushScheduled.compareAndSet(false, true)) {
+            long delay = main.getConfig().getFlushDelayNanos();
+            if (delay > 0) {
+                loop.schedule(this::flush, delay);
+            } else {
+                loop.execute(this::flush);
+            }
+        }
+    }
+
+    /**
+     * Write as much of the outbound queue as the socket accepts (loop thread
+     * only), up to MAX_GATHER frames or the write batch size per gathering
+     * write, so a burst of small frames costs one syscall instead of one each
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        try {
+            while (true) {
+                if (drainingSpill) {
+                    if (!writeSpill()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    continue;
+                }
+                if (!fillBatch()) {
+                    if (drainingSpill) {
+                        continue;
+                    }
+                    break;
+                }
+                long written = channel.write(batchViews, batchStart, batchEnd - batchStart);
+                pendingBytes.addAndGet(-written);
+                main.socketWrites.increment();
+                if (written > 0) {
+                    guard.wrote(false);
+                }
+
+                int frames = 0;
+                while (batchStart < batchEnd && !batchViews[batchStart].hasRemaining()) {
+                    batchFrames[batchStart].release();
+                    batchFrames[batchStart] = null;
+                    batchViews[batchStart] = null;
+                    batchStart++;
+                    frames++;
+                }
+                queuedFrames.addAndGet(-frames);
+                main.framesWritten.add(frames);
+
+                if (batchStart < batchEnd) {
+                    // Socket buffer is full; continue when it is writable
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            guard.wrote(true);
+
+            runDrainedTasks();
+            if (closing) {
+                closeNow();
+            }
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Write spilled bytes straight from the mapped file; true once the file
+     * is drained, false when the socket is full
+     */
+    private boolean writeSpill() throws IOException {
+        while (true) {
+            ByteBuffer spilled = spill.next();
+            if (spilled == null) {
+                if (spill.finishIfDrained()) {
+                    drainingSpill = false;
+                    return true;
+                }
+                continue;
+            }
+            int written = channel.write(spilled);
+            main.socketWrites.increment();
+            spill.consumed(written);
+            if (written > 0) {
+                guard.wrote(false);
+            }
+            if (spilled.hasRemaining()) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Top the batch up from the outbound queue; false when nothing is left to
+     * write, or when the batch is written and the SPILLED marker is next
+     */
+    private boolean fillBatch() throws IOException {
+        if (batchStart == batchEnd) {
+            batchStart = batchEnd = 0;
+        } else if (batchStart > 0) {
+            // Move the partly written frames to the front
+            int remaining = batchEnd - batchStart;
+            System.arraycopy(batchFrames, batchStart, batchFrames, 0, remaining);
+            System.arraycopy(batchViews, batchStart, batchViews, 0, remaining);
+            Arrays.fill(batchFrames, remaining, batchEnd, null);
+            Arrays.fill(batchViews, remaining, batchEnd, null);
+            batchStart = 0;
+            batchEnd = remaining;
+        }
+
+        long bytes = 0;
+        for (int i = batchStart; i < batchEnd; i++) {
+            bytes += batchViews[i].remaining();
+        }
+        int limit = main.getConfig().getWriteBatchBytes();
+        while (batchEnd < MAX_GATHER && bytes < limit) {
+            SharedFrame frame = outbound.peek();
+            if (frame == SPILLED) {
+                if (batchEnd == batchStart) {
+                    // Everything before the marker is out: the spill file is next
+                    outbound.poll();
+                    queuedFrames.decrementAndGet();
+                    drainingSpill = true;
+                }
+                break;
+            }
+            frame = outbound.poll();
+            if (frame == null) {
+                break;
+            }
+            ByteBuffer view = frame.bytes(getFormat());
+            batchFrames[batchEnd] = frame;
+            batchViews[batchEnd] = view;
+            batchEnd++;
+            bytes += view.remaining();
+        }
+        return batchEnd > batchStart;
+    }
+
+    void handleWrite() {
+        flush();
+    }
+
+    void handleRead() {
+        try {
+            if (relayTarget != null && readBuffer.position() == 0) {
+                relayFromChannel();
+                return;
+            }
+
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            readBuffer.flip();
+
+            while (!closed && !relayPending && readBuffer.hasRemaining()) {
+                if (relayTarget != null) {
+                    if (!forwardRelayBytes()) {
+                        break;
+                    }
+                    continue;
+                }
+                if (format == null && !detectFormat()) {
+                    break;
+                }
+
+                Message message;
+                try {
+                    message = (format == WireFormat.BINARY) ? BinaryCodec.decode(readBuffer) : decodeText();
+                } catch (ProtocolException e) {
+                    main.appendMessage("[CMDException]: " + e.getMessage());
+                    continue;
+                }
+                if (message == null) {
+                    break;
+                }
+
+                try {
+                    processor.process(message);
+                } catch (IOException | RuntimeException e) {
+                    main.appendMessage("[NioConnection]: " + e);
+                }
+            }
+
+            if (!closed) {
+                readBuffer.compact();
+                ensureFrameCapacity();
+            }
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Look at the first bytes to pick the wire format; false until enough arrived
+     */
+    private boolean detectFormat() throws IOException {
+        if (readBuffer.remaining() < WireFormat.DETECT_LENGTH) {
+            return false;
+        }
+        byte[] first = new byte[WireFormat.DETECT_LENGTH];
+        readBuffer.duplicate().get(first);
+        WireFormat detected = WireFormat.detect(first);
+        if (detected == WireFormat.BINARY) {
+            if (WireFormat.version(first) != BinaryCodec.VERSION) {
+                throw new IOException("Unsupported protocol version " + WireFormat.version(first));
+            }
+            readBuffer.position(readBuffer.position() + WireFormat.DETECT_LENGTH);
+        }
+        format = detected;
+        return true;
+    }
+
+    /**
+     * Decode one writeUTF frame, or null if it has not fully arrived
+     */
+    private Message decodeText() throws IOException {
+        if (readBuffer.remaining() < 2) {
+            return null;
+        }
+        int length = readBuffer.getShort(readBuffer.position()) & 0xFFFF;
+        if (readBuffer.remaining() < length + 2) {
+            return null;
+        }
+
+        String data = DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(
+                readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), length + 2)));
+        readBuffer.position(readBuffer.position() + length + 2);
+        return TextCodec.decode(data, true);
+    }
+
+    /**
+     * Grow the read buffer when a partial frame does not fit yet; a full
+     * buffer that cannot grow would never be read into again
+     */
+    private void ensureFrameCapacity() throws IOException {
+        if (readBuffer.hasRemaining() || relayTarget != null || relayPending) {
+            return;
+        }
+        int newCapacity = Math.min(readBuffer.capacity() * 2, MAX_FRAME);
+        if (newCapacity <= readBuffer.capacity()) {
+            throw new FrameTooLargeException(readBuffer.capacity());
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(newCapacity);
+        readBuffer.flip();
+        bigger.put(readBuffer);
+        readBuffer = bigger;
+    }
+
+    /**
+     * Pass file bytes that arrived together with the CMD_SENDFILE frame on to
+     * the relay target; false when reading is paused
+     */
+    private boolean forwardRelayBytes() throws IOException {
+        int count = (int) Math.min(Math.min(readBuffer.remaining(), relayRemaining), BufferPool.BUFFER_SIZE);
+        ByteBuffer chunk = BufferPool.DIRECT.acquire();
+        ByteBuffer slice = readBuffer.duplicate();
+        slice.limit(slice.position() + count);
+        chunk.put(slice);
+        chunk.flip();
+        readBuffer.position(readBuffer.position() + count);
+        return relayChunk(chunk);
+    }
+
+    /**
+     * Relay fast path: read the sender's channel straight into a pooled direct
+     * buffer and queue that buffer on the target, which writes it to its own
+     * channel. The bytes never enter the Java heap.
+     */
+    private void relayFromChannel() throws IOException {
+        ByteBuffer chunk = BufferPool.DIRECT.acquire();
+        chunk.limit((int) Math.min(chunk.capacity(), relayRemaining));
+        int n = channel.read(chunk);
+        if (n <= 0) {
+            BufferPool.DIRECT.release(chunk);
+            if (n < 0) {
+                closeNow();
+            }
+            return;
+        }
+        chunk.flip();
+        relayChunk(chunk);
+    }
+
+    /**
+     * Queue one filled chunk on the relay target; false when reading is paused
+     */
+    private boolean relayChunk(ByteBuffer chunk) throws IOException {
+        relayRemaining -= chunk.remaining();
+        SharedFrame frame = BufferPool.DIRECT.frame(chunk);
+        boolean queued;
+        try {
+            queued = relayTarget.offerRaw(frame);
+        } catch (IOException e) {
+            frame.release();
+            throw e;
+        }
+        if (!queued) {
+            // Target's backlog is spilled: keep the chunk until the spill file is written
+            relayHeld = frame;
+            pauseRelay();
+            return false;
+        }
+        frame.release();
+        return relayQueued();
+    }
+
+    /**
+     * A chunk is on the target: finish, or pause while the target is
+     * behind; false when reading is paused
+     */
+    private boolean relayQueued() {
+        if (relayRemaining == 0) {
+            finishRelay();
+            return true;
+        }
+        if (relayTarget.pendingBytes.get() > RELAY_HIGH_WATER) {
+            pauseRelay();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stop reading the sender until the target has written its queue and
+     * any spilled bytes
+     */
+    private void pauseRelay() {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        relayTarget.whenDrained(() -> loop.execute(this::resumeRelay));
+    }
+
+    /**
+     * The target drained: queue the held chunk, then go on reading (file
+     * bytes or commands may be buffered already)
+     */
+    private void resumeRelay() {
+        if (closed) {
+            return;
+        }
+        if (relayHeld != null) {
+            SharedFrame held = relayHeld;
+            relayHeld = null;
+            try {
+                if (!relayTarget.offerRaw(held)) {
+                    relayHeld = held.retain();
+                    pauseRelay();
+                    return;
+                }
+            } catch (IOException e) {
+                closeNow();
+                return;
+            } finally {
+                held.release();
+            }
+            if (!relayQueued()) {
+                return;
+            }
+        }
+        resumeRead();
+        handleRead();
+    }
+
+    @Override
+    public void whenDrained(Runnable task) {
+        drainedTasks.add(task);
+        // The loop may have drained the queue just before
+        if ((closed || isDrained()) && drainedTasks.remove(task)) {
+            task.run();
+        }
+    }
+
+    private boolean isDrained() {
+        return queuedFrames.get() == 0 && (spill == null || !spill.isActive());
+    }
+
+    private void runDrainedTasks() {
+        Runnable task;
+        // A task that queues more and waits again runs after that is written
+        while ((closed || isDrained()) && (task = drainedTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void resumeRead() {
+        if (!closed) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void finishRelay() {
+        Runnable complete = relayComplete;
+        relayTarget = null;
+        relayComplete = null;
+        complete.run();
+    }
+
+    @Override
+    public void relayFile(ClientConnection target, long size, Runnable onComplete) throws IOException {
+        if (!(target instanceof NioConnection)) {
+            throw new IOException("Relay target is not an NIO connection");
+        }
+        relayTarget = (NioConnection) target;
+        relayRemaining = size;
+        relayComplete = onComplete;
+        if (size == 0) {
+            finishRelay();
+        }
+    }
+
+    /**
+     * Relay the coming file bytes to another node of the cluster. Reading
+     * stops while a helper thread connects the hop (connecting blocks); the
+     * hop then joins this loop and the relay goes on as relayFile()'s.
+     */
+    void relayToPeer(Cluster cluster, InetSocketAddress address, Message header, long size, Runnable onComplete) {
+        relayPending = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        ClientExecutors.platformThreads().execute(() -> {
+            try {
+                SocketChannel hop = cluster.openRelayChannel(address, header);
+                loop.registerOutgoing(hop, WireFormat.BINARY, target -> startPeerRelay(target, size, onComplete));
+            } catch (IOException e) {
+                main.appendMessage("[NioConnection]: Cannot relay to " + Cluster.describe(address) + ": " + e.getMessage());
+                loop.execute(this::closeNow);
+            }
+        });
+    }
+
+    private void startPeerRelay(NioConnection target, long size, Runnable onComplete) {
+        relayPending = false;
+        if (closed) {
+            target.closeNow();
+            return;
+        }
+        try {
+            relayFile(target, size, () -> {
+                target.close();
+                onComplete.run();
+            });
+        } catch (IOException e) {
+            closeNow();
+            return;
+        }
+        resumeRead();
+        // File bytes that came with the header are already buffered
+        handleRead();
+    }
+
+    /**
+     * Format of a connection this server opened (no preamble to detect)
+     */
+    void setFormat(WireFormat format) {
+        this.format = format;
+    }
+
+    /**
+     * Close once everything already queued has been written
+     */
+    @Override
+    public void close() {
+        if (closed || closing) {
+            return;
+        }
+        closing = true;
+        loop.execute(this::flush);
+    }
+
+    /**
+     * Close immediately (loop thread); cleanup runs as a separate loop task
+     * so registry callbacks never re-enter the caller
+     */
+    void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        for (int i = batchStart; i < batchEnd; i++) {
+            batchFrames[i].release();
+            batchFrames[i] = null;
+            batchViews[i] = null;
+        }
+        batchStart = batchEnd = 0;
+        SharedFrame dropped;
+        while ((dropped = outbound.poll()) != null) {
+            if (dropped != SPILLED) {
+                dropped.release();
+            }
+        }
+        if (spill != null) {
+            spill.close();
+        }
+        if (relayHeld != null) {
+            relayHeld.release();
+            relayHeld = null;
+        }
+        if (relayTarget != null) {
+            // The sender went away mid-file: the receiver would wait for the rest forever
+            main.appendMessage("[NioConnection]: File relay aborted, " + relayRemaining + " bytes never arrived from "
+                    + getRemoteAddress());
+            relayTarget.close();
+            relayTarget = null;
+            relayComplete = null;
+        }
+        // Whoever waits for the drain finds the connection closed
+        runDrainedTasks();
+        loop.execute(processor::disconnected);
+    }
+
+    @Override
+    public WireFormat getFormat() {
+        WireFormat current = format;
+        return current == null ? WireFormat.TEXT : current;
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return channel.socket().getInetAddress().getHostAddress() + ":" + channel.socket().getPort();
+    }
+}
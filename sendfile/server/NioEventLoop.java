@@ -0,0 +1,210 @@
+package sendfile.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import sendfile.protocol.WireFormat;
+
+/**
+ * Single-threaded selector loop that owns a set of client channels.
+ * All reads, writes and interest changes for a channel happen on its loop;
+ * other threads hand work over with execute(), or schedule() for later.
+ */
+public class NioEventLoop implements Runnable {
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();  // loop thread only
+    private final ChatServer main;
+    private volatile Thread thread;
+    private volatile boolean running = true;
+
+    public NioEventLoop(ChatServer main) throws IOException {
+        this.main = main;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Register a freshly accepted channel with this loop
+     */
+    public void register(final SocketChannel channel) {
+        execute(() -> {
+            try {
+                main.getConfig().configure(channel.socket());
+                attach(channel);
+            } catch (IOException e) {
+                main.appendMessage("[NioEventLoop]: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    /**
+     * Register a channel this server connected itself (a file relay to
+     * another node), already speaking the given format; ready gets the
+     * connection on the loop thread
+     */
+    public void registerOutgoing(final SocketChannel channel, final WireFormat format,
+            final Consumer<NioConnection> ready) {
+        execute(() -> {
+            try {
+                NioConnection connection = attach(channel);
+                connection.setFormat(format);
+                ready.accept(connection);
+            } catch (IOException e) {
+                main.appendMessage("[NioEventLoop]: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    private NioConnection attach(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        NioConnection connection = new NioConnection(channel, key, this, main);
+        key.attach(connection);
+        return connection;
+    }
+
+    /**
+     * Run a task on the loop thread
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Run a task on the loop thread after a delay. The selector waits in
+     * whole milliseconds, so short delays round up to about 1 ms.
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        final Timer timer = new Timer(System.nanoTime() + delayNanos, task);
+        execute(() -> timers.add(timer));
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (running) {
+            try {
+                // Tasks queued by the loop itself (e.g. a reply's flush) must not wait for I/O
+                long timeout = nextTimerMillis();
+                if (!tasks.isEmpty() || timeout == 0) {
+                    selector.selectNow();
+                } else if (timeout > 0) {
+                    selector.select(timeout);
+                } else {
+                    selector.select();
+                }
+                runTasks();
+                runTimers();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioConnection connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isWritable()) {
+                        connection.handleWrite();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        connection.handleRead();
+                    }
+                }
+            } catch (IOException e) {
+                main.appendMessage("[NioEventLoop IOException]: " + e.getMessage());
+            }
+        }
+        closeAll();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                main.appendMessage("[NioEventLoop]: " + e);
+            }
+        }
+    }
+
+    /**
+     * Milliseconds until the next timer is due: 0 if one is due, -1 if none
+     */
+    private long nextTimerMillis() {
+        Timer next = timers.peek();
+        if (next == null) {
+            return -1;
+        }
+        long wait = next.deadline - System.nanoTime();
+        return wait <= 0 ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        Timer next;
+        while ((next = timers.peek()) != null && next.deadline - now <= 0) {
+            timers.poll();
+            try {
+                next.task.run();
+            } catch (RuntimeException e) {
+                main.appendMessage("[NioEventLoop]: " + e);
+            }
+        }
+    }
+
+    private static final class Timer implements Comparable<Timer> {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof NioConnection) {
+                ((NioConnection) attachment).closeNow();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
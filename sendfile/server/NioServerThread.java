@@ -0,0 +1,94 @@
+package sendfile.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking server mode: accepted channels are spread over a small pool
+ * of selector-based event loops (one per core) instead of one thread each.
+ * Idle clients cost a registered key and a small read buffer, not a thread stack.
+ */
+public class NioServerThread implements ServerLoop {
+
+    ServerSocketChannel server;
+    ChatServer main;
+    NioEventLoop[] loops;
+    volatile boolean keepGoing = true;
+    private int nextLoop = 0;
+
+    public NioServerThread(int port, ChatServer main) throws IOException {
+        this.main = main;
+        main.appendMessage("[Secure Server]: Initializing NIO mode on port " + port);
+
+        server = ServerSocketChannel.open();
+        try {
+            server.socket().setReuseAddress(true);
+            // Accepted channels inherit this; above 64 KB it has to be set before bind
+            if (main.getConfig().getReceiveBufferSize() > 0) {
+                server.socket().setReceiveBufferSize(main.getConfig().getReceiveBufferSize());
+            }
+            server.socket().bind(new InetSocketAddress(port), main.getConfig().getAcceptBacklog());
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+
+        int count = Runtime.getRuntime().availableProcessors();
+        loops = new NioEventLoop[count];
+        for (int i = 0; i < count; i++) {
+            loops[i] = new NioEventLoop(main);
+            Thread loopThread = new Thread(loops[i], "nio-event-loop-" + i);
+            loopThread.setDaemon(true);
+            loopThread.start();
+        }
+
+        main.appendMessage("[Secure Server]: Ready for encrypted connections! (" + count + " event loops)");
+        main.appendMessage("[Security]: Supporting both legacy and encrypted clients");
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (keepGoing) {
+                SocketChannel channel = server.accept();
+
+                // Log new connection
+                String clientInfo = channel.socket().getInetAddress().getHostAddress() + ":" + channel.socket().getPort();
+                main.appendMessage("[New Connection]: " + clientInfo);
+
+                /** Hand the channel to the next event loop (round robin) **/
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        } catch (IOException e) {
+            if (keepGoing) {
+                main.appendMessage("[NioServerThread IOException]: " + e.getMessage());
+            } else {
+                main.appendMessage("[Server]: Shutdown complete");
+            }
+        }
+    }
+
+    /**
+     * Stop the server gracefully
+     */
+    @Override
+    public void stop() {
+        try {
+            keepGoing = false;
+            if (server != null && server.isOpen()) {
+                server.close();
+            }
+            if (loops != null) {
+                for (NioEventLoop loop : loops) {
+                    loop.shutdown();
+                }
+            }
+
+        } catch (IOException e) {
+            main.appendMessage("[Stop Error]: " + e.getMessage());
+        }
+    }
+}
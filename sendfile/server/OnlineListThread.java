@@ -6,48 +6,115 @@
 
 package sendfile.server;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.SharedFrame;
+import sendfile.protocol.WireFormat;
 
 /**
  *
  * @author hanhhoatranthi
+ *
+ * Pushes presence changes instead of polling: a joining client gets the full
+ * list (CommandProcessor), after that only the users that joined or left are
+ * sent. Changes are gathered for COALESCE_MILLIS so a burst of reconnects
+ * becomes one update; an idle server sends nothing at all.
+ *
+ * Binary clients get CMD_PRESENCE_ADD / CMD_PRESENCE_REMOVE deltas. Text
+ * clients may be old builds that only know CMD_ONLINE, so they get the full
+ * list, but still only when something changed.
+ *
+ * Updates are best effort: a slow client may lose some, and then gets the
+ * full list again once it has caught up (SlowConsumerGuard).
  */
 public class OnlineListThread implements Runnable {
 
-    ServerForm main;
+    static final long COALESCE_MILLIS = 100;
 
-    public OnlineListThread(ServerForm main){
+    ChatServer main;
+    private final BlockingQueue<String> changes = new LinkedBlockingQueue<>();
+
+    public OnlineListThread(ChatServer main){
         this.main = main;
     }
 
+    /**
+     * Called when a user joined or left; the update goes out after the coalescing window
+     */
+    public void userChanged(String username){
+        changes.add(username);
+    }
+
     @Override
     public void run() {
         try {
             while(!Thread.interrupted()){
-                String msg = "";
-                for(int x=0; x < main.clientList.size(); x++){
-                    msg = msg+" "+ main.clientList.elementAt(x);
-                }
-
-                for(int x=0; x < main.socketList.size(); x++){
-                    Socket tsoc = (Socket) main.socketList.elementAt(x);
-                    DataOutputStream dos = new DataOutputStream(tsoc.getOutputStream());
-                    /** CMD_ONLINE [user1] [user2] [user3] **/
-                    if(!msg.isEmpty()){
-                        dos.writeUTF("CMD_ONLINE "+ msg);
-                    }
-                }
-
-                Thread.sleep(1900);
+                Set<String> changed = new HashSet<>();
+                changed.add(changes.take());
+                Thread.sleep(COALESCE_MILLIS);
+                changes.drainTo(changed);
+                publish(changed);
             }
         } catch(InterruptedException e){
-            main.appendMessage("[InterruptedException]: "+ e.getMessage());
-        } catch (IOException e) {
-            main.appendMessage("[IOException]: "+ e.getMessage());
+            // Server stopped
         }
     }
 
+    /**
+     * Send the net effect of the changed users: whoever is online now was added
+     */
+    private void publish(Set<String> changed){
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for(String username : changed){
+            if(main.registry.isOnline(username)){
+                added.add(username);
+            } else {
+                removed.add(username);
+            }
+        }
+
+        Session[] sessions = main.registry.snapshot();
+        SharedFrame add = added.isEmpty() ? null
+                : SharedFrame.bestEffort(Message.of(Command.PRESENCE_ADD, (Object) added.toArray(new String[0])));
+        SharedFrame remove = removed.isEmpty() ? null
+                : SharedFrame.bestEffort(Message.of(Command.PRESENCE_REMOVE, (Object) removed.toArray(new String[0])));
+        /** CMD_ONLINE [user1] [user2] [user3] **/
+        SharedFrame online = SharedFrame.bestEffort(Message.of(Command.ONLINE, (Object) main.registry.usernames()));
 
+        try {
+            for(Session session : sessions){
+                ClientConnection connection = session.getConnection();
+                try {
+                    if(connection.getFormat() == WireFormat.BINARY){
+                        if(add != null){
+                            connection.send(add);
+                        }
+                        if(remove != null){
+                            connection.send(remove);
+                        }
+                    } else {
+                        connection.send(online);
+                    }
+                } catch (IOException e) {
+                    main.appendMessage("[Presence]: " + session.getUsername() + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            if(add != null){
+                add.release();
+            }
+            if(remove != null){
+                remove.release();
+            }
+            online.release();
+        }
+    }
 }
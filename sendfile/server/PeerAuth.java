@@ -0,0 +1,89 @@
+package sendfile.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+
+/**
+ * Proves a CMD_PEER_HELLO comes from a node that knows the cluster secret
+ * (--cluster-secret), so a client cannot pose as a peer.
+ *
+ *   CMD_PEER_HELLO [nodeId] [link|relay] [timeMillis] [proof]
+ *
+ * proof is the Base64 HmacSHA256 of node id, kind and time under the
+ * secret. A hello older or newer than MAX_SKEW_MILLIS is refused, and so
+ * is a proof seen before, so a captured hello cannot be replayed.
+ */
+final class PeerAuth {
+
+    static final long MAX_SKEW_MILLIS = 60_000;
+
+    private final byte[] secret;
+
+    /** Time of the last hello signed here; each gets a later one, so no two share a proof **/
+    private final AtomicLong lastSigned = new AtomicLong();
+
+    /** Proofs accepted within the skew window, with their time **/
+    private final Map<String, Long> seen = new ConcurrentHashMap<>();
+
+    PeerAuth(String secret) {
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A hello from this node, signed now
+     */
+    Message hello(String nodeId, String kind) {
+        long now = System.currentTimeMillis();
+        long time = lastSigned.updateAndGet(last -> Math.max(now, last + 1));
+        return Message.of(Command.PEER_HELLO, nodeId, kind, time, proof(nodeId, kind, time));
+    }
+
+    /**
+     * Whether a received hello is signed with the secret, recent and not a replay
+     */
+    boolean verify(Message hello) {
+        String nodeId = hello.getString(0);
+        String kind = hello.getString(1);
+        long time = hello.getLong(2);
+        long now = System.currentTimeMillis();
+        if (Math.abs(now - time) > MAX_SKEW_MILLIS) {
+            return false;
+        }
+        String expected = proof(nodeId, kind, time);
+        if (!MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8),
+                hello.getString(3).getBytes(StandardCharsets.UTF_8))) {
+            return false;
+        }
+        forgetBefore(now - MAX_SKEW_MILLIS);
+        return seen.putIfAbsent(expected, time) == null;
+    }
+
+    private void forgetBefore(long oldest) {
+        for (Iterator<Long> times = seen.values().iterator(); times.hasNext(); ) {
+            if (times.next() < oldest) {
+                times.remove();
+            }
+        }
+    }
+
+    private String proof(String nodeId, String kind, long time) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            byte[] signed = mac.doFinal((nodeId + '\n' + kind + '\n' + time).getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(signed);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package sendfile.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import sendfile.log.Log;
+import sendfile.log.Logger;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.MessageStream;
+import sendfile.protocol.SharedFrame;
+import sendfile.protocol.WireFormat;
+
+/**
+ * The link this node dialed to one peer, carrying this node's traffic to it.
+ *
+ * Connects to the peer's client port in the binary format and says
+ * CMD_PEER_HELLO [nodeId] link, signed with the cluster secret; the peer
+ * answers with its own signed hello, which tells us its node id. Then
+ * this node's users go over as one CMD_PEER_JOIN and later changes follow
+ * as they happen. Writes go through a SocketConnection like a client's,
+ * but as critical frames on a link that is exempt from the slow-consumer
+ * policy: a busy peer must not lose a whole node's traffic. The link is
+ * redialed after RECONNECT_MILLIS whenever it breaks.
+ */
+class PeerLink implements Runnable {
+
+    private static final Logger LOG = Log.get("cluster");
+
+    private final Cluster cluster;
+    private final ChatServer main;
+    final InetSocketAddress address;
+
+    private volatile SocketConnection connection;
+    private volatile String nodeId;
+    private volatile boolean running = true;
+
+    PeerLink(Cluster cluster, ChatServer main, InetSocketAddress address) {
+        this.cluster = cluster;
+        this.main = main;
+        this.address = address;
+    }
+
+    /**
+     * The peer's node id once the link is up, else null
+     */
+    String getNodeId() {
+        return connection != null ? nodeId : null;
+    }
+
+    @Override
+    public void run() {
+        boolean reported = false;
+        while (running) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(Cluster.resolve(address), Cluster.CONNECT_TIMEOUT_MILLIS);
+                main.getConfig().configure(socket);
+                cluster.resolved(socket.getInetAddress());
+                MessageStream stream = MessageStream.connect(socket, WireFormat.BINARY);
+                stream.write(cluster.hello(Cluster.LINK));
+
+                Message hello = stream.read();
+                if (hello.getCommand() != Command.PEER_HELLO) {
+                    throw new IOException("expected CMD_PEER_HELLO, got " + hello.getCommand().getTextName());
+                }
+                if (!cluster.verify(hello)) {
+                    throw new IOException("peer has no valid proof of the cluster secret");
+                }
+                nodeId = hello.getString(0);
+
+                SocketConnection link = SocketConnection.peerLink(socket, stream, main);
+                link.startWriter(ClientExecutors.platformThreads());
+                up(link);
+                reported = false;
+                LOG.info("[Cluster]: Linked to " + nodeId + " (" + Cluster.describe(address) + ")");
+
+                // Nothing else comes back on this link; reading only notices when it breaks
+                while (true) {
+                    stream.read();
+                }
+            } catch (IOException e) {
+                if (running && (!reported || connection != null)) {
+                    LOG.warn("[Cluster]: Link to " + (nodeId != null ? nodeId : Cluster.describe(address))
+                            + " down: " + (e.getMessage() != null ? e.getMessage() : "connection closed")
+                            + " (retrying every " + Cluster.RECONNECT_MILLIS + " ms)");
+                    reported = true;
+                }
+            } finally {
+                down();
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+
+            try {
+                Thread.sleep(Cluster.RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Publish the link and send the full user list; under the lock so no
+     * join or leave of ours can overtake the list
+     */
+    private synchronized void up(SocketConnection link) throws IOException {
+        connection = link;
+        cluster.linkUp(this);
+        link.send(Message.of(Command.PEER_JOIN, (Object) main.registry.localUsernames()));
+    }
+
+    private void down() {
+        SocketConnection link;
+        synchronized (this) {
+            link = connection;
+            if (link == null) {
+                return;
+            }
+            connection = null;
+            cluster.linkDown(this);
+        }
+        // Outside the lock: presence() from client threads need not wait for the socket to close
+        link.closeNow();
+    }
+
+    /**
+     * CMD_PEER_JOIN / CMD_PEER_LEAVE for users of this node, if the link is up
+     */
+    synchronized void presence(Command command, String username) {
+        send(Message.of(command, (Object) new String[] {username}));
+    }
+
+    /**
+     * Queue a message for the peer; false if the link is down or refused it
+     */
+    boolean send(Message message) {
+        SharedFrame frame = SharedFrame.of(message);
+        try {
+            return send(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    boolean send(SharedFrame frame) {
+        SocketConnection link = connection;
+        if (link == null) {
+            return false;
+        }
+        try {
+            link.send(frame);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("[Cluster]: Cannot send to " + nodeId + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    void stop() {
+        running = false;
+        down();
+    }
+}
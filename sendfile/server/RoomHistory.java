@@ -0,0 +1,103 @@
+package sendfile.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import sendfile.protocol.BinaryCodec;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.TextCodec;
+import sendfile.protocol.WireFormat;
+
+/**
+ * Recent encrypted broadcasts per room (--history N, --history-kb N), sent
+ * to a client as CMD_HISTORY right after CMD_JOIN (everyone) and
+ * CMD_ROOM_JOIN (that room), so a new window does not start empty. The
+ * history is split over as many frames as the client's format needs
+ * (a text frame holds at most 64 KB).
+ *
+ * The frames are kept as the members received them, still encrypted and
+ * with their MACs, in a HistoryRing per room. A node keeps the history of
+ * every room it hears from, also through its peers; past MAX_ROOMS rings
+ * the ones of rooms without members here are let go.
+ */
+public class RoomHistory {
+
+    /** Key of the broadcast to everyone (room names cannot contain it) **/
+    public static final String EVERYONE = "*";
+
+    static final int MAX_ROOMS = 1024;
+
+    private final ChatServer main;
+    private final ConcurrentHashMap<String, HistoryRing> rings = new ConcurrentHashMap<>();
+
+    public RoomHistory(ChatServer main) {
+        this.main = main;
+    }
+
+    /**
+     * Keep a CMD_MESSAGE_ENCRYPTED (EVERYONE) or CMD_ROOM_MESSAGE_ENCRYPTED frame
+     */
+    void add(String room, Message frame) {
+        ServerConfig config = main.getConfig();
+        if (config.getHistoryMessages() == 0) {
+            return;
+        }
+        HistoryRing ring = rings.get(room);
+        if (ring == null) {
+            if (rings.size() >= MAX_ROOMS) {
+                rings.keySet().removeIf(name -> !name.equals(EVERYONE) && main.rooms.members(name).length == 0);
+            }
+            ring = rings.computeIfAbsent(room,
+                    name -> new HistoryRing(config.getHistoryMessages(), config.getHistoryBytes()));
+        }
+        ring.add(frame);
+    }
+
+    /**
+     * CMD_HISTORY [room] [from ciphertext mac ...] frames, oldest first, with
+     * what was said in the room before the given time; each fits a frame of
+     * the given format. A message too large for a frame of its own is left
+     * out. Empty if nothing was said.
+     */
+    List<Message> replay(String room, long beforeMillis, WireFormat format) throws IOException {
+        HistoryRing ring = rings.get(room);
+        if (ring == null) {
+            return new ArrayList<>();
+        }
+        List<Message> frames = ring.before(beforeMillis);
+        List<Message> history = new ArrayList<>();
+        // Upper bounds: a string is at most its modified UTF-8 length, plus a space or a varint
+        int separator = format == WireFormat.TEXT ? 1 : 5;
+        int budget = (format == WireFormat.TEXT ? TextCodec.MAX_LINE : BinaryCodec.MAX_FRAME)
+                - Command.HISTORY.getTextName().length() - TextCodec.utfLength(room) - 16;
+
+        List<String> entries = new ArrayList<>();
+        int size = 0;
+        for (Message frame : frames) {
+            // CMD_ROOM_MESSAGE_ENCRYPTED starts with the room
+            int from = frame.getCommand() == Command.ROOM_MESSAGE_ENCRYPTED ? 1 : 0;
+            int length = 0;
+            for (int i = from; i < from + 3; i++) {
+                length += TextCodec.utfLength(frame.getString(i)) + separator;
+            }
+            if (length > budget) {
+                continue;
+            }
+            if (size + length > budget) {
+                history.add(Message.of(Command.HISTORY, room, entries.toArray(new String[0])));
+                entries.clear();
+                size = 0;
+            }
+            entries.add(frame.getString(from));
+            entries.add(frame.getString(from + 1));
+            entries.add(frame.getString(from + 2));
+            size += length;
+        }
+        if (!entries.isEmpty()) {
+            history.add(Message.of(Command.HISTORY, room, entries.toArray(new String[0])));
+        }
+        return history;
+    }
+}
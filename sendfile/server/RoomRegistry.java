@@ -0,0 +1,109 @@
+package sendfile.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Room name -> members index, so a room message is queued only for the
+ * sessions in that room instead of every connected user.
+ *
+ * Each room keeps its members as a copy-on-write array: rooms are small
+ * and messages far outnumber joins and leaves, so sending is one volatile
+ * read and a loop over exactly the members. A room exists while it has
+ * members. Only local sessions are indexed; in a cluster every node fans
+ * a room message out to its own members.
+ */
+public class RoomRegistry {
+
+    /** Room names are single words, so they fit the text protocol as a field **/
+    static final int MAX_NAME_LENGTH = 32;
+
+    private static final Session[] EMPTY = new Session[0];
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+
+    private static final class Room {
+        volatile Session[] members = EMPTY;
+    }
+
+    /**
+     * Letters, digits, '-' and '_', up to MAX_NAME_LENGTH
+     */
+    public static boolean isValidName(String room) {
+        return room != null && !room.isEmpty() && room.length() <= MAX_NAME_LENGTH
+                && room.matches("[A-Za-z0-9_-]+");
+    }
+
+    /**
+     * Add the session to the room, creating the room; false if already a member
+     */
+    public boolean join(String room, Session session) {
+        while (true) {
+            Room current = rooms.computeIfAbsent(room, name -> new Room());
+            synchronized (current) {
+                // A room removed while we waited for it is gone; start over with a new one
+                if (rooms.get(room) != current) {
+                    continue;
+                }
+                for (Session member : current.members) {
+                    if (member.getConnection() == session.getConnection()) {
+                        return false;
+                    }
+                }
+                Session[] members = Arrays.copyOf(current.members, current.members.length + 1);
+                members[members.length - 1] = session;
+                current.members = members;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Remove the connection's session from the room, dropping the room once
+     * it is empty; false if it was not a member
+     */
+    public boolean leave(String room, ClientConnection connection) {
+        Room current = rooms.get(room);
+        if (current == null) {
+            return false;
+        }
+        synchronized (current) {
+            Session[] members = current.members;
+            for (int i = 0; i < members.length; i++) {
+                if (members[i].getConnection() == connection) {
+                    Session[] left = new Session[members.length - 1];
+                    System.arraycopy(members, 0, left, 0, i);
+                    System.arraycopy(members, i + 1, left, i, members.length - i - 1);
+                    current.members = left;
+                    if (left.length == 0) {
+                        rooms.remove(room, current);
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The room's members right now, empty if there is no such room.
+     * The array is never modified; do not modify it either.
+     */
+    public Session[] members(String room) {
+        Room current = rooms.get(room);
+        return current != null ? current.members : EMPTY;
+    }
+
+    public boolean isMember(String room, ClientConnection connection) {
+        for (Session member : members(room)) {
+            if (member.getConnection() == connection) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return rooms.size();
+    }
+}
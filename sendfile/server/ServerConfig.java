@@ -0,0 +1,355 @@
+package sendfile.server;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Settings a ChatServer is started with: port, connection mode and limits.
+ * Filled in by ServerForm or parsed from the headless command line.
+ */
+public class ServerConfig {
+
+    public static final int DEFAULT_PORT = 3333;
+
+    int port = DEFAULT_PORT;
+    ServerMode mode = ServerMode.THREAD_PER_CLIENT;
+
+    /** High-water marks of a connection's outbound queue, in messages and bytes **/
+    int outboundCapacity = ClientConnection.OUTBOUND_CAPACITY;
+    long maxQueuedBytes = 4 * 1024 * 1024;
+
+    /** What happens past a high-water mark (SlowConsumerGuard) **/
+    SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_OLDEST;
+
+    /** Where the spill policy keeps its per-session files, and how large one may grow **/
+    String spillDirectory = new File(System.getProperty("java.io.tmpdir"), "sendfile-spill").getPath();
+    int maxSpillMegabytes = 256;
+
+    /** Where messages for offline users are kept (Mailbox), by default per node; for how long (0 = not kept), how much, for how many users **/
+    String mailboxDirectory;
+    int mailboxTtlHours = 72;
+    int mailboxMaxMegabytes = 256;
+    int mailboxMaxUsers = 10000;
+
+    /** Recent broadcasts kept per room for joining clients (RoomHistory; 0 = none), in up to this many KB off-heap **/
+    int historyMessages = 50;
+    int historyKilobytes = 64;
+
+    /** Disconnect a client whose queued output has not moved for this long (0 = never) **/
+    int writeStallMillis = 30000;
+
+    /** This node's name in a cluster, and the other nodes' client ports (Cluster) **/
+    String nodeId;
+    List<InetSocketAddress> peers = Collections.emptyList();
+
+    /** Shared by the nodes of a cluster to prove CMD_PEER_HELLO (PeerAuth); required with peers **/
+    String clusterSecret;
+
+    /** Which node a user joins on (Cluster.homeOf) **/
+    UserPlacement placement = UserPlacement.ANY;
+
+    /** Pending connections the OS may hold before accept() **/
+    int acceptBacklog = 1024;
+
+    /** Frames are coalesced by the writers, so Nagle would only add delay **/
+    boolean tcpNoDelay = true;
+    boolean keepAlive = false;
+
+    /** Socket buffer sizes in bytes, 0 keeps the OS default **/
+    int sendBufferSize = 0;
+    int receiveBufferSize = 0;
+
+    /** Most bytes a writer gathers into one socket write **/
+    int writeBatchBytes = 64 * 1024;
+
+    /** How long a writer may wait for more frames before writing a small batch (0 = write at once) **/
+    int flushDelayMicros = 0;
+
+    public ServerConfig() {
+    }
+
+    public ServerConfig(int port, ServerMode mode) {
+        this.port = port;
+        this.mode = mode;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    public File getSpillDirectory() {
+        return new File(spillDirectory);
+    }
+
+    public long getMaxSpillBytes() {
+        return maxSpillMegabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Directory of the mailbox log, by default sendfile-mailbox-NODE in the temp directory
+     */
+    public File getMailboxDirectory() {
+        return mailboxDirectory != null ? new File(mailboxDirectory)
+                : new File(System.getProperty("java.io.tmpdir"), "sendfile-mailbox-" + getNodeId());
+    }
+
+    public int getMailboxTtlHours() {
+        return mailboxTtlHours;
+    }
+
+    public int getMailboxMaxMegabytes() {
+        return mailboxMaxMegabytes;
+    }
+
+    public int getMailboxMaxUsers() {
+        return mailboxMaxUsers;
+    }
+
+    public int getHistoryMessages() {
+        return historyMessages;
+    }
+
+    public int getHistoryBytes() {
+        return historyKilobytes * 1024;
+    }
+
+    public int getWriteStallMillis() {
+        return writeStallMillis;
+    }
+
+    /**
+     * Name of this node, by default node-PORT
+     */
+    public String getNodeId() {
+        return nodeId != null ? nodeId : "node-" + port;
+    }
+
+    /**
+     * The other nodes of the cluster (unresolved), empty when running alone
+     */
+    public List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    public UserPlacement getPlacement() {
+        return placement;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public int getWriteBatchBytes() {
+        return writeBatchBytes;
+    }
+
+    public long getFlushDelayNanos() {
+        return flushDelayMicros * 1000L;
+    }
+
+    /**
+     * Apply the socket options to an accepted client socket
+     */
+    public void configure(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setKeepAlive(keepAlive);
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+    }
+
+    /**
+     * Parse --port N, --mode threads|nio|virtual, --outbound-capacity N, --max-queued-bytes N,
+     * --slow-consumer drop|disconnect|demote|spill, --spill-dir DIR, --max-spill-mb N,
+     * --mailbox-dir DIR, --mailbox-ttl-hours N, --mailbox-max-mb N, --mailbox-max-users N,
+     * --history N, --history-kb N,
+     * --write-stall-millis N, --node-id NAME, --peers HOST:PORT,..., --cluster-secret SECRET,
+     * --placement any|hash, --backlog N,
+     * --tcp-nodelay true|false, --keep-alive true|false, --send-buffer N, --receive-buffer N,
+     * --write-batch N, --flush-delay-micros N
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--port":
+                    config.port = parseInt(option, value, 1, 65535);
+                    break;
+                case "--mode":
+                    config.mode = ServerMode.forKey(value);
+                    if (config.mode == null) {
+                        throw new IllegalArgumentException("Unknown mode '" + value + "' (threads, nio or virtual)");
+                    }
+                    break;
+                case "--outbound-capacity":
+                    config.outboundCapacity = parseInt(option, value, 1, Integer.MAX_VALUE);
+                    break;
+                case "--max-queued-bytes":
+                    config.maxQueuedBytes = parseInt(option, value, 1024, Integer.MAX_VALUE);
+                    break;
+                case "--slow-consumer":
+                    config.slowConsumerPolicy = SlowConsumerPolicy.forKey(value);
+                    if (config.slowConsumerPolicy == null) {
+                        throw new IllegalArgumentException("Unknown policy '" + value + "' (drop, disconnect, demote or spill)");
+                    }
+                    break;
+                case "--spill-dir":
+                    config.spillDirectory = value;
+                    break;
+                case "--max-spill-mb":
+                    config.maxSpillMegabytes = parseInt(option, value, 1, 1024 * 1024);
+                    break;
+                case "--mailbox-dir":
+                    config.mailboxDirectory = value;
+                    break;
+                case "--mailbox-ttl-hours":
+                    config.mailboxTtlHours = parseInt(option, value, 0, 24 * 365);
+                    break;
+                case "--mailbox-max-mb":
+                    config.mailboxMaxMegabytes = parseInt(option, value, 8, 1024 * 1024);
+                    break;
+                case "--mailbox-max-users":
+                    config.mailboxMaxUsers = parseInt(option, value, 1, Integer.MAX_VALUE);
+                    break;
+                case "--history":
+                    config.historyMessages = parseInt(option, value, 0, 10000);
+                    break;
+                case "--history-kb":
+                    config.historyKilobytes = parseInt(option, value, 1, 16 * 1024);
+                    break;
+                case "--write-stall-millis":
+                    config.writeStallMillis = parseInt(option, value, 0, Integer.MAX_VALUE);
+                    break;
+                case "--node-id":
+                    config.nodeId = value;
+                    break;
+                case "--peers":
+                    config.peers = parsePeers(option, value);
+                    break;
+                case "--cluster-secret":
+                    if (value.length() < 16) {
+                        throw new IllegalArgumentException(option + " must be at least 16 characters");
+                    }
+                    config.clusterSecret = value;
+                    break;
+                case "--placement":
+                    config.placement = UserPlacement.forKey(value);
+                    if (config.placement == null) {
+                        throw new IllegalArgumentException("Unknown placement '" + value + "' (any or hash)");
+                    }
+                    break;
+                case "--backlog":
+                    config.acceptBacklog = parseInt(option, value, 1, Integer.MAX_VALUE);
+                    break;
+                case "--tcp-nodelay":
+                    config.tcpNoDelay = parseBoolean(option, value);
+                    break;
+                case "--keep-alive":
+                    config.keepAlive = parseBoolean(option, value);
+                    break;
+                case "--send-buffer":
+                    config.sendBufferSize = parseInt(option, value, 0, Integer.MAX_VALUE);
+                    break;
+                case "--receive-buffer":
+                    config.receiveBufferSize = parseInt(option, value, 0, Integer.MAX_VALUE);
+                    break;
+                case "--write-batch":
+                    config.writeBatchBytes = parseInt(option, value, 1024, 16 * 1024 * 1024);
+                    break;
+                case "--flush-delay-micros":
+                    config.flushDelayMicros = parseInt(option, value, 0, 1000);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (!config.peers.isEmpty() && config.clusterSecret == null) {
+            throw new IllegalArgumentException("--peers needs --cluster-secret, the same on every node");
+        }
+        return config;
+    }
+
+    private static int parseInt(String option, String value, int min, int max) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < min || parsed > max) {
+                throw new IllegalArgumentException(option + " must be between " + min + " and " + max);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " expects a number, got '" + value + "'");
+        }
+    }
+
+    private static List<InetSocketAddress> parsePeers(String option, String value) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException(option + " expects HOST:PORT,..., got '" + peer + "'");
+            }
+            peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon).trim(),
+                    parseInt(option, peer.substring(colon + 1).trim(), 1, 65535)));
+        }
+        return peers;
+    }
+
+    private static boolean parseBoolean(String option, String value) {
+        if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value)) {
+            return Boolean.parseBoolean(value);
+        }
+        throw new IllegalArgumentException(option + " expects true or false, got '" + value + "'");
+    }
+
+    @Override
+    public String toString() {
+        return "port " + port + ", " + mode + ", outbound queue " + outboundCapacity + " messages / "
+                + maxQueuedBytes + " bytes (" + slowConsumerPolicy.toString().toLowerCase()
+                + (slowConsumerPolicy == SlowConsumerPolicy.SPILL ? ", up to " + maxSpillMegabytes + " MB in " + spillDirectory : "")
+                + ")"
+                + (mailboxTtlHours > 0 ? ", mailbox " + mailboxTtlHours + " h / " + mailboxMaxMegabytes + " MB / "
+                        + mailboxMaxUsers + " users" : ", no mailbox")
+                + (historyMessages > 0 ? ", history " + historyMessages + " messages / " + historyKilobytes + " KB per room" : "")
+                + ", write batch " + writeBatchBytes + " bytes, flush delay " + flushDelayMicros + " us"
+                + (tcpNoDelay ? ", TCP_NODELAY" : "")
+                + (peers.isEmpty() ? "" : ", " + getNodeId() + " with " + peers.size() + " peers"
+                        + (placement == UserPlacement.HASH ? ", users placed by consistent hash" : ""));
+    }
+}
@@ -3,35 +3,31 @@ package sendfile.server;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.Vector;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.CompoundBorder;
 import javax.swing.border.LineBorder;
+import javax.swing.text.BadLocationException;
 
 /**
  * Modern and responsive MainForm with contemporary UI design
+ *
+ * Only a view: the server itself is a ChatServer, which also runs headless.
  */
-public class ServerForm extends JFrame {
-
-    SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
-    Thread t;
-    ServerThread serverThread;
-
-    /** Chat List **/
-    public Vector socketList = new Vector();
-    public Vector clientList = new Vector();
-
-    /** File Sharing List **/
-    public Vector clientFileSharingUsername = new Vector();
-    public Vector clientFileSharingSocket = new Vector();
+public class ServerForm extends JFrame implements ServerView {
 
     /** Server **/
-    ServerSocket server;
+    ChatServer server;
+
+    /** Log view: lines land in a ring buffer, a timer moves them to logArea in batches **/
+    private static final int LOG_RETENTION = 5000;
+    private static final int LOG_REFRESH_MILLIS = 100;
+    private final LogRingBuffer log = new LogRingBuffer(LOG_RETENTION);
+    private long logShown = 0;      // next sequence number not yet in logArea (EDT only)
+    private int logLines = 0;       // lines currently in logArea (EDT only)
+    private Timer logTimer;
 
     // Modern color scheme
     private static final Color PRIMARY_COLOR = new Color(67, 56, 202);      // Indigo
@@ -45,6 +41,7 @@ public class ServerForm extends JFrame {
 
     // GUI Components
     private JTextField portField;
+    private JComboBox<ServerMode> modeBox;
     private JButton startButton;
     private JButton stopButton;
     private JTextArea logArea;
@@ -55,6 +52,8 @@ public class ServerForm extends JFrame {
 
     public ServerForm() {
         initModernComponents();
+        logTimer = new Timer(LOG_REFRESH_MILLIS, e -> refreshLog());
+        logTimer.start();
         setLocationRelativeTo(null);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
     }
@@ -136,6 +135,10 @@ public class ServerForm extends JFrame {
         portField = new JTextField("3333", 8);
         styleTextField(portField);
 
+        // Connection handling mode
+        modeBox = new JComboBox<>(ServerMode.values());
+        modeBox.setFont(new Font("SF Pro Text", Font.PLAIN, 12));
+
         // Server controls
         startButton = createModernButton("Start Server", SUCCESS_COLOR);
         stopButton = createModernButton("Stop Server", DANGER_COLOR);
@@ -159,12 +162,15 @@ public class ServerForm extends JFrame {
         panel.add(portField, gbc);
 
         gbc.gridx = 2;
-        panel.add(startButton, gbc);
+        panel.add(modeBox, gbc);
 
         gbc.gridx = 3;
+        panel.add(startButton, gbc);
+
+        gbc.gridx = 4;
         panel.add(stopButton, gbc);
 
-        gbc.gridx = 0; gbc.gridy = 1; gbc.gridwidth = 4; gbc.fill = GridBagConstraints.HORIZONTAL;
+        gbc.gridx = 0; gbc.gridy = 1; gbc.gridwidth = 5; gbc.fill = GridBagConstraints.HORIZONTAL;
         panel.add(serverProgress, gbc);
 
         // Event handlers
@@ -209,6 +215,8 @@ public class ServerForm extends JFrame {
         JButton clearLogButton = createSmallButton("Clear", TEXT_SECONDARY);
         clearLogButton.addActionListener(e -> {
             logArea.setText("");
+            logLines = 0;
+            logShown = log.next();
             appendMessage("Log cleared by administrator");
         });
 
@@ -451,19 +459,20 @@ public class ServerForm extends JFrame {
             serverProgress.setVisible(true);
             serverProgress.setIndeterminate(true);
 
-            serverThread = new ServerThread(port, this);
-            t = new Thread(serverThread);
-            t.start();
-
-            new Thread(new OnlineListThread(this)).start();
-
-            startButton.setEnabled(false);
-            stopButton.setEnabled(true);
-            portField.setEnabled(false);
-
-            if (statusLabel != null) {
-                statusLabel.setText("Online");
-                statusLabel.setForeground(SUCCESS_COLOR);
+            server = new ChatServer(new ServerConfig(port, (ServerMode) modeBox.getSelectedItem()));
+            server.attach(this);
+            try {
+                server.start();
+            } catch (IOException e) {
+                server.detach(this);
+                server = null;
+                serverProgress.setVisible(false);
+                appendMessage("[IOException]: " + e.getMessage());
+                JOptionPane.showMessageDialog(this,
+                        "Cannot start server on port " + port + ":\n" + e.getMessage(),
+                        "Server Error",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
             }
 
             serverProgress.setVisible(false);
@@ -483,127 +492,90 @@ public class ServerForm extends JFrame {
                 JOptionPane.YES_NO_OPTION,
                 JOptionPane.WARNING_MESSAGE);
 
-        if (confirm == 0) {
-            serverThread.stop();
-            startButton.setEnabled(true);
-            stopButton.setEnabled(false);
-            portField.setEnabled(true);
-
-            if (statusLabel != null) {
-                statusLabel.setText("Offline");
-                statusLabel.setForeground(DANGER_COLOR);
-            }
-            if (clientCountLabel != null) {
-                clientCountLabel.setText("0");
-            }
+        if (confirm == 0 && server != null) {
+            server.stop();
+            server.detach(this);
+            server = null;
         }
     }
 
-    // Server management methods
+    /**
+     * Log a message from the form itself (no server needed)
+     */
     public void appendMessage(String msg) {
-        Date date = new Date();
-        String timestamp = sdf.format(date);
-        String formattedMsg = String.format("[%s] %s", timestamp, msg);
-
-        SwingUtilities.invokeLater(() -> {
-            if (logArea != null) {
-                logArea.append(formattedMsg + "\n");
-                logArea.setCaretPosition(logArea.getText().length());
-            }
-
-            // Update client count safely
-            if (clientCountLabel != null) {
-                clientCountLabel.setText(String.valueOf(clientList.size()));
-            }
-        });
+        String timestamp = new SimpleDateFormat("HH:mm:ss").format(new Date());
+        appendLog(String.format("[%s] %s", timestamp, msg));
     }
 
-    // Existing server management methods (unchanged)
-    public void setSocketList(Socket socket) {
-        try {
-            socketList.add(socket);
-            appendMessage("New socket connection established");
-        } catch (Exception e) {
-            appendMessage("[setSocketList]: " + e.getMessage());
-        }
+    // ServerView: called from server threads
+    @Override
+    public void appendLog(String line) {
+        // No EDT work per line: the refresh timer picks it up
+        log.add(line);
     }
 
-    public void setClientList(String client) {
-        try {
-            clientList.add(client);
-            appendMessage("Client joined: " + client);
-        } catch (Exception e) {
-            appendMessage("[setClientList]: " + e.getMessage());
+    /**
+     * Move new log lines into logArea in one batch (EDT, at most every
+     * LOG_REFRESH_MILLIS) and drop the oldest beyond LOG_RETENTION
+     */
+    private void refreshLog() {
+        if (logArea == null || log.next() == logShown) {
+            return;
         }
-    }
+        LogRingBuffer.Range range = log.since(logShown);
 
-    public void setClientFileSharingUsername(String user) {
-        try {
-            clientFileSharingUsername.add(user);
-        } catch (Exception e) { }
-    }
-
-    public void setClientFileSharingSocket(Socket soc) {
-        try {
-            clientFileSharingSocket.add(soc);
-        } catch (Exception e) { }
-    }
-
-    public Socket getClientList(String client) {
-        Socket tsoc = null;
-        for(int x=0; x < clientList.size(); x++) {
-            if(clientList.get(x).equals(client)) {
-                tsoc = (Socket) socketList.get(x);
-                break;
-            }
+        StringBuilder batch = new StringBuilder();
+        for (String line : range.lines) {
+            batch.append(line).append('\n');
         }
-        return tsoc;
-    }
-
-    public void removeFromTheList(String client) {
-        try {
-            for(int x=0; x < clientList.size(); x++) {
-                if(clientList.elementAt(x).equals(client)) {
-                    clientList.removeElementAt(x);
-                    socketList.removeElementAt(x);
-                    appendMessage("👋 Client disconnected: " + client);
-                    break;
-                }
+        if (range.first > logShown) {
+            // Lines were overwritten before we got to them: show what is retained
+            logArea.setText(batch.toString());
+            logLines = range.lines.size();
+        } else {
+            logArea.append(batch.toString());
+            logLines += range.lines.size();
+        }
+        logShown = range.end();
+
+        int excess = logLines - LOG_RETENTION;
+        if (excess > 0) {
+            try {
+                logArea.replaceRange(null, 0, logArea.getLineEndOffset(excess - 1));
+                logLines -= excess;
+            } catch (BadLocationException e) {
+                logArea.setText("");
+                logLines = 0;
             }
-        } catch (Exception e) {
-            appendMessage("[RemovedException]: " + e.getMessage());
         }
+        logArea.setCaretPosition(logArea.getDocument().getLength());
     }
 
-    public Socket getClientFileSharingSocket(String username) {
-        Socket tsoc = null;
-        for(int x=0; x < clientFileSharingUsername.size(); x++) {
-            if(clientFileSharingUsername.elementAt(x).equals(username)) {
-                tsoc = (Socket) clientFileSharingSocket.elementAt(x);
-                break;
+    @Override
+    public void clientCountChanged(int count) {
+        SwingUtilities.invokeLater(() -> {
+            if (clientCountLabel != null) {
+                clientCountLabel.setText(String.valueOf(count));
             }
-        }
-        return tsoc;
+        });
     }
 
-    public void removeClientFileSharing(String username) {
-        for(int x=0; x < clientFileSharingUsername.size(); x++) {
-            if(clientFileSharingUsername.elementAt(x).equals(username)) {
-                try {
-                    Socket rSock = getClientFileSharingSocket(username);
-                    if(rSock != null) {
-                        rSock.close();
-                    }
-                    clientFileSharingUsername.removeElementAt(x);
-                    clientFileSharingSocket.removeElementAt(x);
-                    appendMessage("File sharing cancelled: " + username);
-                } catch (IOException e) {
-                    appendMessage("[FileSharing]: " + e.getMessage());
-                    appendMessage("File sharing cancelled: " + username);
-                }
-                break;
+    @Override
+    public void serverStateChanged(boolean running) {
+        SwingUtilities.invokeLater(() -> {
+            startButton.setEnabled(!running);
+            stopButton.setEnabled(running);
+            portField.setEnabled(!running);
+            modeBox.setEnabled(!running);
+
+            if (statusLabel != null) {
+                statusLabel.setText(running ? "Online" : "Offline");
+                statusLabel.setForeground(running ? SUCCESS_COLOR : DANGER_COLOR);
             }
-        }
+            if (!running && clientCountLabel != null) {
+                clientCountLabel.setText("0");
+            }
+        });
     }
 
     public static void main(String args[]) {
@@ -0,0 +1,12 @@
+package sendfile.server;
+
+/**
+ * Accept loop started by ChatServer (ServerThread or NioServerThread)
+ */
+public interface ServerLoop extends Runnable {
+
+    /**
+     * Stop accepting and shut the accept loop down
+     */
+    void stop();
+}
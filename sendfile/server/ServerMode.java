@@ -0,0 +1,48 @@
+package sendfile.server;
+
+/**
+ * How the server handles client connections
+ */
+public enum ServerMode {
+
+    /** One platform thread per client (plus its writer) **/
+    THREAD_PER_CLIENT("threads", "Thread per client"),
+
+    /** Selector-based event loops, one per core (NioServerThread) **/
+    NIO("nio", "NIO event loops"),
+
+    /** One virtual thread per client, JDK 21+ **/
+    VIRTUAL_THREADS("virtual", "Virtual threads");
+
+    private final String key;
+    private final String label;
+
+    ServerMode(String key, String label) {
+        this.key = key;
+        this.label = label;
+    }
+
+    /**
+     * Name used on the command line (--mode threads|nio|virtual)
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Look up a command line name, or null if unknown
+     */
+    public static ServerMode forKey(String key) {
+        for (ServerMode mode : values()) {
+            if (mode.key.equalsIgnoreCase(key)) {
+                return mode;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
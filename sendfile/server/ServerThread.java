@@ -1,31 +1,41 @@
 package sendfile.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.Executor;
 
 /**
- * Enhanced server thread that works with your existing MainForm
- * Simply replace your existing ServerThread.java with this file
+ * Accept loop for the blocking modes, started by ChatServer.
+ * Each client runs on the given executor (platform or virtual threads);
+ * see NioServerThread for the event-loop mode
  */
-public class ServerThread implements Runnable {
+public class ServerThread implements ServerLoop {
 
     ServerSocket server;
-    ServerForm main;  // Uses your existing MainForm
-    boolean keepGoing = true;
+    ChatServer main;  // Uses your existing MainForm
+    Executor clientExecutor;
+    volatile boolean keepGoing = true;
 
-    public ServerThread(int port, ServerForm main) {
+    public ServerThread(int port, ChatServer main, Executor clientExecutor) throws IOException {
         this.main = main;
+        this.clientExecutor = clientExecutor;
         main.appendMessage("[Secure Server]: Initializing on port " + port);
 
+        server = new ServerSocket();
         try {
-            server = new ServerSocket(port);
-            main.appendMessage("[Secure Server]: Ready for encrypted connections!");
-            main.appendMessage("[Security]: Supporting both legacy and encrypted clients");
-        }
-        catch (IOException e) {
-            main.appendMessage("[IOException]: " + e.getMessage());
+            // Accepted sockets inherit this; above 64 KB it has to be set before bind
+            if (main.getConfig().getReceiveBufferSize() > 0) {
+                server.setReceiveBufferSize(main.getConfig().getReceiveBufferSize());
+            }
+            server.bind(new InetSocketAddress(port), main.getConfig().getAcceptBacklog());
+        } catch (IOException e) {
+            server.close();
+            throw e;
         }
+        main.appendMessage("[Secure Server]: Ready for encrypted connections!");
+        main.appendMessage("[Security]: Supporting both legacy and encrypted clients");
     }
 
     @Override
@@ -38,8 +48,8 @@ public class ServerThread implements Runnable {
                 String clientInfo = clientSocket.getInetAddress().getHostAddress() + ":" + clientSocket.getPort();
                 main.appendMessage("[New Connection]: " + clientInfo);
 
-                /** Create secure socket thread for each client **/
-                new Thread(new SocketThread(clientSocket, main)).start();
+                /** Run a secure socket thread (plus its writer) for each client **/
+                clientExecutor.execute(new SocketThread(clientSocket, main, clientExecutor));
             }
         } catch (IOException e) {
             if (keepGoing) {
@@ -53,19 +63,16 @@ public class ServerThread implements Runnable {
     /**
      * Stop the server gracefully
      */
+    @Override
     public void stop() {
         try {
             keepGoing = false;
             if (server != null && !server.isClosed()) {
                 server.close();
             }
-            main.appendMessage("[Server]: Stopping secure server...");
-            System.out.println("Secure server stopped!");
-            System.exit(0);
 
         } catch (IOException e) {
             main.appendMessage("[Stop Error]: " + e.getMessage());
-            System.err.println("Error stopping server: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+}
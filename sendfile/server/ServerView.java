@@ -0,0 +1,23 @@
+package sendfile.server;
+
+/**
+ * Optional user interface attached to a ChatServer (ServerForm).
+ * Called from server threads; implementations hand work to their own UI thread.
+ */
+public interface ServerView {
+
+    /**
+     * One timestamped log line
+     */
+    void appendLog(String line);
+
+    /**
+     * Number of joined clients changed
+     */
+    void clientCountChanged(int count);
+
+    /**
+     * Server started or stopped
+     */
+    void serverStateChanged(boolean running);
+}
@@ -0,0 +1,23 @@
+package sendfile.server;
+
+/**
+ * A joined chat user and the connection their messages are routed to
+ */
+public final class Session {
+
+    private final String username;
+    private final ClientConnection connection;
+
+    public Session(String username, ClientConnection connection) {
+        this.username = username;
+        this.connection = connection;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public ClientConnection getConnection() {
+        return connection;
+    }
+}
@@ -0,0 +1,185 @@
+package sendfile.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Username -> session lookup for chat and file sharing connections.
+ *
+ * Lookups are O(1) on ConcurrentHashMap. Broadcasts iterate an immutable
+ * snapshot array that is rebuilt lazily after a join/leave, so a user
+ * leaving mid-broadcast can never shift another user's connection under
+ * the loop (the old parallel-Vector index mismatch).
+ *
+ * In a cluster it also knows the users joined on the other nodes (by node
+ * id, see Cluster). They count as online and are listed, but have no
+ * session here: snapshot() and find() only ever return local users.
+ */
+public class SessionRegistry {
+
+    private static final Session[] EMPTY = new Session[0];
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ClientConnection> fileSharing = new ConcurrentHashMap<>();
+
+    /** Users on other nodes: username -> node id **/
+    private final ConcurrentHashMap<String, String> remote = new ConcurrentHashMap<>();
+
+    /** Bumped after every join/leave; the cached snapshot remembers the version it was built from **/
+    private final AtomicInteger version = new AtomicInteger();
+    private volatile Snapshot snapshot = new Snapshot(EMPTY, 0);
+
+    private static final class Snapshot {
+        final Session[] sessions;
+        final int version;
+
+        Snapshot(Session[] sessions, int version) {
+            this.sessions = sessions;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Register a joined user, replacing any previous session with the same name
+     */
+    public Session register(String username, ClientConnection connection) {
+        Session previous = sessions.put(username, new Session(username, connection));
+        version.incrementAndGet();
+        return previous;
+    }
+
+    /**
+     * Remove a user, but only if the session still belongs to this connection
+     * (a late disconnect must not drop a newer login with the same name)
+     */
+    public boolean unregister(String username, ClientConnection connection) {
+        Session current = sessions.get(username);
+        if (current != null && current.getConnection() == connection && sessions.remove(username, current)) {
+            version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public ClientConnection find(String username) {
+        Session session = sessions.get(username);
+        return session != null ? session.getConnection() : null;
+    }
+
+    public boolean isOnline(String username) {
+        return sessions.containsKey(username) || remote.containsKey(username);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Stable view of all sessions for broadcast iteration
+     */
+    public Session[] snapshot() {
+        int v = version.get();
+        Snapshot current = snapshot;
+        if (current.version != v) {
+            // Read the version first: any change after it bumps it again and forces a rebuild
+            current = new Snapshot(sessions.values().toArray(EMPTY), v);
+            snapshot = current;
+        }
+        return current.sessions;
+    }
+
+    /**
+     * Everyone online, here and on the other nodes
+     */
+    public String[] usernames() {
+        List<String> names = new ArrayList<>();
+        for (Session session : snapshot()) {
+            names.add(session.getUsername());
+        }
+        for (String username : remote.keySet()) {
+            if (!sessions.containsKey(username)) {
+                names.add(username);
+            }
+        }
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * The users joined on this node
+     */
+    public String[] localUsernames() {
+        Session[] all = snapshot();
+        String[] names = new String[all.length];
+        for (int i = 0; i < all.length; i++) {
+            names[i] = all[i].getUsername();
+        }
+        return names;
+    }
+
+    /** Users on other nodes **/
+
+    public void registerRemote(String username, String node) {
+        remote.put(username, node);
+    }
+
+    /**
+     * Remove a remote user, but only if still listed for that node
+     */
+    public boolean unregisterRemote(String username, String node) {
+        return remote.remove(username, node);
+    }
+
+    /**
+     * Node the user is joined on, or null if not on another node
+     */
+    public String nodeOf(String username) {
+        return remote.get(username);
+    }
+
+    /**
+     * Forget every user of a node that went away; returns their names
+     */
+    public List<String> removeNode(String node) {
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, String> entry : remote.entrySet()) {
+            if (entry.getValue().equals(node) && remote.remove(entry.getKey(), node)) {
+                removed.add(entry.getKey());
+            }
+        }
+        return removed;
+    }
+
+    /** File sharing connections **/
+
+    public void registerFileSharing(String username, ClientConnection connection) {
+        fileSharing.put(username, connection);
+    }
+
+    public ClientConnection findFileSharing(String username) {
+        return fileSharing.get(username);
+    }
+
+    /**
+     * Remove and return a user's file sharing connection, or null
+     */
+    public ClientConnection removeFileSharing(String username) {
+        return fileSharing.remove(username);
+    }
+
+    /**
+     * All file sharing connections, e.g. to close them on shutdown
+     */
+    public ClientConnection[] fileSharingConnections() {
+        return fileSharing.values().toArray(new ClientConnection[0]);
+    }
+
+    /**
+     * Remove a user's file sharing entry only if it is still this connection
+     */
+    public boolean removeFileSharing(String username, ClientConnection connection) {
+        return fileSharing.remove(username, connection);
+    }
+}
@@ -0,0 +1,268 @@
+package sendfile.server;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import sendfile.log.Log;
+import sendfile.log.Logger;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.SharedFrame;
+
+/**
+ * Applies the slow-consumer policy to one connection's outbound queue.
+ *
+ * Every send is checked against the high-water marks (queued messages and
+ * queued bytes, see ServerConfig). Past them the connection drops
+ * best-effort frames, oldest first or new ones while demoted, or is
+ * disconnected. Critical frames (direct messages, file handshake) are never
+ * dropped; with no best-effort frame left to make room they fail like a
+ * full queue did before. A connection whose writer has made no progress
+ * for the write-stall timeout is disconnected whatever the policy, since
+ * dropping cannot help a dead link.
+ *
+ * The spill policy drops nothing: past the marks the connection starts
+ * appending to its SpillFile, and every later frame follows it there until
+ * the writer has drained the file, so the order is kept and the heap per
+ * connection stays bounded. A full spill file disconnects the client, so a
+ * CMD_MESSAGE_ENCRYPTED is delivered or the session ends, never skipped.
+ *
+ * An episode is reported when it starts and when the backlog has drained
+ * (after at least MIN_EPISODE_NANOS; a demoted client stays demoted that long).
+ * If presence updates were dropped, the client gets the full CMD_ONLINE
+ * list again once it has caught up.
+ *
+ * Checks run on the sending threads without a lock, so the marks are soft:
+ * concurrent senders can overshoot them by a few frames.
+ */
+final class SlowConsumerGuard {
+
+    private static final Logger LOG = Log.get("server");
+
+    /** An episode lasts at least this long, so a client hovering at the mark is reported once **/
+    private static final long MIN_EPISODE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The guarded connection's queue, as seen by the guard
+     */
+    interface Backlog {
+
+        int queuedFrames();
+
+        long queuedBytes();
+
+        /**
+         * Take the oldest best-effort frame off the queue (the caller
+         * releases it), or null if none is queued
+         */
+        SharedFrame removeOldestBestEffort() throws IOException;
+
+        /**
+         * True while frames go to the spill file instead of the queue
+         */
+        boolean spilling();
+
+        /**
+         * Spilled bytes not written yet
+         */
+        long spilledBytes();
+
+        /**
+         * Append the frame to the spill file, starting to spill if needed;
+         * fails when the file is full
+         */
+        void spill(SharedFrame frame) throws IOException;
+    }
+
+    private final ChatServer main;
+    private final ClientConnection connection;
+    private final Backlog backlog;
+    private final Runnable disconnect;
+    private final SlowConsumerPolicy policy;
+    private final int maxFrames;
+    private final long maxBytes;
+    private final long stallNanos;
+
+    private volatile long lastProgress = System.nanoTime();
+    private volatile boolean lagging;
+    private volatile long episodeStart;
+    private volatile boolean demoted;
+    private volatile boolean disconnected;
+    private volatile boolean presenceStale;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+
+    SlowConsumerGuard(ChatServer main, ClientConnection connection, Backlog backlog, Runnable disconnect) {
+        ServerConfig config = main.getConfig();
+        this.main = main;
+        this.connection = connection;
+        this.backlog = backlog;
+        this.disconnect = disconnect;
+        this.policy = config.getSlowConsumerPolicy();
+        this.maxFrames = config.getOutboundCapacity();
+        this.maxBytes = config.getMaxQueuedBytes();
+        this.stallNanos = TimeUnit.MILLISECONDS.toNanos(config.getWriteStallMillis());
+    }
+
+    /**
+     * Decide whether a frame of the given encoded length may be queued.
+     * False means it was not queued in memory: dropped, or spilled to disk.
+     * Throws if the connection was disconnected or a critical frame finds no room.
+     * With the spill policy the caller serializes this with the writer's drain.
+     */
+    boolean admit(SharedFrame frame, int length) throws IOException {
+        queueing();
+        if (backlog.spilling()) {
+            // Queue behind the bytes already spilled
+            if (isStalled()) {
+                disconnect("no write progress for " + TimeUnit.NANOSECONDS.toMillis(stallNanos) + " ms");
+            }
+            return spill(frame);
+        }
+        if (!isOver(length)) {
+            if (demoted && frame.isBestEffort()) {
+                dropped(frame);
+                return false;
+            }
+            return true;
+        }
+
+        if (!lagging) {
+            episodeStart = System.nanoTime();
+            lagging = true;
+            main.slowConsumerEvents.increment();
+            LOG.warn("[SlowConsumer]: " + describe() + " passed the high-water mark ("
+                    + backlog.queuedFrames() + " messages, " + backlog.queuedBytes() + " bytes queued), "
+                    + policy.toString().toLowerCase());
+        }
+        if (isStalled()) {
+            disconnect("no write progress for " + TimeUnit.NANOSECONDS.toMillis(stallNanos) + " ms");
+        }
+
+        switch (policy) {
+            case DISCONNECT:
+                disconnect("outbound queue over the high-water mark");
+                break;
+            case DEMOTE:
+                demoted = true;
+                if (frame.isBestEffort()) {
+                    dropped(frame);
+                    return false;
+                }
+                break;
+            case SPILL:
+                return spill(frame);
+            default:
+                break;
+        }
+
+        // Make room by dropping the oldest best-effort frames
+        while (isOver(length)) {
+            SharedFrame oldest = backlog.removeOldestBestEffort();
+            if (oldest == null) {
+                break;
+            }
+            dropped(oldest);
+            oldest.release();
+        }
+        if (!isOver(length)) {
+            return true;
+        }
+        if (frame.isBestEffort()) {
+            dropped(frame);
+            return false;
+        }
+        throw new IOException("Outbound queue full: " + connection.getRemoteAddress());
+    }
+
+    /**
+     * Something is about to be queued: if the queue was idle, the stall clock starts now
+     */
+    void queueing() {
+        if (backlog.queuedFrames() == 0 && backlog.spilledBytes() == 0) {
+            lastProgress = System.nanoTime();
+        }
+    }
+
+    /**
+     * The writer made progress; empty when it has written everything queued
+     * (and spilled)
+     */
+    void wrote(boolean empty) {
+        long now = System.nanoTime();
+        lastProgress = now;
+        if (empty && lagging && !disconnected && now - episodeStart >= MIN_EPISODE_NANOS) {
+            recovered();
+        }
+    }
+
+    /**
+     * Pending output that the writer has not touched for the write-stall timeout
+     */
+    boolean isStalled() {
+        return stallNanos > 0 && (backlog.queuedFrames() > 0 || backlog.spilledBytes() > 0)
+                && System.nanoTime() - lastProgress > stallNanos;
+    }
+
+    private boolean isOver(int length) {
+        return backlog.queuedFrames() >= maxFrames || backlog.queuedBytes() + length > maxBytes;
+    }
+
+    private boolean spill(SharedFrame frame) throws IOException {
+        try {
+            backlog.spill(frame);
+        } catch (IOException e) {
+            disconnect("cannot spill: " + e.getMessage());
+        }
+        spilled.incrementAndGet();
+        main.framesSpilled.increment();
+        return false;
+    }
+
+    private void dropped(SharedFrame frame) {
+        dropped.incrementAndGet();
+        main.framesDropped.increment();
+        Message message = frame.getMessage();
+        if (message != null && (message.getCommand() == Command.ONLINE
+                || message.getCommand() == Command.PRESENCE_ADD
+                || message.getCommand() == Command.PRESENCE_REMOVE)) {
+            presenceStale = true;
+        }
+    }
+
+    private void recovered() {
+        lagging = false;
+        demoted = false;
+        long spilledFrames = spilled.getAndSet(0);
+        LOG.warn("[SlowConsumer]: " + describe() + " caught up, " + dropped.getAndSet(0) + " frames dropped"
+                + (spilledFrames > 0 ? ", " + spilledFrames + " spilled to disk" : ""));
+
+        if (presenceStale) {
+            presenceStale = false;
+            try {
+                connection.send(Message.of(Command.ONLINE, (Object) main.registry.usernames()));
+            } catch (IOException e) {
+                LOG.warn("[SlowConsumer]: Cannot resend the online list to " + describe() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void disconnect(String reason) throws IOException {
+        disconnected = true;
+        LOG.warn("[SlowConsumer]: Disconnecting " + describe() + ": " + reason);
+        disconnect.run();
+        throw new IOException("Slow consumer disconnected: " + connection.getRemoteAddress());
+    }
+
+    /**
+     * Username and address for reports (only called when something happens)
+     */
+    private String describe() {
+        for (Session session : main.registry.snapshot()) {
+            if (session.getConnection() == connection) {
+                return session.getUsername() + " (" + connection.getRemoteAddress() + ")";
+            }
+        }
+        return connection.getRemoteAddress();
+    }
+}
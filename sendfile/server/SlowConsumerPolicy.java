@@ -0,0 +1,54 @@
+package sendfile.server;
+
+/**
+ * What a connection does when its outbound queue passes a high-water mark
+ * (ServerConfig: outbound capacity in messages, max queued bytes).
+ * Only best-effort frames (broadcast chat, presence) are ever dropped; see
+ * SlowConsumerGuard. SPILL drops nothing: it moves the backlog to disk.
+ */
+public enum SlowConsumerPolicy {
+
+    /** Drop the oldest queued best-effort frames to make room **/
+    DROP_OLDEST("drop", "Drop oldest broadcasts"),
+
+    /** Close the connection **/
+    DISCONNECT("disconnect", "Disconnect"),
+
+    /** Stop queueing best-effort frames until the backlog has drained **/
+    DEMOTE("demote", "Demote until caught up"),
+
+    /** Queue everything further in a memory-mapped file (SpillFile) until the backlog has drained **/
+    SPILL("spill", "Spill to disk");
+
+    private final String key;
+    private final String label;
+
+    SlowConsumerPolicy(String key, String label) {
+        this.key = key;
+        this.label = label;
+    }
+
+    /**
+     * Name used on the command line (--slow-consumer drop|disconnect|demote|spill)
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Look up a command line name, or null if unknown
+     */
+    public static SlowConsumerPolicy forKey(String key) {
+        for (SlowConsumerPolicy policy : values()) {
+            if (policy.key.equalsIgnoreCase(key)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
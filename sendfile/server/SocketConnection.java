@@ -0,0 +1,542 @@
+package sendfile.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import sendfile.protocol.Message;
+import sendfile.protocol.MessageStream;
+import sendfile.protocol.SharedFrame;
+import sendfile.protocol.WireFormat;
+
+/**
+ * Blocking ClientConnection backed by a plain Socket (used by SocketThread)
+ *
+ * Outbound frames go through a bounded queue drained by this connection's
+ * own writer task, so senders never block on a slow recipient's socket
+ * and frames from one sender are written in the order they were sent.
+ * The writer coalesces queued frames into one socket write per batch.
+ * With the spill policy a lagging client's backlog continues in a SpillFile,
+ * marked by SPILLED in the queue; the writer drains the file at the marker.
+ *
+ * A cluster link (peerLink()) carries a whole node's traffic, so it is not
+ * subject to the slow-consumer policy: nothing on it is dropped, demoted or
+ * spilled, and it has PEER_LINK_SCALE times a client's queue limits; only
+ * when those are full does a send fail.
+ */
+public class SocketConnection implements ClientConnection {
+
+    /** Marks the end of the outbound queue **/
+    private static final SharedFrame CLOSE = SharedFrame.wrap(ByteBuffer.allocate(0));
+
+    /** Marks where the spilled bytes belong in the outbound queue **/
+    private static final SharedFrame SPILLED = SharedFrame.wrap(ByteBuffer.allocate(0));
+
+    /** How many times a client's queue limits a cluster link may hold **/
+    static final int PEER_LINK_SCALE = 16;
+
+    private final Socket socket;
+    private final MessageStream stream;
+    private final BlockingQueue<SharedFrame> outbound;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final long maxQueuedBytes;
+
+    /** Waiting for the queue to be empty (whenDrained()) **/
+    private final Queue<Runnable> drainedTasks = new ConcurrentLinkedQueue<>();
+
+    /** Signalled by the writer after each batch and on close, for a relay waiting in writeRaw() **/
+    private final ReentrantLock writtenLock = new ReentrantLock();
+    private final Condition written = writtenLock.newCondition();
+
+    /** Null on a cluster link **/
+    private final SlowConsumerGuard guard;
+    private final ChatServer main;
+
+    /** Only with the spill policy; also the lock that keeps senders in order with the drain **/
+    private final SpillFile spill;
+
+    /** Writer thread only: small frames are gathered here before one socket write **/
+    private final byte[] batch;
+    private final long flushDelayNanos;
+    private volatile boolean closed = false;
+    private volatile boolean closing = false;
+
+    /**
+     * Blocks until the client's first bytes reveal its wire format
+     */
+    public SocketConnection(Socket socket, ChatServer main) throws IOException {
+        this(socket, MessageStream.accept(socket), main);
+    }
+
+    /**
+     * A connection this server opened itself (cluster links and relays),
+     * in the format the stream was connected with
+     */
+    public SocketConnection(Socket socket, MessageStream stream, ChatServer main) {
+        this(socket, stream, main, false);
+    }
+
+    /**
+     * The link this node dialed to a peer (PeerLink), exempt from the slow-consumer policy
+     */
+    static SocketConnection peerLink(Socket socket, MessageStream stream, ChatServer main) {
+        return new SocketConnection(socket, stream, main, true);
+    }
+
+    private SocketConnection(Socket socket, MessageStream stream, ChatServer main, boolean peerLink) {
+        ServerConfig config = main.getConfig();
+        this.socket = socket;
+        this.main = main;
+        this.spill = config.getSlowConsumerPolicy() == SlowConsumerPolicy.SPILL && !peerLink
+                ? new SpillFile(config.getSpillDirectory(), socket.getInetAddress().getHostAddress() + "-" + socket.getPort(),
+                        config.getMaxSpillBytes())
+                : null;
+        int scale = peerLink ? PEER_LINK_SCALE : 1;
+        // One more slot for the SPILLED marker
+        this.outbound = new LinkedBlockingQueue<>(config.getOutboundCapacity() * scale + (spill != null ? 1 : 0));
+        this.batch = new byte[config.getWriteBatchBytes()];
+        this.flushDelayNanos = config.getFlushDelayNanos();
+        this.maxQueuedBytes = config.getMaxQueuedBytes() * scale;
+        this.stream = stream;
+        if (peerLink) {
+            this.guard = null;
+            return;
+        }
+        this.guard = new SlowConsumerGuard(main, this, new SlowConsumerGuard.Backlog() {
+            @Override
+            public int queuedFrames() {
+                return outbound.size();
+            }
+
+            @Override
+            public long queuedBytes() {
+                return queuedBytes.get();
+            }
+
+            @Override
+            public SharedFrame removeOldestBestEffort() throws IOException {
+                return removeOldest();
+            }
+
+            @Override
+            public boolean spilling() {
+                return spill != null && spill.isActive();
+            }
+
+            @Override
+            public long spilledBytes() {
+                return spill == null ? 0 : spill.pendingBytes();
+            }
+
+            @Override
+            public void spill(SharedFrame frame) throws IOException {
+                spillFrame(frame);
+            }
+        }, this::closeNow);
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    public MessageStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Start the writer that drains the outbound queue
+     */
+    public void startWriter(Executor executor) {
+        executor.execute(this::writeLoop);
+    }
+
+    private void writeLoop() {
+        try {
+            boolean done = false;
+            while (!done) {
+                done = writeBatch(outbound.take());
+                signalWritten();
+                boolean empty = isDrained();
+                if (guard != null) {
+                    guard.wrote(empty);
+                }
+                if (empty) {
+                    runDrainedTasks();
+                }
+                if (closing && outbound.isEmpty()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Client went away; fall through to close
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeNow();
+    }
+
+    /**
+     * Copy the first frame and whatever else is queued (waiting up to the
+     * flush delay for more) into the batch buffer and write it with one
+     * call, instead of one write and usually one TCP segment per frame.
+     * Frames too big to be worth copying, like relayed file chunks, are
+     * written straight from their own buffer. True once CLOSE was reached.
+     */
+    private boolean writeBatch(SharedFrame first) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + flushDelayNanos;
+        int filled = 0;
+        int frames = 0;
+        int writes = 0;
+        boolean done = false;
+
+        SharedFrame frame = first;
+        while (frame != null) {
+            if (frame == CLOSE) {
+                done = true;
+                break;
+            }
+            if (frame == SPILLED) {
+                if (filled > 0) {
+                    stream.writeRaw(batch, 0, filled);
+                    filled = 0;
+                    writes++;
+                }
+                drainSpill();
+                frame = outbound.poll();
+                continue;
+            }
+            try {
+                ByteBuffer bytes = frame.bytes(stream.getFormat());
+                int length = bytes.remaining();
+                queuedBytes.addAndGet(-length);
+                // Whatever is gathered goes first: a frame written on its own must not overtake it
+                boolean direct = length > batch.length / 2;
+                if (filled > 0 && (direct || length > batch.length - filled)) {
+                    stream.writeRaw(batch, 0, filled);
+                    filled = 0;
+                    writes++;
+                }
+                if (direct) {
+                    stream.writeRaw(bytes.array(), bytes.arrayOffset() + bytes.position(), length);
+                    writes++;
+                } else {
+                    bytes.get(batch, filled, length);
+                    filled += length;
+                }
+                frames++;
+            } finally {
+                frame.release();
+            }
+
+            frame = outbound.poll();
+            if (frame == null && filled > 0 && flushDelayNanos > 0) {
+                long wait = deadline - System.nanoTime();
+                if (wait > 0) {
+                    frame = outbound.poll(wait, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        if (filled > 0) {
+            stream.writeRaw(batch, 0, filled);
+            writes++;
+        }
+        main.framesWritten.add(frames);
+        main.socketWrites.add(writes);
+        return done;
+    }
+
+    /**
+     * Write the spilled bytes in order until the spill file is empty; from
+     * then on senders queue in memory again
+     */
+    private void drainSpill() throws IOException {
+        while (true) {
+            ByteBuffer spilled = spill.next();
+            if (spilled == null) {
+                if (spill.finishIfDrained()) {
+                    return;
+                }
+                continue;
+            }
+            // Mapped bytes go out through the batch buffer, one segment piece at a time
+            int count = Math.min(spilled.remaining(), batch.length);
+            spilled.get(batch, 0, count);
+            stream.writeRaw(batch, 0, count);
+            spill.consumed(count);
+            main.socketWrites.increment();
+            guard.wrote(false);
+        }
+    }
+
+    private boolean isDrained() {
+        return outbound.isEmpty() && (spill == null || !spill.isActive());
+    }
+
+    @Override
+    public void whenDrained(Runnable task) {
+        drainedTasks.add(task);
+        // The writer may have found the queue empty just before
+        if ((closed || isDrained()) && drainedTasks.remove(task)) {
+            task.run();
+        }
+    }
+
+    private void runDrainedTasks() {
+        Runnable task;
+        // A task that queues more and waits again runs after that is written
+        while ((closed || isDrained()) && (task = drainedTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Read the next message from the client
+     */
+    public Message read() throws IOException {
+        return stream.read();
+    }
+
+    @Override
+    public void send(Message message) throws IOException {
+        SharedFrame frame = SharedFrame.of(message);
+        try {
+            send(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Override
+    public void send(SharedFrame frame) throws IOException {
+        // Encode on the sender's thread (once per format for shared frames)
+        int length = frame.length(stream.getFormat());
+        if (closed || closing) {
+            throw new IOException("Connection closed: " + getRemoteAddress());
+        }
+        if (spill == null) {
+            queue(frame, length);
+        } else {
+            spill.lock();
+            try {
+                queue(frame, length);
+            } finally {
+                spill.unlock();
+            }
+        }
+    }
+
+    private void queue(SharedFrame frame, int length) throws IOException {
+        if (guard == null) {
+            if (queuedBytes.get() + length > maxQueuedBytes) {
+                throw new IOException("Peer link backlog full: " + getRemoteAddress());
+            }
+        } else if (!guard.admit(frame, length)) {
+            return;
+        }
+        frame.retain();
+        queuedBytes.addAndGet(length);
+        if (!outbound.offer(frame)) {
+            queuedBytes.addAndGet(-length);
+            frame.release();
+            throw new IOException("Outbound queue full: " + getRemoteAddress());
+        }
+    }
+
+    /**
+     * Append a frame to the spill file (holding the spill lock); the first one
+     * of an episode puts the SPILLED marker in the queue for the writer
+     */
+    private void spillFrame(SharedFrame frame) throws IOException {
+        if (!spill.isActive()) {
+            spill.start();
+            if (!outbound.offer(SPILLED)) {
+                spill.finishIfDrained();
+                throw new IOException("Outbound queue full: " + getRemoteAddress());
+            }
+        }
+        spill.append(frame.bytes(stream.getFormat()));
+    }
+
+    /**
+     * Take the oldest best-effort frame off the queue, unless the writer got it first
+     */
+    private SharedFrame removeOldest() throws IOException {
+        for (SharedFrame frame : outbound) {
+            if (frame.isBestEffort() && outbound.remove(frame)) {
+                queuedBytes.addAndGet(-frame.length(stream.getFormat()));
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queue file bytes, waiting for room (in messages and bytes): the
+     * relaying sender is slowed down to this recipient's pace instead of
+     * buffering the whole file. A stalled recipient ends the relay. Spilled
+     * bytes are written first, so file bytes never go to the spill file.
+     */
+    @Override
+    public void writeRaw(SharedFrame chunk) throws IOException {
+        int length = chunk.length(stream.getFormat());
+        chunk.retain();
+        try {
+            while (true) {
+                if (closed || closing) {
+                    chunk.release();
+                    throw new IOException("Connection closed: " + getRemoteAddress());
+                }
+                if (guard != null && guard.isStalled()) {
+                    chunk.release();
+                    closeNow();
+                    throw new IOException("Write stalled, relay aborted: " + getRemoteAddress());
+                }
+                if (mustWait(length)) {
+                    awaitWritten(length);
+                    continue;
+                }
+                if (guard != null) {
+                    guard.queueing();
+                }
+                queuedBytes.addAndGet(length);
+                if (outbound.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+                queuedBytes.addAndGet(-length);
+            }
+        } catch (InterruptedException e) {
+            chunk.release();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while relaying to " + getRemoteAddress());
+        }
+    }
+
+    /**
+     * True while a raw chunk of this length has to wait: the queue holds too
+     * many bytes already, or earlier bytes are still in the spill file
+     */
+    private boolean mustWait(int length) {
+        boolean behind = queuedBytes.get() + length > maxQueuedBytes && !outbound.isEmpty();
+        return behind || (spill != null && spill.isActive());
+    }
+
+    /**
+     * Wait for the writer to finish a batch, or for the connection to close;
+     * at most 100 ms so the caller checks for a stall again
+     */
+    private void awaitWritten(int length) throws InterruptedException {
+        writtenLock.lock();
+        try {
+            // Checked again under the lock: the writer signals under it
+            if (!closed && mustWait(length)) {
+                written.await(100, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            writtenLock.unlock();
+        }
+    }
+
+    private void signalWritten() {
+        writtenLock.lock();
+        try {
+            written.signalAll();
+        } finally {
+            writtenLock.unlock();
+        }
+    }
+
+    /**
+     * Read the file straight into pooled buffers that are queued on the
+     * target as they are; each buffer comes back to the pool once written.
+     * If the sender's stream ends first, the target is closed (it would wait
+     * for the rest forever) and the relay fails instead of completing.
+     */
+    @Override
+    public void relayFile(ClientConnection target, long size, Runnable onComplete) throws IOException {
+        InputStream input = stream.getInputStream();
+        long remaining = size;
+
+        while (remaining > 0) {
+            ByteBuffer buffer = BufferPool.HEAP.acquire();
+            int count = input.read(buffer.array(), buffer.arrayOffset(), (int) Math.min(buffer.capacity(), remaining));
+            if (count <= 0) {
+                BufferPool.HEAP.release(buffer);
+                target.close();
+                throw new IOException("File relay aborted, the sender's stream ended after "
+                        + (size - remaining) + " of " + size + " bytes");
+            }
+            buffer.limit(count);
+            remaining -= count;
+
+            SharedFrame chunk = BufferPool.HEAP.frame(buffer);
+            try {
+                target.writeRaw(chunk);
+            } finally {
+                chunk.release();
+            }
+        }
+        onComplete.run();
+    }
+
+    /**
+     * Close once everything already queued has been written
+     */
+    @Override
+    public void close() {
+        if (closed || closing) {
+            return;
+        }
+        closing = true;
+        // If the queue is full the writer closes once it has drained it
+        outbound.offer(CLOSE);
+    }
+
+    /**
+     * Close immediately, dropping anything still queued
+     */
+    public void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // Release the writer and any relay blocked in writeRaw()
+        SharedFrame dropped;
+        while ((dropped = outbound.poll()) != null) {
+            if (dropped != CLOSE && dropped != SPILLED) {
+                dropped.release();
+            }
+        }
+        if (spill != null) {
+            spill.close();
+        }
+        outbound.offer(CLOSE);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        // Whoever waits for the drain finds the connection closed
+        signalWritten();
+        runDrainedTasks();
+    }
+
+    @Override
+    public WireFormat getFormat() {
+        return stream.getFormat();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+    }
+}
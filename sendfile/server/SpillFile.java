@@ -0,0 +1,223 @@
+package sendfile.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only, memory-mapped file holding one connection's outbound bytes
+ * while it is spilling (SlowConsumerPolicy.SPILL).
+ *
+ * The bytes are already encoded in the connection's wire format, so the
+ * writer streams them to the socket as they are, in the order they were
+ * appended. The file is mapped SEGMENT_SIZE bytes at a time as it grows,
+ * and a segment the writer has finished is let go, so the heap holds no
+ * spilled data and only the unread tail stays mapped. Once the writer has
+ * caught up the file is reused from the start; it is deleted on close().
+ *
+ * Appends come from the connection's senders, reads from its writer.
+ * Every method takes a ReentrantLock, which the connection also holds
+ * around a whole send (lock()/unlock()) to keep senders in order with the
+ * drain. Creating, mapping and extending the file happen under it, so it
+ * is not a monitor: a virtual thread waiting for it, or doing that I/O
+ * while holding it, does not pin its carrier.
+ */
+final class SpillFile {
+
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private final File directory;
+    private final String name;
+    private final long maxBytes;
+
+    private File file;
+    private FileChannel channel;
+
+    /** Mapped segments by index, null where not mapped (yet or any more) **/
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private long writePosition;
+    private long readPosition;
+    private boolean active;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    SpillFile(File directory, String name, long maxBytes) {
+        this.directory = directory;
+        this.name = name;
+        this.maxBytes = maxBytes;
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * True from start() until the writer has caught up (finishIfDrained())
+     */
+    boolean isActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Spilled bytes the writer has not taken yet
+     */
+    long pendingBytes() {
+        lock.lock();
+        try {
+            return writePosition - readPosition;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start spilling; the file is created on first use
+     */
+    void start() throws IOException {
+        lock.lock();
+        try {
+            if (channel == null) {
+                directory.mkdirs();
+                file = File.createTempFile("spill-" + name.replaceAll("[^A-Za-z0-9.-]", "_") + "-", ".bin", directory);
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            active = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Append the remaining bytes of the buffer (its position is left alone);
+     * fails if that would grow the file past its maximum
+     */
+    void append(ByteBuffer bytes) throws IOException {
+        lock.lock();
+        try {
+            if (channel == null) {
+                throw new IOException("Spill file closed");
+            }
+            if (writePosition + bytes.remaining() > maxBytes) {
+                throw new IOException("Spill file full (" + maxBytes + " bytes)");
+            }
+            ByteBuffer source = bytes.duplicate();
+            while (source.hasRemaining()) {
+                int offset = (int) (writePosition % SEGMENT_SIZE);
+                int count = Math.min(source.remaining(), SEGMENT_SIZE - offset);
+                ByteBuffer target = segment((int) (writePosition / SEGMENT_SIZE)).duplicate();
+                target.position(offset);
+                ByteBuffer part = source.duplicate();
+                part.limit(part.position() + count);
+                target.put(part);
+                source.position(source.position() + count);
+                writePosition += count;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A view of the next unread bytes (up to the end of their segment), or
+     * null when the writer has caught up. Call consumed() with what was written.
+     */
+    ByteBuffer next() throws IOException {
+        lock.lock();
+        try {
+            if (readPosition == writePosition) {
+                return null;
+            }
+            int index = (int) (readPosition / SEGMENT_SIZE);
+            int offset = (int) (readPosition % SEGMENT_SIZE);
+            long end = Math.min(writePosition, (long) (index + 1) * SEGMENT_SIZE);
+            ByteBuffer view = segment(index).duplicate();
+            view.limit(offset + (int) (end - readPosition));
+            view.position(offset);
+            return view;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void consumed(int count) {
+        lock.lock();
+        try {
+            readPosition += count;
+            // Let go of the segments the writer is done with
+            int current = (int) (readPosition / SEGMENT_SIZE);
+            for (int i = 0; i < current && i < segments.size(); i++) {
+                segments.set(i, null);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop spilling if everything appended has been read; the next episode
+     * starts again at the beginning of the file
+     */
+    boolean finishIfDrained() {
+        lock.lock();
+        try {
+            if (readPosition < writePosition) {
+                return false;
+            }
+            active = false;
+            readPosition = writePosition = 0;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drop whatever is still spilled and delete the file
+     */
+    void close() {
+        lock.lock();
+        try {
+            active = false;
+            readPosition = writePosition = 0;
+            segments.clear();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                channel = null;
+                // May fail while a mapping is still alive (Windows); the file is in the spill directory then
+                file.delete();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private MappedByteBuffer segment(int index) throws IOException {
+        while (segments.size() <= index) {
+            segments.add(null);
+        }
+        MappedByteBuffer segment = segments.get(index);
+        if (segment == null) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, (long) index * SEGMENT_SIZE, SEGMENT_SIZE);
+            segments.set(index, segment);
+        }
+        return segment;
+    }
+}
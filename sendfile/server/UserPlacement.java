@@ -0,0 +1,45 @@
+package sendfile.server;
+
+/**
+ * Which node of a cluster a user joins on (ServerConfig, --placement).
+ */
+public enum UserPlacement {
+
+    /** Whichever node the client connected to; the mesh forwards the rest **/
+    ANY("any", "Any node"),
+
+    /** The user's node on a consistent-hash ring (HashRing); CMD_JOIN elsewhere is redirected there **/
+    HASH("hash", "Consistent hash");
+
+    private final String key;
+    private final String label;
+
+    UserPlacement(String key, String label) {
+        this.key = key;
+        this.label = label;
+    }
+
+    /**
+     * Name used on the command line (--placement any|hash)
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Look up a command line name, or null if unknown
+     */
+    public static UserPlacement forKey(String key) {
+        for (UserPlacement placement : values()) {
+            if (placement.key.equalsIgnoreCase(key)) {
+                return placement;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
@@ -0,0 +1,108 @@
+package sendfile.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class FileChunksTest {
+
+    private final CryptoManager crypto;
+
+    public FileChunksTest() throws Exception {
+        crypto = new CryptoManager("secret", CryptoManager.KeySize.BITS_128);
+    }
+
+    @Test
+    public void resumeStartsAtTheFirstChunkNotComplete() {
+        assertEquals(0, FileChunks.firstChunk(0, 10000, 4096));
+        assertEquals(0, FileChunks.firstChunk(4095, 10000, 4096));
+        assertEquals(1, FileChunks.firstChunk(4096, 10000, 4096));
+        assertEquals(2, FileChunks.firstChunk(9000, 10000, 4096));
+        assertEquals(3, FileChunks.firstChunk(20000, 10000, 4096));
+        assertEquals(0, FileChunks.firstChunk(-1, 10000, 4096));
+    }
+
+    @Test
+    public void resumedTransferCarriesOnlyTheMissingChunks() throws Exception {
+        byte[] file = bytes(10000);
+        FileChunks.Header header = new FileChunks.Header(file.length, 42, 4096, 1);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(FileChunks.header(crypto, header));
+        for (int i = header.firstChunk; i < header.chunkCount(); i++) {
+            byte[] plain = Arrays.copyOfRange(file, i * header.chunkSize, i * header.chunkSize + header.chunkLength(i));
+            stream.write(FileChunks.encode(crypto, header, i, plain, plain.length));
+        }
+        assertEquals(FileChunks.streamLength(crypto, header), stream.size());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+        FileChunks.Header received = FileChunks.readHeader(crypto, in);
+        assertEquals(1, received.firstChunk);
+        assertEquals(42, received.version);
+        assertArrayEquals(Arrays.copyOfRange(file, 4096, 8192), FileChunks.decode(crypto, in, received, 1));
+        assertArrayEquals(Arrays.copyOfRange(file, 8192, 10000), FileChunks.decode(crypto, in, received, 2));
+    }
+
+    @Test
+    public void tamperedChunkIsRejected() throws Exception {
+        FileChunks.Header header = new FileChunks.Header(4096, 42, 4096, 0);
+        byte[] encoded = FileChunks.encode(crypto, header, 0, bytes(4096), 4096);
+        encoded[20] ^= 1;
+
+        assertRejected(header, 0, encoded, "failed authentication");
+    }
+
+    @Test
+    public void chunkOfAnotherVersionIsRejected() throws Exception {
+        FileChunks.Header header = new FileChunks.Header(4096, 42, 4096, 0);
+        byte[] encoded = FileChunks.encode(crypto, header, 0, bytes(4096), 4096);
+
+        assertRejected(new FileChunks.Header(4096, 43, 4096, 0), 0, encoded, "failed authentication");
+    }
+
+    @Test
+    public void chunkOutOfOrderIsRejected() throws Exception {
+        FileChunks.Header header = new FileChunks.Header(8192, 42, 4096, 0);
+        byte[] encoded = FileChunks.encode(crypto, header, 1, bytes(4096), 4096);
+
+        assertRejected(header, 0, encoded, "Expected chunk 0");
+    }
+
+    @Test
+    public void tamperedHeaderIsRejected() throws Exception {
+        byte[] header = FileChunks.header(crypto, new FileChunks.Header(10000, 42, 4096, 0));
+        // Claim the receiver already has the first chunk
+        header[23] = 1;
+        try {
+            FileChunks.readHeader(crypto, new DataInputStream(new ByteArrayInputStream(header)));
+            fail("tampered header accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("failed authentication"));
+        }
+    }
+
+    private void assertRejected(FileChunks.Header header, int index, byte[] encoded, String reason) {
+        try {
+            FileChunks.decode(crypto, new DataInputStream(new ByteArrayInputStream(encoded)), header, index);
+            fail("chunk accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(reason));
+        }
+    }
+
+    private static byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i % 251);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,110 @@
+package sendfile.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransferCheckpointTest {
+
+    private File directory;
+    private File target;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("checkpoint").toFile();
+        target = new File(directory, "report.pdf");
+    }
+
+    @After
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void interruptedTransferResumesAfterTheVerifiedChunks() throws Exception {
+        FileChunks.Header header = new FileChunks.Header(10, 42, 4, 0);
+        TransferCheckpoint first = TransferCheckpoint.open(target, "alice");
+        first.begin(header);
+        first.write(header, 0, new byte[] {0, 1, 2, 3});
+        first.write(header, 1, new byte[] {4, 5, 6, 7});
+        first.close();
+
+        TransferCheckpoint again = TransferCheckpoint.open(target, "alice");
+        assertEquals(8, again.getOffset());
+        assertEquals(42, again.getVersion());
+
+        FileChunks.Header rest = new FileChunks.Header(10, 42, 4, FileChunks.firstChunk(again.getOffset(), 10, 4));
+        assertEquals(2, rest.firstChunk);
+        again.begin(rest);
+        again.write(rest, 2, new byte[] {8, 9});
+        File received = again.complete();
+
+        assertArrayEquals(new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9}, Files.readAllBytes(received.toPath()));
+        assertFalse(new File(target.getPath() + ".part.ckpt").exists());
+    }
+
+    @Test
+    public void partFromAnotherSenderIsNotResumed() throws Exception {
+        FileChunks.Header header = new FileChunks.Header(10, 42, 4, 0);
+        TransferCheckpoint first = TransferCheckpoint.open(target, "alice");
+        first.begin(header);
+        first.write(header, 0, new byte[] {0, 1, 2, 3});
+        first.close();
+
+        TransferCheckpoint other = TransferCheckpoint.open(target, "bob");
+        assertEquals(0, other.getOffset());
+        assertEquals(0, other.getVersion());
+    }
+
+    @Test
+    public void changedFileStartsOver() throws Exception {
+        FileChunks.Header header = new FileChunks.Header(10, 42, 4, 0);
+        TransferCheckpoint first = TransferCheckpoint.open(target, "alice");
+        first.begin(header);
+        first.write(header, 0, new byte[] {0, 1, 2, 3});
+        first.close();
+
+        // The sender's file changed, so it sends everything again
+        FileChunks.Header changed = new FileChunks.Header(6, 43, 4, 0);
+        TransferCheckpoint again = TransferCheckpoint.open(target, "alice");
+        again.begin(changed);
+        assertEquals(0, again.getOffset());
+        again.write(changed, 0, new byte[] {9, 9, 9, 9});
+        again.write(changed, 1, new byte[] {9, 9});
+        File received = again.complete();
+
+        assertArrayEquals(new byte[] {9, 9, 9, 9, 9, 9}, Files.readAllBytes(received.toPath()));
+    }
+
+    @Test
+    public void senderSkippingMissingDataIsRejected() throws Exception {
+        FileChunks.Header header = new FileChunks.Header(10, 42, 4, 0);
+        TransferCheckpoint first = TransferCheckpoint.open(target, "alice");
+        first.begin(header);
+        first.write(header, 0, new byte[] {0, 1, 2, 3});
+        first.close();
+
+        TransferCheckpoint again = TransferCheckpoint.open(target, "alice");
+        try {
+            again.begin(new FileChunks.Header(10, 42, 4, 2));
+            fail("skipped chunk accepted");
+        } catch (IOException expected) {
+        } finally {
+            again.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package sendfile.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class BinaryCodecTest {
+
+    @Test
+    public void roundTripsMessage() throws IOException {
+        Message message = Message.of(Command.FILE_INCOMING, "report.pdf", -1L, "alice");
+        ByteBuffer frame = BinaryCodec.encode(message);
+
+        Message decoded = BinaryCodec.decode(frame);
+        assertEquals(message.toString(), decoded.toString());
+        assertEquals(-1L, decoded.getLong(1));
+        assertEquals(0, frame.remaining());
+    }
+
+    @Test
+    public void incompleteLengthIsNotAFrameYet() throws IOException {
+        ByteBuffer partial = ByteBuffer.wrap(new byte[] {0x01, (byte) 0x80, (byte) 0x80});
+
+        assertNull(BinaryCodec.decode(partial));
+        assertEquals(0, partial.position());
+    }
+
+    @Test
+    public void incompleteBodyIsNotAFrameYet() throws IOException {
+        ByteBuffer frame = BinaryCodec.encode(Message.of(Command.JOIN, "alice"));
+        frame.limit(frame.limit() - 1);
+
+        assertNull(BinaryCodec.decode(frame));
+        assertEquals(0, frame.position());
+    }
+
+    @Test(expected = FrameTooLargeException.class)
+    public void overlongLengthVarintIsRejected() throws IOException {
+        byte[] frame = new byte[12];
+        frame[0] = 0x01;
+        for (int i = 1; i < frame.length; i++) {
+            frame[i] = (byte) 0x80;
+        }
+        BinaryCodec.decode(ByteBuffer.wrap(frame));
+    }
+
+    @Test(expected = FrameTooLargeException.class)
+    public void negativeLengthIsRejected() throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(16);
+        frame.put((byte) 0x01);
+        BinaryCodec.writeVarint(frame, Long.MIN_VALUE);
+        frame.flip();
+        BinaryCodec.decode(frame);
+    }
+
+    @Test(expected = FrameTooLargeException.class)
+    public void lengthPastMaxFrameIsRejected() throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(16);
+        frame.put((byte) 0x01);
+        BinaryCodec.writeVarint(frame, BinaryCodec.MAX_FRAME + 1L);
+        frame.flip();
+        BinaryCodec.decode(frame);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void overlongVarintIsMalformed() throws IOException {
+        byte[] varint = new byte[11];
+        for (int i = 0; i < 10; i++) {
+            varint[i] = (byte) 0x80;
+        }
+        BinaryCodec.readVarint(ByteBuffer.wrap(varint));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void unknownOpcodeSkipsFrame() throws IOException {
+        BinaryCodec.decode(ByteBuffer.wrap(new byte[] {0x7F, 0x00}));
+    }
+
+    @Test(expected = FrameTooLargeException.class)
+    public void streamRejectsOverlongLengthVarint() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(BinaryCodec.PREAMBLE);
+        bytes.write(0x01);
+        for (int i = 0; i < 10; i++) {
+            bytes.write(0x80);
+        }
+        bytes.write(0x00);
+        accept(bytes.toByteArray()).read();
+    }
+
+    @Test(expected = FrameTooLargeException.class)
+    public void streamRejectsNegativeLength() throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(BinaryCodec.PREAMBLE.length + 16);
+        frame.put(BinaryCodec.PREAMBLE);
+        frame.put((byte) 0x01);
+        BinaryCodec.writeVarint(frame, -2L);
+        accept(Arrays.copyOf(frame.array(), frame.position())).read();
+    }
+
+    /**
+     * A server-side MessageStream reading the given bytes
+     */
+    private static MessageStream accept(byte[] received) throws IOException {
+        final InputStream in = new ByteArrayInputStream(received);
+        final OutputStream out = new ByteArrayOutputStream();
+        return MessageStream.accept(new Socket() {
+            @Override
+            public InputStream getInputStream() {
+                return in;
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                return out;
+            }
+        });
+    }
+}
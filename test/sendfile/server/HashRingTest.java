@@ -0,0 +1,62 @@
+package sendfile.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class HashRingTest {
+
+    private static final int USERS = 10000;
+
+    @Test
+    public void nodesWithTheSameMembersAgree() {
+        HashRing ring = new HashRing(Arrays.asList("node-a", "node-b", "node-c"));
+        HashRing other = new HashRing(Arrays.asList("node-c", "node-a", "node-b"));
+        for (int i = 0; i < USERS; i++) {
+            assertEquals(ring.nodeFor("user" + i), other.nodeFor("user" + i));
+        }
+    }
+
+    @Test
+    public void everyNodeGetsAFairShare() {
+        HashRing ring = new HashRing(Arrays.asList("node-a", "node-b", "node-c"));
+        Map<String, Integer> shares = new HashMap<>();
+        for (int i = 0; i < USERS; i++) {
+            shares.merge(ring.nodeFor("user" + i), 1, Integer::sum);
+        }
+        assertEquals(3, shares.size());
+        for (int share : shares.values()) {
+            assertTrue("share " + share, share > USERS / 3 * 0.8 && share < USERS / 3 * 1.2);
+        }
+    }
+
+    /**
+     * A fourth node takes about a quarter of the users, all of them from the
+     * other nodes, and nobody else moves
+     */
+    @Test
+    public void addingANodeMovesAboutOneInN() {
+        HashRing before = new HashRing(Arrays.asList("node-a", "node-b", "node-c"));
+        HashRing after = new HashRing(Arrays.asList("node-a", "node-b", "node-c", "node-d"));
+        int moved = 0;
+        for (int i = 0; i < USERS; i++) {
+            String node = after.nodeFor("user" + i);
+            if (!node.equals(before.nodeFor("user" + i))) {
+                assertEquals("node-d", node);
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved > USERS / 4 * 0.8 && moved < USERS / 4 * 1.2);
+    }
+
+    @Test
+    public void emptyRingPlacesNobody() {
+        assertNull(new HashRing(Collections.<String>emptyList()).nodeFor("user1"));
+    }
+}
@@ -0,0 +1,79 @@
+package sendfile.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import sendfile.protocol.BinaryCodec;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+
+public class HistoryRingTest {
+
+    @Test
+    public void oldestMessagesGoWhenTheSlotsAreFull() throws Exception {
+        HistoryRing ring = new HistoryRing(3, 64 * 1024);
+        for (int i = 0; i < 5; i++) {
+            ring.add(message("m" + i));
+        }
+
+        assertEquals(3, ring.size());
+        assertEquals(Arrays.asList("m2", "m3", "m4"), texts(ring.before(Long.MAX_VALUE)));
+    }
+
+    /**
+     * Room for three and a half frames: every add past the third wraps or
+     * overwrites the oldest, and what is left reads back whole and in order
+     */
+    @Test
+    public void oldestMessagesGoWhenTheBufferWraps() throws Exception {
+        int length = BinaryCodec.encodedLength(message("m0"));
+        HistoryRing ring = new HistoryRing(100, length * 7 / 2);
+        for (int i = 0; i < 10; i++) {
+            ring.add(message("m" + i));
+        }
+
+        List<String> kept = texts(ring.before(Long.MAX_VALUE));
+        assertEquals(ring.size(), kept.size());
+        assertEquals(Arrays.asList("m7", "m8", "m9"), kept);
+    }
+
+    @Test
+    public void messageLargerThanTheRingIsNotKept() throws Exception {
+        HistoryRing ring = new HistoryRing(10, 256);
+        ring.add(message("small"));
+        char[] large = new char[512];
+        Arrays.fill(large, 'x');
+
+        assertFalse(ring.add(message(new String(large))));
+        assertEquals(Arrays.asList("small"), texts(ring.before(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void beforeLeavesOutLaterMessages() throws Exception {
+        HistoryRing ring = new HistoryRing(10, 4096);
+        ring.add(message("earlier"));
+        long cut = System.currentTimeMillis() + 1;
+        while (System.currentTimeMillis() < cut) {
+            Thread.sleep(1);
+        }
+        ring.add(message("later"));
+
+        assertEquals(Arrays.asList("earlier"), texts(ring.before(cut)));
+    }
+
+    private static Message message(String text) {
+        return Message.of(Command.MESSAGE, "bob", text);
+    }
+
+    private static List<String> texts(List<Message> messages) {
+        List<String> texts = new ArrayList<>();
+        for (Message message : messages) {
+            texts.add(message.getString(1));
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,160 @@
+package sendfile.server;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.MessageStream;
+import sendfile.protocol.SharedFrame;
+import sendfile.protocol.WireFormat;
+
+public class MailboxReplayTest {
+
+    private static final int CAPACITY = 16;
+
+    private File directory;
+    private ChatServer server;
+
+    @Before
+    public void openMailbox() throws IOException {
+        directory = Files.createTempDirectory("mailbox").toFile();
+        server = new ChatServer(ServerConfig.fromArgs(new String[] {
+                "--mailbox-dir", directory.getPath(), "--outbound-capacity", String.valueOf(CAPACITY)}));
+        server.mailbox.open();
+    }
+
+    @After
+    public void closeMailbox() {
+        server.mailbox.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * A backlog many times the outbound queue goes out in steps the queue
+     * can hold, all of it and in order
+     */
+    @Test(timeout = 20000)
+    public void replayLargerThanTheOutboundQueueIsDeliveredInOrder() throws Exception {
+        int count = CAPACITY * 20;
+        keep("amy", count);
+
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+             Socket accepted = listener.accept()) {
+            SocketConnection connection = new SocketConnection(accepted,
+                    MessageStream.connect(accepted, WireFormat.TEXT), server);
+            connection.startWriter(ClientExecutors.platformThreads());
+            server.mailbox.joined("amy", waiting -> new MailboxReplay(server, connection, "amy", waiting).run());
+
+            MessageStream received = MessageStream.connect(client, WireFormat.TEXT);
+            for (int i = 0; i < count; i++) {
+                assertEquals("message " + i, received.read().getString(1));
+            }
+            connection.closeNow();
+        }
+    }
+
+    /**
+     * What the connection cannot take is kept for the user's next join
+     */
+    @Test(timeout = 20000)
+    public void unsentMessagesAreKeptForTheNextJoin() throws Exception {
+        keep("amy", 10);
+        FailingConnection connection = new FailingConnection(4);
+        BlockingQueue<List<Message>> delivered = new ArrayBlockingQueue<>(1);
+        server.mailbox.joined("amy", waiting -> {
+            new MailboxReplay(server, connection, "amy", waiting).run();
+            delivered.add(waiting);
+        });
+        assertEquals(10, delivered.poll(10, TimeUnit.SECONDS).size());
+        assertEquals(4, connection.sent);
+
+        server.mailbox.left("amy");
+        server.mailbox.joined("amy", delivered::add);
+        List<Message> rest = delivered.poll(10, TimeUnit.SECONDS);
+        assertEquals(6, rest.size());
+        for (int i = 0; i < rest.size(); i++) {
+            assertEquals("message " + (i + 4), rest.get(i).getString(1));
+        }
+    }
+
+    private void keep(String username, int count) {
+        server.mailbox.left(username);
+        for (int i = 0; i < count; i++) {
+            server.mailbox.store(username, Message.of(Command.MESSAGE, "bob", "message " + i));
+        }
+    }
+
+    /**
+     * Takes a number of messages, then fails like a full queue
+     */
+    private static final class FailingConnection implements ClientConnection {
+        final int capacity;
+        int sent;
+
+        FailingConnection(int capacity) {
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void send(Message message) throws IOException {
+            send(SharedFrame.of(message));
+        }
+
+        @Override
+        public void send(SharedFrame frame) throws IOException {
+            if (sent == capacity) {
+                throw new IOException("Outbound queue full");
+            }
+            sent++;
+        }
+
+        @Override
+        public void writeRaw(SharedFrame chunk) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void relayFile(ClientConnection target, long size, Runnable onComplete) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void whenDrained(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public WireFormat getFormat() {
+            return WireFormat.TEXT;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return "test";
+        }
+    }
+}
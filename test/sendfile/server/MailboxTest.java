@@ -0,0 +1,159 @@
+package sendfile.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import sendfile.protocol.BinaryCodec;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+
+public class MailboxTest {
+
+    private File directory;
+    private Mailbox mailbox;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("mailbox").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        if (mailbox != null) {
+            mailbox.close();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test(timeout = 10000)
+    public void keptMessagesArriveInLogOrder() throws Exception {
+        open();
+        mailbox.left("amy");
+        mailbox.store("amy", message("bob", "direct 1"));
+        mailbox.storeBroadcast("bob", message("bob", "broadcast"));
+        mailbox.storeBroadcast("amy", message("amy", "her own"));
+        mailbox.store("amy", message("carol", "direct 2"));
+
+        assertEquals(Arrays.asList("direct 1", "broadcast", "direct 2"), texts(join("amy")));
+    }
+
+    @Test(timeout = 10000)
+    public void joinedHidesDeliveredMessagesAfterRestart() throws Exception {
+        open();
+        mailbox.left("amy");
+        mailbox.left("carol");
+        mailbox.store("amy", message("bob", "for amy"));
+        mailbox.store("carol", message("bob", "for carol"));
+        assertEquals(Arrays.asList("for amy"), texts(join("amy")));
+
+        reopen();
+        assertEquals(Arrays.asList("for carol"), texts(join("carol")));
+        assertNull(joinAndClose("amy"));
+    }
+
+    @Test(timeout = 20000)
+    public void compactionDeletesSegmentsThatAreDelivered() throws Exception {
+        open();
+        mailbox.left("amy");
+        char[] large = new char[1536 * 1024];
+        Arrays.fill(large, 'x');
+        // Two to a 4 MB segment: three segments, the JOINED record goes in the last
+        for (int i = 0; i < 5; i++) {
+            mailbox.store("amy", message("bob", i + new String(large)));
+        }
+        assertEquals(5, join("amy").size());
+        mailbox.compactNow();
+        mailbox.close();
+        assertFalse(new File(directory, "mailbox-00000001.log").exists());
+        assertFalse(new File(directory, "mailbox-00000002.log").exists());
+        assertTrue(new File(directory, "mailbox-00000003.log").exists());
+
+        open();
+        assertNull(joinAndClose("amy"));
+    }
+
+    @Test(timeout = 10000)
+    public void messagesOlderThanTheTtlAreNotDelivered() throws Exception {
+        long now = System.currentTimeMillis();
+        try (RandomAccessFile log = new RandomAccessFile(new File(directory, "mailbox-00000001.log"), "rw")) {
+            ByteBuffer records = ByteBuffer.allocate(4096);
+            record(records, 1, now - TimeUnit.HOURS.toMillis(2), "amy", message("bob", "expired"));
+            record(records, 2, now, "amy", message("bob", "recent"));
+            log.write(records.array(), 0, records.position());
+        }
+        open("--mailbox-ttl-hours", "1");
+        assertEquals(Arrays.asList("recent"), texts(join("amy")));
+    }
+
+    private void open(String... options) throws IOException {
+        List<String> args = new ArrayList<>(Arrays.asList("--mailbox-dir", directory.getPath()));
+        args.addAll(Arrays.asList(options));
+        mailbox = new Mailbox(new ChatServer(ServerConfig.fromArgs(args.toArray(new String[0]))));
+        mailbox.open();
+    }
+
+    private void reopen() throws IOException {
+        mailbox.close();
+        open();
+    }
+
+    private List<Message> join(String username) throws InterruptedException {
+        LinkedBlockingQueue<List<Message>> delivered = new LinkedBlockingQueue<>();
+        mailbox.joined(username, delivered::add);
+        return delivered.take();
+    }
+
+    /**
+     * What a join hands over once the writer is done, null if nothing
+     */
+    private List<Message> joinAndClose(String username) {
+        LinkedBlockingQueue<List<Message>> delivered = new LinkedBlockingQueue<>();
+        mailbox.joined(username, delivered::add);
+        mailbox.close();
+        return delivered.poll();
+    }
+
+    /**
+     * [int length][byte type][long seq][long time][short n][n bytes user][frame], type MESSAGE
+     */
+    private static void record(ByteBuffer records, long seq, long time, String user, Message message) {
+        byte[] name = user.getBytes(StandardCharsets.UTF_8);
+        records.putInt(1 + 8 + 8 + 2 + name.length + BinaryCodec.encodedLength(message));
+        records.put((byte) 1).putLong(seq).putLong(time).putShort((short) name.length).put(name);
+        BinaryCodec.encode(message, records);
+    }
+
+    private static Message message(String from, String text) {
+        return Message.of(Command.MESSAGE, from, text);
+    }
+
+    private static List<String> texts(List<Message> messages) {
+        List<String> texts = new ArrayList<>();
+        for (Message message : messages) {
+            texts.add(message.getString(1));
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,61 @@
+package sendfile.server;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+import sendfile.protocol.Command;
+import sendfile.protocol.Message;
+import sendfile.protocol.MessageStream;
+import sendfile.protocol.SharedFrame;
+import sendfile.protocol.WireFormat;
+
+public class SocketConnectionTest {
+
+    /**
+     * A frame large enough to be written on its own must not overtake the
+     * smaller frames already gathered in the batch buffer
+     */
+    @Test(timeout = 10000)
+    public void largeFrameIsWrittenAfterBatchedFrames() throws Exception {
+        ServerConfig config = new ServerConfig();
+        ChatServer server = new ChatServer(config);
+
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+             Socket accepted = listener.accept()) {
+            SocketConnection connection = new SocketConnection(accepted,
+                    MessageStream.connect(accepted, WireFormat.TEXT), server);
+
+            Message header = Message.of(Command.FILE_INCOMING, "alice", 40 * 1024L, "report.pdf");
+            byte[] chunk = new byte[40 * 1024];
+            Arrays.fill(chunk, (byte) 0x5A);
+
+            // Both are queued before the writer starts, so they land in one batch
+            connection.send(header);
+            SharedFrame raw = SharedFrame.wrap(ByteBuffer.wrap(chunk));
+            try {
+                connection.writeRaw(raw);
+            } finally {
+                raw.release();
+            }
+            connection.startWriter(ClientExecutors.platformThreads());
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            ByteBuffer encoded = MessageStream.encode(header, WireFormat.TEXT);
+            expected.write(encoded.array(), encoded.arrayOffset(), encoded.remaining());
+            expected.write(chunk);
+
+            byte[] received = new byte[expected.size()];
+            new DataInputStream(client.getInputStream()).readFully(received);
+            assertArrayEquals(expected.toByteArray(), received);
+            connection.closeNow();
+        }
+    }
+}
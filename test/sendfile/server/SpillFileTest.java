@@ -0,0 +1,133 @@
+package sendfile.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpillFileTest {
+
+    private static final int MB = 1024 * 1024;
+
+    private File directory;
+    private SpillFile spill;
+
+    @Before
+    public void createSpill() throws IOException {
+        directory = Files.createTempDirectory("spill").toFile();
+        spill = new SpillFile(directory, "amy", 64 * MB);
+    }
+
+    @After
+    public void deleteSpill() {
+        spill.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Two 3 MB appends: the second runs over the first 4 MB segment, and a
+     * read stops at the segment's end
+     */
+    @Test
+    public void readsAcrossASegmentBoundary() throws Exception {
+        byte[] first = bytes(3 * MB, 0);
+        byte[] second = bytes(3 * MB, 7);
+        spill.start();
+        spill.append(ByteBuffer.wrap(first));
+        spill.append(ByteBuffer.wrap(second));
+        assertEquals(6 * MB, spill.pendingBytes());
+
+        ByteBuffer view = spill.next();
+        assertEquals(4 * MB, view.remaining());
+
+        byte[] expected = Arrays.copyOf(first, 6 * MB);
+        System.arraycopy(second, 0, expected, 3 * MB, 3 * MB);
+        assertArrayEquals(expected, drain());
+        assertTrue(spill.finishIfDrained());
+        assertFalse(spill.isActive());
+    }
+
+    @Test
+    public void isReusedFromTheStartAfterADrain() throws Exception {
+        spill.start();
+        spill.append(ByteBuffer.wrap(bytes(5 * MB, 0)));
+        assertFalse(spill.finishIfDrained());
+        drain();
+        assertTrue(spill.finishIfDrained());
+
+        byte[] again = bytes(MB, 3);
+        spill.start();
+        spill.append(ByteBuffer.wrap(again));
+        assertTrue(spill.isActive());
+        assertArrayEquals(again, drain());
+        assertTrue(spill.finishIfDrained());
+        assertEquals(1, directory.list().length);
+    }
+
+    @Test
+    public void appendPastTheMaximumFails() throws Exception {
+        spill.close();
+        spill = new SpillFile(directory, "amy", MB);
+        spill.start();
+        spill.append(ByteBuffer.wrap(bytes(MB - 1, 0)));
+        try {
+            spill.append(ByteBuffer.wrap(bytes(2, 0)));
+            fail("spill grew past its maximum");
+        } catch (IOException expected) {
+        }
+        assertEquals(MB - 1, spill.pendingBytes());
+    }
+
+    @Test
+    public void closeDeletesTheFile() throws Exception {
+        spill.start();
+        spill.append(ByteBuffer.wrap(bytes(MB, 0)));
+        assertEquals(1, directory.list().length);
+
+        spill.close();
+        assertEquals(0, directory.list().length);
+        assertFalse(spill.isActive());
+    }
+
+    /**
+     * Read everything spilled so far, in small writes like a slow socket
+     */
+    private byte[] drain() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer view;
+        while ((view = spill.next()) != null) {
+            byte[] part = new byte[Math.min(view.remaining(), 300 * 1024)];
+            view.get(part);
+            out.write(part);
+            spill.consumed(part.length);
+        }
+        assertNull(spill.next());
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ((i + seed) % 251);
+        }
+        return bytes;
+    }
+}